@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends acquisition requests to the sensor and matches them with the responses, on a single scheduler thread.
+ * Never has more than maxInFlight requests waiting for a response, so requests cannot pile up on a slow link.
+ * The time from each request to its response is averaged and used to adapt the request rate. Requests that get no
+ * response within the timeout are given up so a lost response does not stop the acquisition.
+ *
+ * The request carries no tag, so a response can only be matched to the oldest request in flight. A late response to a
+ * request that was given up would be matched to the next one and make the latency look too short. So after giving up
+ * the scheduler forgets every request in flight and sends nothing for one response timeout, drops any response that
+ * arrives in that time as late, and then starts again with nothing in flight.
+ * Can be stopped and started again any number of times.
+ *
+ * Modes:
+ *   FIXED_RATE              a request every interval, slowed down to the rate the responses actually arrive at
+ *   REQUEST_AFTER_RESPONSE  the next request interval milliseconds after each response
+ *   MAX_THROUGHPUT          a new request as soon as a response arrives, keeping maxInFlight requests outstanding
+ */
+public class AcquisitionScheduler {
+
+    public enum Mode {FIXED_RATE, REQUEST_AFTER_RESPONSE, MAX_THROUGHPUT}
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Sends one request to the sensor, called on the scheduler thread
+    public interface RequestSender {
+        void sendRequest();
+    }
+
+    private static final long MIN_RESPONSE_TIMEOUT = 1000;                                          //Shortest time in milliseconds to wait for a response
+    private static final int TIMEOUT_LATENCIES =      4;                                            //Response timeout in multiples of the average latency
+    private static final long WATCHDOG_PERIOD =       250;                                          //Milliseconds between checks for responses that timed out
+    private static final double LATENCY_WEIGHT =      0.2;                                          //Weight of the newest latency in the moving average
+
+    private final RequestSender sender;
+    private final ScheduledExecutorService executor;                                                //The one thread that all scheduling runs on
+    private long[] sendTimes = new long[1];                                                         //Time each request in flight was sent, in nanoseconds, a ring from sendHead, oldest first
+    private int sendHead, inFlight;                                                                 //Oldest entry in sendTimes and the number of requests in flight
+    private long quietUntil;                                                                        //Responses before this System.nanoTime() are late ones for requests given up
+    private Mode mode;
+    private long interval;                                                                          //Configured interval in milliseconds
+    private int maxInFlight;
+    private boolean running;
+    private long nextTickTime;                                                                      //When the next FIXED_RATE request is due, in nanoseconds
+    private ScheduledFuture<?> requestFuture, watchdogFuture;
+
+    private volatile double averageLatency;                                                         //Moving average of the response time in milliseconds, 0 until the first response
+    private volatile long requests;                                                                 //Requests sent
+    private volatile long responses;                                                                //Responses matched to a request
+    private volatile long timeouts;                                                                 //Requests given up without a response
+    private volatile long skipped;                                                                  //FIXED_RATE requests not sent because maxInFlight were already waiting
+    private volatile long lateResponses;                                                            //Responses dropped after giving up on a request
+
+    public AcquisitionScheduler(RequestSender sender) {
+        this.sender = sender;
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, AcquisitionScheduler.class.getSimpleName());
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start sending requests, replacing any acquisition already running, may be called from any thread
+    public void start(final Mode mode, final long interval, final int maxInFlight) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                stopRequests();
+                AcquisitionScheduler.this.mode = mode;
+                AcquisitionScheduler.this.interval = Math.max(0, interval);
+                AcquisitionScheduler.this.maxInFlight = Math.max(1, maxInFlight);
+                if (sendTimes.length < AcquisitionScheduler.this.maxInFlight) {
+                    sendTimes = new long[AcquisitionScheduler.this.maxInFlight];
+                }
+                running = true;
+                nextTickTime = System.nanoTime();
+                quietUntil = nextTickTime;                                                          //Requests before a stop were forgotten, so are their responses
+                watchdogFuture = executor.scheduleWithFixedDelay(watchdog, WATCHDOG_PERIOD, WATCHDOG_PERIOD, TimeUnit.MILLISECONDS);
+                if (mode == Mode.FIXED_RATE) {
+                    tick.run();
+                }
+                else {
+                    fillRequests();
+                }
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stop sending requests and forget the requests in flight, may be called from any thread
+    public void stop() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                stopRequests();
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stop for good and end the scheduler thread
+    public void shutdown() {
+        stop();
+        executor.shutdown();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // A response to the oldest request in flight has arrived, may be called from any thread
+    // Dropped if it comes within one response timeout of giving up on a request, it may be the answer to that one
+    public void onResponse() {
+        final long time = System.nanoTime();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (running && time - quietUntil < 0) {
+                    lateResponses++;
+                    return;
+                }
+                if (!running || inFlight == 0) {                                                    //Response to a request sent before a stop
+                    return;
+                }
+                final double latency = (time - pollSendTime()) / 1e6;
+                averageLatency = averageLatency == 0 ? latency : averageLatency + LATENCY_WEIGHT * (latency - averageLatency);
+                responses++;
+                if (mode == Mode.REQUEST_AFTER_RESPONSE) {
+                    scheduleRequest(interval);
+                }
+                else if (mode == Mode.MAX_THROUGHPUT) {
+                    fillRequests();
+                }
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Cancel scheduled requests and forget requests in flight, on the scheduler thread
+    private void stopRequests() {
+        running = false;
+        if (requestFuture != null) {
+            requestFuture.cancel(false);
+            requestFuture = null;
+        }
+        if (watchdogFuture != null) {
+            watchdogFuture.cancel(false);
+            watchdogFuture = null;
+        }
+        sendHead = 0;
+        inFlight = 0;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Send requests until maxInFlight are waiting for a response
+    private void fillRequests() {
+        while (running && inFlight < maxInFlight) {
+            sendRequest();
+        }
+    }
+
+    private void scheduleRequest(long delay) {
+        if (requestFuture != null) {
+            requestFuture.cancel(false);
+        }
+        requestFuture = executor.schedule(delayedRequest, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void sendRequest() {
+        sendTimes[(sendHead + inFlight++) % sendTimes.length] = System.nanoTime();
+        requests++;
+        sender.sendRequest();
+    }
+
+    private long pollSendTime() {
+        final long time = sendTimes[sendHead];
+        sendHead = (sendHead + 1) % sendTimes.length;
+        inFlight--;
+        return time;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // REQUEST_AFTER_RESPONSE request, sent once the interval after a response has passed
+    private final Runnable delayedRequest = new Runnable() {
+        @Override
+        public void run() {
+            requestFuture = null;
+            fillRequests();
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // FIXED_RATE request, reschedules itself every interval, or every average latency / maxInFlight if that is longer
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) {
+                return;
+            }
+            if (inFlight < maxInFlight) {
+                sendRequest();
+            }
+            else {
+                skipped++;                                                                          //Link is slower than the interval, do not queue up another request
+            }
+            nextTickTime += TimeUnit.MILLISECONDS.toNanos(getEffectiveInterval());                  //Step from the last due time so the rate does not drift
+            final long now = System.nanoTime();
+            if (nextTickTime < now) {                                                               //Fell behind, carry on from now rather than send a burst
+                nextTickTime = now;
+            }
+            requestFuture = executor.schedule(tick, nextTickTime - now, TimeUnit.NANOSECONDS);
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Give up on requests that have waited longer than the response timeout, and start again after one quiet timeout
+    private final Runnable watchdog = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) {
+                return;
+            }
+            final long timeout = TimeUnit.MILLISECONDS.toNanos(getResponseTimeout());
+            final long now = System.nanoTime();
+            boolean timedOut = false;
+            while (inFlight > 0 && now - sendTimes[sendHead] > timeout) {
+                pollSendTime();
+                timeouts++;
+                timedOut = true;
+            }
+            if (!timedOut) {
+                return;
+            }
+            inFlight = 0;                                                                           //Their responses cannot be told from late ones either
+            quietUntil = now + timeout;
+            if (requestFuture != null) {
+                requestFuture.cancel(false);
+            }
+            requestFuture = executor.schedule(resume, timeout, TimeUnit.NANOSECONDS);
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // End of the quiet time after giving up, any late response has had a full timeout to arrive
+    private final Runnable resume = new Runnable() {
+        @Override
+        public void run() {
+            requestFuture = null;
+            if (!running) {
+                return;
+            }
+            if (mode == Mode.FIXED_RATE) {
+                nextTickTime = System.nanoTime();
+                tick.run();
+            }
+            else {
+                fillRequests();
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Interval between FIXED_RATE requests, the configured interval unless responses arrive more slowly than that
+    public long getEffectiveInterval() {
+        final int inFlight = Math.max(1, maxInFlight);
+        return Math.max(interval, (long) (averageLatency / inFlight));
+    }
+
+    public long getResponseTimeout() {
+        return Math.max(MIN_RESPONSE_TIMEOUT, (long) (TIMEOUT_LATENCIES * averageLatency));
+    }
+
+    public double getAverageLatency() {
+        return averageLatency;
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    public long getResponses() {
+        return responses;
+    }
+
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public long getLateResponses() {
+        return lateResponses;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ScanEngine that scans with the phone's Bluetooth radio.
+ * The scan filters are passed to BluetoothLeScanner so that, on phones whose controller supports filter offload,
+ * advertisements from other devices are discarded by the controller and never wake the app. Where the controller
+ * supports batching, results are held for the report delay and delivered together in onBatchScanResults().
+ */
+public class AndroidScanEngine implements ScanEngine {
+    private final static String TAG = AndroidScanEngine.class.getSimpleName();                      //Get name of class for tagging log messages
+
+    public static final long DEFAULT_REPORT_DELAY = 500;                                            //Milliseconds the controller may hold results before reporting them
+
+    private final BluetoothAdapter btAdapter;                                                       //Scanner is taken from the adapter at each start as it is only available while the radio is on
+    private final List<ScanFilter> scanFilters;                                                     //Advertisements must match at least one filter, empty for no filtering
+    private final int scanMode;
+    private final long reportDelay;
+    private BluetoothLeScanner bleScanner;                                                          //Scanner for the scan in progress, null when not scanning
+    private boolean batching;                                                                       //Scan in progress uses a report delay
+    private Listener listener;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor, filters may be empty, report delay of 0 for no batching
+    public AndroidScanEngine(BluetoothAdapter btAdapter, List<ScanFilter> scanFilters, int scanMode, long reportDelay) {
+        this.btAdapter = btAdapter;
+        this.scanFilters = new ArrayList<>(scanFilters);
+        this.scanMode = scanMode;
+        this.reportDelay = reportDelay;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start a scan with the filters, batched if the controller supports it
+    @Override
+    public void startScan(Listener listener) {
+        try {
+            stopScan();
+            final BluetoothLeScanner scanner = btAdapter.getBluetoothLeScanner();                  //Null if the radio is off
+            if (scanner == null) {
+                Log.w(TAG, "Unable to scan, no BluetoothLeScanner");
+                listener.onScanFailed(ScanCallback.SCAN_FAILED_INTERNAL_ERROR);
+                return;
+            }
+            batching = reportDelay > 0 && btAdapter.isOffloadedScanBatchingSupported();            //A report delay makes the scan fail if the controller cannot batch
+            final ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(scanMode);
+            if (batching) {
+                settings.setReportDelay(reportDelay);
+            }
+            Log.i(TAG, "Starting scan with " + scanFilters.size() + " filters, filter offload "
+                    + (btAdapter.isOffloadedFilteringSupported() ? "supported" : "not supported")
+                    + ", batching " + (batching ? reportDelay + " ms" : "not supported or disabled"));
+            this.listener = listener;
+            bleScanner = scanner;
+            scanner.startScan(scanFilters.isEmpty() ? null : scanFilters, settings.build(), scanCallback);
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stop the scan, asking the controller to report any batched results first
+    @Override
+    public void stopScan() {
+        try {
+            if (bleScanner != null) {
+                if (batching) {
+                    bleScanner.flushPendingScanResults(scanCallback);
+                }
+                bleScanner.stopScan(scanCallback);
+                bleScanner = null;
+            }
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean isScanning() {
+        return bleScanner != null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Pass one result to the listener, the name from the advertisement is used if the device has not been named yet
+    private void report(ScanResult result) {
+        final BluetoothDevice device = result.getDevice();
+        final ScanRecord scanRecord = result.getScanRecord();
+        String name = scanRecord != null ? scanRecord.getDeviceName() : null;
+        if (name == null) {
+            name = device.getName();
+        }
+        listener.onScanResult(device.getAddress(), name, result.getRssi(), result.getTimestampNanos());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Scan callback, single results when not batching, lists of results when batching
+    private final ScanCallback scanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            try {
+                if (listener != null) {
+                    report(result);
+                    listener.onScanBatchComplete();
+                }
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            try {
+                if (listener != null && !results.isEmpty()) {
+                    for (ScanResult result : results) {
+                        report(result);
+                    }
+                    listener.onScanBatchComplete();
+                }
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "Scan Failed: Error Code: " + errorCode);
+            bleScanner = null;
+            if (listener != null) {
+                listener.onScanFailed(errorCode);
+            }
+        }
+    };
+}
@@ -51,41 +51,25 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.core.content.FileProvider;
 
 import com.github.mikephil.charting.charts.LineChart;
-import com.github.mikephil.charting.components.Description;
-import com.github.mikephil.charting.components.Legend;
 import com.github.mikephil.charting.components.XAxis;
-import com.github.mikephil.charting.components.YAxis;
 import com.github.mikephil.charting.data.Entry;
 import com.github.mikephil.charting.data.LineData;
 import com.github.mikephil.charting.data.LineDataSet;
-import com.github.mikephil.charting.interfaces.datasets.ILineDataSet;
 import com.google.android.gms.common.util.Hex;
-import com.google.android.gms.tasks.OnCompleteListener;
-import com.google.android.gms.tasks.Task;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.database.Query;
 import com.google.firebase.database.ValueEventListener;
 
-import com.jjoe64.graphview.LegendRenderer;
-import com.jjoe64.graphview.series.LineGraphSeries;
-import com.jjoe64.graphview.GraphView;
-import com.jjoe64.graphview.series.DataPoint;
-
-
-import java.io.ByteArrayOutputStream;
-import java.math.BigInteger;
-import java.text.SimpleDateFormat;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Date;
-import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BleMainActivity extends AppCompatActivity {
     private final static String TAG = BleMainActivity.class.getSimpleName();
@@ -95,29 +79,61 @@ public class BleMainActivity extends AppCompatActivity {
     private static final int REQ_CODE_ACCESS_LOC1 =   3;                                            //or requesting location access.
     private static final int REQ_CODE_ACCESS_LOC2 =   4;                                            //or requesting location access a second time.
     private static final long CONNECT_TIMEOUT =       10000;                                        //Length of time in milliseconds to try to connect to a device
+    private static final int NOTIFICATION_SAMPLES =   100;                                          //Number of 16-bit samples in a single notification from the sensor
+    private static final int NOTIFICATION_BYTES =     NOTIFICATION_SAMPLES * SampleDecoder.BYTES_PER_SAMPLE; //Number of bytes in a single notification from the sensor
+    private static final long DATA_BATCH_WINDOW =     50;                                           //Milliseconds to wait for a full notification before taking a partial batch of data
+    private static final int MAX_FRAME_PAYLOAD =      1024;                                         //Largest frame payload the sensor sends, longer frame lengths are treated as corruption
+    private static final int CHART_WINDOW_SAMPLES =   5000;                                         //Number of most recent samples shown on the graph
+    private static final int CHART_MAX_FPS =          30;                                           //Maximum number of graph redraws per second
+    private static final byte[] ACQUISITION_REQUEST = {'g'};                                        //Command that asks the sensor for one acquisition cycle
+    private static final AcquisitionScheduler.Mode ACQUISITION_MODE = AcquisitionScheduler.Mode.MAX_THROUGHPUT; //Request the next cycle as soon as the last one arrives
+    private static final long ACQUISITION_INTERVAL =  1000;                                         //Milliseconds between requests in FIXED_RATE mode, or after a response in REQUEST_AFTER_RESPONSE mode
+    private static final int MAX_REQUESTS_IN_FLIGHT = 1;                                            //Requests waiting for a cycle at the same time, more than one pipelines requests on a slow link
+    private static final String SESSION_DIRECTORY =   "sessions";                                   //Directory under the app files directory for the local session logs
+    private static final String EXPORT_DIRECTORY =    "exports";                                    //Directory under the app cache directory for exported sessions, shared through the FileProvider
+    private static final int SMOOTHING_SAMPLES =      4;                                            //Length of the moving average on the filtered channel shown on the graph
+    private static final int SPECTRUM_SIZE =          256;                                          //Samples in the window of each spectrum, a power of two
+    private static final int SPECTRUM_HOP =           NOTIFICATION_SAMPLES;                         //New samples between spectra, one spectrum per notification
+    private static final String NO_DEVICE =           "";                                           //Key of the pipeline shown before any device is chosen, for loading sessions
 
     private ProgressBar progressBar;                                                                //Progress bar (indeterminate circular) to show that activity is busy connecting to BLE device
     private BleService bleService;                                                                  //Service that handles all interaction with the Bluetooth radio and remote device
-    private ByteArrayOutputStream transparentUartData = new ByteArrayOutputStream();                //Stores all the incoming byte arrays received from BLE device in bleService
+    private BleService.LocalBinder bleServiceBinder;                                                //Binder for the BleService, used to register for received data
     private ShowAlertDialogs showAlert;                                                             //Object that creates and shows all the alert pop ups used in the app
     private Handler connectTimeoutHandler;                                                          //Handler to provide a time out if connection attempt takes too long
-    private String bleDeviceName, bleDeviceAddress;                                                 //Name and address of remote Bluetooth device
+    private String bleDeviceName;                                                                   //Name of remote Bluetooth device
+    private volatile String bleDeviceAddress;                                                       //Address of remote Bluetooth device, the one shown on the graph
     private TextView textDeviceNameAndAddress, textTemperature, tv_rx_;                                                      //To show device and status information on the screen
     private enum StateConnection {DISCONNECTED, CONNECTING, DISCOVERING, CONNECTED, DISCONNECTING}  //States of the Bluetooth connection
     private StateConnection stateConnection;                                                        //State of Bluetooth connection
     private enum StateApp {STARTING_SERVICE, REQUEST_PERMISSION, ENABLING_BLUETOOTH, RUNNING}       //States of the app
     private StateApp stateApp;                                                                      //State of the app
-    private double GraphHorizontalPoint1 = 0d;                                                  //Current horizontal position to be plotted on the graph
-    private double GraphHorizontalPoint2 = 100d;                                                  //Current horizontal position to be plotted on the graph
-    private double GraphHorizontalPoint3 = 200d;                                                  //Current horizontal position to be plotted on the graph
     private LineChart chart;
+    private LineChart spectrumChart;                                                                //Magnitude of each frequency bin of the newest samples
 
     private FirebaseDatabase database;
     private DatabaseReference databaseReference;
-    private int d_num = 1;
-
-    private Timer timer = new Timer();
-    private Float[] grx_arr = new Float[300];
+    private FirebaseUploader firebaseUploader;                                                      //Queues received frames and writes them to the database in batches
+    private final ConcurrentHashMap<String, DevicePipeline> devicePipelines = new ConcurrentHashMap<>(); //Pipeline of each device that has sent data, by address
+    private volatile DevicePipeline shownDevice;                                                    //Device whose data is on the graph
+    private volatile MetricsRegistry metrics;                                                       //BleService metrics, null until the service is bound
+    private File sessionDirectory;                                                                  //Where the local session logs are kept
+    private final ArrayList<Entry> chartEntryPool = new ArrayList<>();                              //Entry objects reused for every redraw
+    private final ArrayList<Entry> chartEntries = new ArrayList<>();                                //Entries given to the LineDataSet, taken from the pool
+    private final RenderScheduler renderScheduler = new RenderScheduler(CHART_MAX_FPS, new Runnable() { //Redraws the graph once per display frame at most, however much data arrived
+        @Override
+        public void run() {
+            drawing();
+            recordRenderLatency();
+        }
+    });
+    private final ArrayList<Entry> spectrumEntryPool = new ArrayList<>();                           //Entry objects reused for every spectrum redraw
+    private final ArrayList<Entry> spectrumEntries = new ArrayList<>();
+    private long spectrumShown;                                                                     //Version of the spectrum on the screen
+    private ProcessingPipeline.RenderSnapshot drawnSnapshot;                                        //Snapshot on the graph now, null before the first redraw
+    private long recordedVersion;                                                                   //Version of the last snapshot whose latency was recorded
+    private long cyclesShown;                                                                       //Acquisition cycles already marked on the screen
+    private MetricsRegistry.Histogram renderLatency;                                                //Time from a notification arriving to the graph showing it, null until the service is bound
 
 
 
@@ -163,10 +179,21 @@ public class BleMainActivity extends AppCompatActivity {
         LineData data = new LineData();
         chart.setData(data);
 
+        spectrumChart = (LineChart) findViewById(R.id.graph2);
+        spectrumChart.getXAxis().setPosition(XAxis.XAxisPosition.BOTTOM);
+        spectrumChart.getAxisRight().setEnabled(false);
+        spectrumChart.getAxisLeft().setAxisMinimum(0f);
+        spectrumChart.getLegend().setTextColor(Color.WHITE);
+        spectrumChart.setData(new LineData());
+
+        sessionDirectory = new File(getFilesDir(), SESSION_DIRECTORY);
+
 
         //Firebase
         database = FirebaseDatabase.getInstance();
         databaseReference = database.getReference("User");
+        firebaseUploader = new FirebaseUploader(databaseReference);                                  //Uploads received frames in batches off the UI thread
+        shownDevice = devicePipeline(NO_DEVICE);                                                    //Graph can show loaded sessions before any device is chosen
 
         EditText et_load_ = findViewById(R.id.et_load);
         Button bt_load_ = findViewById(R.id.bt_load);
@@ -192,20 +219,18 @@ public class BleMainActivity extends AppCompatActivity {
             }
         });
 
-        // request data at certain interval
-        String sendData = "g";
+        // request data as fast as the sensor responds, or at the interval for the other modes
         Button bt_start = findViewById(R.id.start);
         bt_start.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                textTemperature.setText("Requesting Data : 5sec");
-                TimerTask timerTask = new TimerTask() {
-                    @Override
-                    public void run() {
-                        bleService.writeToTransparentUART(sendData.getBytes());
-                    }
-                };
-                timer.schedule(timerTask, 0, 1000);
+                final DevicePipeline device = shownDevice;
+                if (NO_DEVICE.equals(device.address) || stateConnection != StateConnection.CONNECTED) { //Nothing to send the requests to, they would only time out
+                    textTemperature.setText("Connect to a device first");
+                    return;
+                }
+                textTemperature.setText("Requesting Data");
+                device.acquisitionScheduler.start(ACQUISITION_MODE, ACQUISITION_INTERVAL, MAX_REQUESTS_IN_FLIGHT);
             }
         });
 
@@ -213,31 +238,12 @@ public class BleMainActivity extends AppCompatActivity {
         bt_stop.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                timer.cancel();
+                shownDevice.acquisitionScheduler.stop();                                            //Can be started again with the Start button
                 textTemperature.setText("Stop Requesting Data");
             }
         });
     }
 
-    private int save_data(int d_num, String value) {
-        SimpleDateFormat sdf = new SimpleDateFormat("MMddhhmmss");
-        Date now = new Date();
-        String dd = sdf.format(now);
-        String nn = "data"+ new String(String.valueOf(d_num));
-        if (value.length() > 400){
-            String s1 = value.substring(0, 400);
-            String s2 = value.substring(400, 800);
-            databaseReference.child(dd).child(nn).setValue(s1);
-            nn = "data"+ new String(String.valueOf(d_num+1));
-            databaseReference.child(dd).child(nn).setValue(s2);
-            d_num++;
-        } else{
-            databaseReference.child(dd).child(nn).setValue(value);
-        }
-        tv_rx_.setText("Received Data - saved as" + " - " + dd);
-        return d_num;
-    }
-
 
     // ----------------------------------------------------------------------------------------------------------------
     // Activity started
@@ -291,11 +297,45 @@ public class BleMainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();                                                                          //Call superclass (AppCompatActivity) onDestroy method
+        renderScheduler.stop();                                                                     //No more redraws of the graph
+        if (bleServiceBinder != null) {
+            bleServiceBinder.unregisterDataListener(bleDataListener);                               //No more data, so no new device pipelines either
+        }
+        final AtomicInteger pipelinesRunning = new AtomicInteger(devicePipelines.size() + 1);       //One more so the uploader cannot stop before every pipeline is asked to
+        final Runnable pipelineStopped = new Runnable() {
+            @Override
+            public void run() {
+                if (pipelinesRunning.decrementAndGet() == 0) {                                      //Every frame of every pipeline has been handed to the uploader
+                    stopFirebaseUploader();
+                }
+            }
+        };
+        for (DevicePipeline device : devicePipelines.values()) {
+            final AcquisitionScheduler scheduler = device.acquisitionScheduler;
+            scheduler.shutdown();                                                                   //No more requests to the sensor
+            Log.d(TAG, "Device " + device.address + " acquisition requests " + scheduler.getRequests() + ", responses " + scheduler.getResponses()
+                    + ", timeouts " + scheduler.getTimeouts() + ", late responses " + scheduler.getLateResponses() + ", average latency " + scheduler.getAverageLatency() + " ms");
+            device.pipeline.stop(pipelineStopped);                                                  //Process what has been received and make sure the session is complete on storage
+        }
+        pipelineStopped.run();
+        Log.d(TAG, "Graph redraws requested " + renderScheduler.getRequests() + ", rendered " + renderScheduler.getFramesRendered()
+                + ", frames skipped for the rate limit " + renderScheduler.getFramesSkipped());
         if (stateApp != StateApp.REQUEST_PERMISSION) {                                              //See if we got past the permission request
             unbindService(bleServiceConnection);                                                    //Unbind from the service handling Bluetooth
         }
     }
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Send any frames still queued and stop the uploader, only once no pipeline can hand it any more
+    private void stopFirebaseUploader() {
+        if (firebaseUploader != null) {
+            firebaseUploader.stop();
+            Log.d(TAG, "Frames uploaded " + firebaseUploader.getUploadedFrames() + " of " + firebaseUploader.getSubmittedFrames()
+                    + " in " + firebaseUploader.getBatches() + " batches, dropped " + firebaseUploader.getDroppedFrames()
+                    + ", failed writes " + firebaseUploader.getFailures());
+        }
+    }
+
     /******************************************************************************************************************
      * Methods for handling menu creation and operation.
      */
@@ -354,6 +394,14 @@ public class BleMainActivity extends AppCompatActivity {
                     bleService.disconnectBle();                                                     //Ask the BleService to disconnect from the Bluetooth device
                     return true;
                 }
+                case R.id.menu_export_csv: {                                                        //Menu option Export CSV chosen
+                    exportSession(SessionExporter.Format.CSV);
+                    return true;
+                }
+                case R.id.menu_export_binary: {                                                     //Menu option Export binary chosen
+                    exportSession(SessionExporter.Format.BINARY);
+                    return true;
+                }
                 case R.id.menu_help: {                                                              //Menu option Help chosen
                     showAlert.showHelpMenuDialog(this.getApplicationContext());                     //Show the AlertDialog that has the Help text
                     return true;
@@ -393,11 +441,13 @@ public class BleMainActivity extends AppCompatActivity {
         public void onServiceConnected(ComponentName componentName, IBinder service) {              //Service connects
             try {
                 Log.i(TAG, "BleService connected");
-                BleService.LocalBinder binder = (BleService.LocalBinder) service;                   //Get the Binder for the Service
-                bleService = binder.getService();                                                   //Get a link to the Service from the Binder
+                bleServiceBinder = (BleService.LocalBinder) service;                                //Get the Binder for the Service
+                bleService = bleServiceBinder.getService();                                         //Get a link to the Service from the Binder
+                bleServiceBinder.registerDataListener(bleDataListener, NOTIFICATION_BYTES, DATA_BATCH_WINDOW); //Receive data a notification at a time directly from the service
+                registerPipelineMetrics(bleServiceBinder.getMetrics());                             //Pipeline metrics go with the link metrics so dumpsys shows them together
                 if (bleService.isBluetoothRadioEnabled()) {                                         //See if the Bluetooth radio is on
                     stateApp = StateApp.RUNNING;                                                    //Service is running and Bluetooth is enabled, app is now fully operational
-                    startBleScanActivity();                                                         //Launch the BleScanActivity to scan for BLE devices
+                    reconnectOrScan();                                                              //Reconnect to the last device, or scan if there is none
                 }
                 else {                                                                              //Radio needs to be enabled
                     stateApp = StateApp.ENABLING_BLUETOOTH;                                         //Are requesting Bluetooth to be turned on
@@ -414,6 +464,7 @@ public class BleMainActivity extends AppCompatActivity {
         public void onServiceDisconnected(ComponentName componentName) {                            //BleService disconnects - should never happen
             Log.i(TAG, "BleService disconnected");
             bleService = null;                                                                      //Not bound to BleService
+            bleServiceBinder = null;
         }
     };
 
@@ -427,7 +478,7 @@ public class BleMainActivity extends AppCompatActivity {
             case REQ_CODE_ENABLE_BT: {
                 if (resultCode == Activity.RESULT_OK) {                                             //User chose to enable Bluetooth
                     stateApp = StateApp.RUNNING;                                                    //Service is running and Bluetooth is enabled, app is now fully operational
-                    startBleScanActivity();                                                         //Start the BleScanActivity to do a scan for devices
+                    reconnectOrScan();                                                              //Reconnect to the last device, or scan if there is none
                 } else {
                     Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);     //User chose not to enable Bluetooth so create an Intent to ask again
                     startActivityForResult(enableBtIntent, REQ_CODE_ENABLE_BT);                     //Send the Intent to start the activity that will return a result based on user input
@@ -445,6 +496,7 @@ public class BleMainActivity extends AppCompatActivity {
                         stateConnection = StateConnection.DISCONNECTED;                             //No device address so not connected and not going to connect
                     } else {
                         stateConnection = StateConnection.CONNECTING;                               //Got an address so we are going to start connecting
+                        showDevice(bleDeviceAddress);                                               //Graph follows the device chosen
                         connectWithAddress(bleDeviceAddress);                                       //Initiate a connection
                     }
                 } else {                                                                            //Did not get a valid result from the BleScanActivity
@@ -494,10 +546,9 @@ public class BleMainActivity extends AppCompatActivity {
         final IntentFilter intentFilter = new IntentFilter();                                       //Create a new IntentFilter
         intentFilter.addAction(BleService.ACTION_BLE_CONNECTED);                                    //Add filter for receiving an Intent from BleService announcing a new connection
         intentFilter.addAction(BleService.ACTION_BLE_DISCONNECTED);                                 //Add filter for receiving an Intent from BleService announcing a disconnection
+        intentFilter.addAction(BleService.ACTION_BLE_PROFILE_APPLIED);                              //Add filter for receiving an Intent from BleService with the negotiated connection parameters
         intentFilter.addAction(BleService.ACTION_BLE_DISCOVERY_DONE);                               //Add filter for receiving an Intent from BleService announcing a service discovery
         intentFilter.addAction(BleService.ACTION_BLE_DISCOVERY_FAILED);                             //Add filter for receiving an Intent from BleService announcing failure of service discovery
-        intentFilter.addAction(BleService.ACTION_BLE_NEW_DATA_RECEIVED);                            //Add filter for receiving an Intent from BleService announcing new data received
-        Log.d("**", "initialized Intent");
         return intentFilter;                                                                        //Return the new IntentFilter
     }
 
@@ -507,19 +558,26 @@ public class BleMainActivity extends AppCompatActivity {
         @Override
         public void onReceive(Context context, Intent intent) {                                     //Intent received
             final String action = intent.getAction();                                               //Get the action String from the Intent
+            final String address = intent.getStringExtra(BleService.EXTRA_ADDRESS);                 //Device the Intent is about
+            if (address != null && BleService.ACTION_BLE_DISCONNECTED.equals(action)) {             //Every device that sent data has a pipeline to finish
+                final DevicePipeline device = devicePipelines.get(address);
+                if (device != null) {
+                    device.pipeline.endSession();                                                   //The next connection starts a new session
+                    device.acquisitionScheduler.stop();                                             //No point requesting data without a connection
+                }
+            }
+            if (address != null && !address.equals(bleDeviceAddress)) {                             //Screen and menus only follow the device selected
+                return;
+            }
             switch (action) {                                                                       //See which action was in the Intent
                 case BleService.ACTION_BLE_CONNECTED: {                                             //Have connected to BLE device
                     Log.d(TAG, "Received Intent  ACTION_BLE_CONNECTED");
-                    initializeDisplay();                                                            //Clear the temperature and accelerometer text and graphs
-                    transparentUartData.reset();                                                    //Also clear any buffered incoming data
                     stateConnection = StateConnection.DISCOVERING;                                  //BleService automatically starts service discovery after connecting
                     updateConnectionState();                                                        //Update the screen and menus
                     break;
                 }
                 case BleService.ACTION_BLE_DISCONNECTED: {                                          //Have disconnected from BLE device
                     Log.d(TAG, "Received Intent ACTION_BLE_DISCONNECTED");
-                    initializeDisplay();                                                            //Clear the temperature and accelerometer text and graphs
-                    transparentUartData.reset();                                                    //Also clear any buffered incoming data
                     if (stateConnection == StateConnection.CONNECTED) {                             //See if we were connected before
                         showAlert.showLostConnectionDialog(new Runnable() {                         //Show the AlertDialog for a lost connection
                             @Override
@@ -532,6 +590,13 @@ public class BleMainActivity extends AppCompatActivity {
                     updateConnectionState();                                                        //Update the screen and menus
                     break;
                 }
+                case BleService.ACTION_BLE_PROFILE_APPLIED: {                                       //Connection parameters have been negotiated
+                    Log.i(TAG, "Connection profile " + intent.getStringExtra(BleService.EXTRA_PROFILE)
+                            + ", MTU " + intent.getIntExtra(BleService.EXTRA_MTU, 0)
+                            + ", payload " + intent.getIntExtra(BleService.EXTRA_PAYLOAD_SIZE, 0) + " bytes per notification"
+                            + ", PHY tx " + intent.getIntExtra(BleService.EXTRA_TX_PHY, 0) + " rx " + intent.getIntExtra(BleService.EXTRA_RX_PHY, 0));
+                    break;
+                }
                 case BleService.ACTION_BLE_DISCOVERY_DONE: {                                        //Have completed service discovery
                     Log.d(TAG, "Received Intent  ACTION_BLE_DISCOVERY_DONE");
                     connectTimeoutHandler.removeCallbacks(abandonConnectionAttempt);                //Stop the connection timeout handler from calling the runnable to stop the connection attempt
@@ -553,12 +618,6 @@ public class BleMainActivity extends AppCompatActivity {
                     });
                     break;
                 }
-                case BleService.ACTION_BLE_NEW_DATA_RECEIVED: {                                     //Have received data (characteristic notification) from BLE device
-                    Log.d(TAG, "Received Intent ACTION_BLE_NEW_DATA_RECEIVED");
-                    final byte[] newBytes = bleService.readFromTransparentUART();
-                    processIncomingData(newBytes);
-                    break;
-                }
                 default: {
                     Log.w(TAG, "Received Intent with invalid action: " + action);
                 }
@@ -566,117 +625,112 @@ public class BleMainActivity extends AppCompatActivity {
         }
     };
 
-    /******************************************************************************************************************
-     * Method for processing incoming data and updating the display
-     */
-
-    private void initializeDisplay() {
-        try {
-            Log.d("What!", "SOOO");
-        } catch (Exception e) {
-            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+    // ----------------------------------------------------------------------------------------------------------------
+    // DataListener receives batches of data (characteristic notifications) from the BleService on its data thread
+    private final BleService.DataListener bleDataListener = new BleService.DataListener() {
+        @Override
+        public void onDataReceived(String address, byte[] data, int length, long receivedTime) {
+            devicePipeline(address).pipeline.submit(data, length, receivedTime);                    //Only copies the data, the pipeline thread of the device does the rest
         }
-    }
+    };
 
-    private void processIncomingData(byte[] newBytes) {
-        try {
-            Log.d("Dnum", String.valueOf(d_num));
-            Log.d("Length", String.valueOf(Hex.bytesToStringUppercase(newBytes).length()));
-            if(d_num == 1){
-                if(Hex.bytesToStringUppercase(newBytes).length() > 400){
-                    for(int i =0;i<100;i++) {
-                        String d11 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i * 4 + 2));
-                        String d12 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i * 4 + 3));
-                        String d13 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i * 4 + 0));
-                        String d14 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i * 4 + 1));
-                        grx_arr[i] = Float.valueOf(d11 + d12 + d13 + d14);
-
-                        String d21 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i * 4 + 402));
-                        String d22 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i * 4 + 403));
-                        String d23 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i * 4 + 400));
-                        String d24 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i * 4 + 401));
-                        grx_arr[i + 100] = Float.valueOf(d21 + d22 + d23 + d24);
-                    }
-                } else if(Hex.bytesToStringUppercase(newBytes).length() == 0){
-                    Log.d("Empty", "Empty data received");
-                } else {  // 100 data received
-                    for(int i =0;i<100;i++){
-                        String d1 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i*4+2));
-                        String d2 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i*4+3));
-                        String d3 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i*4+0));
-                        String d4 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i*4+1));
-                        grx_arr[i] = Float.valueOf(d1 + d2 + d3 + d4);
+    // ----------------------------------------------------------------------------------------------------------------
+    // Pipeline and acquisition requests of one device, every device has its own so the frames of one are never mixed
+    // into the stream of another
+    private final class DevicePipeline {
+        final String address;                                                                       //Bluetooth address, NO_DEVICE for the pipeline shown before any device is chosen
+        final ProcessingPipeline pipeline;                                                          //Finds, decodes, logs and uploads frames on its own thread and makes the graph snapshots
+        final AcquisitionScheduler acquisitionScheduler;                                            //Sends the request command and waits for the cycles to come back
+
+        DevicePipeline(final String address) {
+            this.address = address;
+            acquisitionScheduler = new AcquisitionScheduler(new AcquisitionScheduler.RequestSender() {
+                @Override
+                public void sendRequest() {
+                    if (bleService != null && !NO_DEVICE.equals(address)) {                         //Service may not be bound yet
+                        bleService.writeToTransparentUART(address, ACQUISITION_REQUEST, 0, ACQUISITION_REQUEST.length);
                     }
                 }
-            } else if (d_num == 2) {
-                if(Hex.bytesToStringUppercase(newBytes).length() > 400){
-                    for(int i =0;i<100;i++) {
-                        String d11 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i * 4 + 2));
-                        String d12 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i * 4 + 3));
-                        String d13 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i * 4 + 0));
-                        String d14 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i * 4 + 1));
-                        grx_arr[i+100] = Float.valueOf(d11 + d12 + d13 + d14);
-
-                        String d21 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i * 4 + 402));
-                        String d22 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i * 4 + 403));
-                        String d23 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i * 4 + 400));
-                        String d24 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i * 4 + 401));
-                        grx_arr[i+200] = Float.valueOf(d21 + d22 + d23 + d24);
+            });
+            pipeline = new ProcessingPipeline(deviceKey(address), MAX_FRAME_PAYLOAD, 3 * NOTIFICATION_SAMPLES, CHART_WINDOW_SAMPLES,
+                    sessionDirectory, firebaseUploader, new ProcessingPipeline.Listener() {         //All processing of received data happens on the pipeline thread
+                @Override
+                public void onSnapshot() {
+                    if (shownDevice == DevicePipeline.this) {                                       //Other devices are processed and logged but not drawn
+                        renderScheduler.requestRender();                                            //Only marks the graph as out of date, the redraw happens on the next allowed frame
                     }
-                    // draw graph
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            drawing();
-                        }
-                    });
+                }
 
-                } else if(Hex.bytesToStringUppercase(newBytes).length() == 0){
-                    Log.d("Empty", "Empty data received");
-                } else {  // 100 data received
-                    for(int i =0;i<100;i++){
-                        String d1 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i*4+2));
-                        String d2 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i*4+3));
-                        String d3 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i*4+0));
-                        String d4 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i*4+1));
-                        grx_arr[i+100] = Float.valueOf(d1 + d2 + d3 + d4);
+                @Override
+                public void onCycleComplete() {
+                    acquisitionScheduler.onResponse();                                              //A complete cycle is the response to one request
+                }
+
+                @Override
+                public void onSpectrum() {
+                    if (shownDevice == DevicePipeline.this) {
+                        renderScheduler.requestRender();                                            //Drawn with the next graph redraw
                     }
                 }
-            } else{      // dnum == 3
-                if(Hex.bytesToStringUppercase(newBytes).length() > 400){
-                    Log.d("Numm ERR", "ERR ERR");
-                } else if(Hex.bytesToStringUppercase(newBytes).length() == 0){
-                    Log.d("Empty", "Empty data received");
-                } else {  // 100 data received
-                    for(int i =0;i<100;i++){
-                        String d1 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i*4+2));
-                        String d2 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i*4+3));
-                        String d3 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i*4+0));
-                        String d4 = String.valueOf(Hex.bytesToStringUppercase(newBytes).charAt(i*4+1));
-                        grx_arr[i+200] = Float.valueOf(d1 + d2 + d3 + d4);
+            });
+            pipeline.setFilter(new FilterChain(new DcBlockerFilter(), new MovingAverageFilter(SMOOTHING_SAMPLES))); //Graph shows the samples without baseline drift and noise
+            pipeline.setChannels(SampleStream.Channel.FILTERED, SampleStream.Channel.RAW);          //Session log, and the upload read from it, keep the data as received
+            pipeline.setSpectrumAnalyzer(new SpectrumAnalyzer(SPECTRUM_SIZE, SPECTRUM_HOP));       //Spectrum of the raw samples on the second graph
+        }
+
+        // Pipeline and acquisition metrics, named by the device
+        void registerMetrics(MetricsRegistry metrics) {
+            pipeline.registerMetrics(metrics);
+            metrics.gauge("pipeline." + pipeline.getDevice() + ".acquisition.timeouts", new MetricsRegistry.Gauge() {
+                @Override
+                public long get() {
+                    return acquisitionScheduler.getTimeouts();
+                }
+            });
+            metrics.gauge("pipeline." + pipeline.getDevice() + ".acquisition.late_responses", new MetricsRegistry.Gauge() {
+                @Override
+                public long get() {
+                    return acquisitionScheduler.getLateResponses();
+                }
+            });
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Pipeline of a device, made the first time the device is seen, called on the data thread and the main thread
+    private DevicePipeline devicePipeline(String address) {
+        DevicePipeline device = devicePipelines.get(address);
+        if (device == null) {
+            synchronized (devicePipelines) {                                                        //Only one pipeline per device, however many threads ask at once
+                device = devicePipelines.get(address);
+                if (device == null) {
+                    device = new DevicePipeline(address);
+                    devicePipelines.put(address, device);
+                    final MetricsRegistry registry = metrics;
+                    if (registry != null && !NO_DEVICE.equals(address)) {
+                        device.registerMetrics(registry);
                     }
-                    // draw graph
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            drawing();
-                        }
-                    });
                 }
             }
+        }
+        return device;
+    }
 
-            if(newBytes.length != 0) {
-                d_num = save_data(d_num, Hex.bytesToStringUppercase(newBytes));
-                d_num++;
-            }else{
-                Log.d("zero", "zero received");
-            }
-            if(d_num >3){
-                d_num=1;
-                textTemperature.setText(textTemperature.getText() + "\n" + "==================================");
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+    // ----------------------------------------------------------------------------------------------------------------
+    // Name of a device for session logs, database keys and metrics, the address without the colons
+    private static String deviceKey(String address) {
+        return NO_DEVICE.equals(address) ? null : address.replace(":", "");
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Show the data of a device on the graph, the data of the other devices is still processed, logged and uploaded
+    private void showDevice(String address) {
+        final DevicePipeline device = devicePipeline(address);
+        if (device != shownDevice) {
+            shownDevice = device;
+            spectrumShown = -1;                                                                     //Redraw the spectrum from the new device
+            cyclesShown = device.pipeline.takeSnapshot().getCycles();                               //Only mark cycles completed from now on
+            renderScheduler.requestRender();
         }
     }
 
@@ -699,6 +753,28 @@ public class BleMainActivity extends AppCompatActivity {
         }
     }
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Reconnect to the device used last time the app ran, without waiting for a scan, or start a scan if there is none
+    // If the device cannot be reached within CONNECT_TIMEOUT the user is asked to scan, as for any other connection
+    private void reconnectOrScan() {
+        try {
+            final KnownDeviceStore.KnownDevice lastDevice = bleService.getKnownDeviceStore().getLastDevice();
+            if (lastDevice == null) {                                                               //Never connected to a device
+                startBleScanActivity();                                                             //Launch the BleScanActivity to scan for BLE devices
+                return;
+            }
+            bleDeviceAddress = lastDevice.getAddress();
+            bleDeviceName = lastDevice.getName();
+            showDevice(bleDeviceAddress);                                                           //Graph follows the device
+            stateConnection = StateConnection.CONNECTING;                                           //Have an address so we are going to start connecting
+            updateConnectionState();                                                                //Update the screen and menus
+            connectTimeoutHandler.postDelayed(abandonConnectionAttempt, CONNECT_TIMEOUT);           //Start a delayed runnable to time out if connection does not occur
+            bleService.reconnectBle(bleDeviceAddress);                                              //Ask the BleService to connect straight away while it looks for the device
+        } catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+
     // ----------------------------------------------------------------------------------------------------------------
     // Attempt to connect to a Bluetooth device given its address and time out after CONNECT_TIMEOUT milliseconds
     private void connectWithAddress(String address) {
@@ -785,32 +861,164 @@ public class BleMainActivity extends AppCompatActivity {
         });
     }
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Load a session into the graph from the local session logs if id is the name of one, otherwise look it up in the database
+    // Database ids are the upload time in FirebaseUploader.BUCKET_FORMAT, yyyyMMddHHmmss, older uploads used MMddhhmmss
+    // and are still found by that id as the lookup is by the exact key
+    // Buckets have a child for each device that uploaded in that second, the device shown is loaded if it is one of them,
+    // otherwise the first one, while older buckets hold the frames directly
     private void search(String id){
-        Log.d("ID", id);
+        if (new File(sessionDirectory, id + SessionLog.DATA_SUFFIX).isFile()) {
+            loadSession(id);                                                                        //Local history needs no network and no decoding
+            return;
+        }
         DatabaseReference mdb = FirebaseDatabase.getInstance().getReference();
-        final int[] db_num = {1};
-        mdb.child("User").child(id).addValueEventListener(new ValueEventListener() {
+        mdb.child("User").child(id).addListenerForSingleValueEvent(new ValueEventListener() {       //Once, so frames still being uploaded do not keep replacing the graph
             @Override
             public void onDataChange(@NonNull DataSnapshot snapshot) {
-                for(DataSnapshot postSnapshot : snapshot.getChildren()){
-                    String value = postSnapshot.getValue().toString();
-                    Log.d("!@#", value);
-                    //ld_data_.setText(ld_data_.getText() + "\n" + "Data"+String.valueOf(db_num[0])+" : "+value);
-                    db_num[0]++;
+                final SampleWindow window = new SampleWindow(CHART_WINDOW_SAMPLES);
+                final String shownKey = deviceKey(shownDevice.address);
+                DataSnapshot deviceFrames = snapshot;                                               //Frames straight under the bucket unless there are device children
+                if (shownKey != null && snapshot.hasChild(shownKey)) {
+                    deviceFrames = snapshot.child(shownKey);
+                }
+                else {
+                    for (DataSnapshot child : snapshot.getChildren()) {
+                        if (child.hasChildren()) {                                                  //A device, frames are plain strings
+                            deviceFrames = child;
+                            break;
+                        }
                     }
-
-                //Log.d("Database1", value.substring(1, 407));
-                //Log.d("Database2", value.substring(409, 815));
-                //Log.d("Database3", value.substring(817, 1223));
+                }
+                int frames = 0;
+                for (DataSnapshot postSnapshot : deviceFrames.getChildren()) {                      //Push keys sort in upload order
+                    try {
+                        final float[] samples = decodeUploadedFrame(postSnapshot.getValue().toString());
+                        window.append(samples, 0, samples.length);
+                        frames++;
+                    } catch (Exception e) {
+                        Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+                    }
+                }
+                shownDevice.pipeline.showWindow(window);                                            //Pipeline makes the snapshot and asks for the redraw
+                tv_rx_.setText("Uploaded " + id + " - " + frames + " frames, " + window.totalSamples() + " samples");
             }
             @Override
             public void onCancelled(@NonNull DatabaseError error) {
-                Log.e("Error", "fail to load data");
+                Log.e(TAG, "Loading " + id + " from the database failed: " + error.getMessage());
             }
         });
     }
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Samples of one uploaded frame, SampleCodec Base64 or the hex string of the BCD payload that older uploads used
+    // Invalid BCD words come back as NaN either way, which the graph leaves out, a corrupt frame throws IllegalArgumentException
+    private static float[] decodeUploadedFrame(String value) {
+        if (SampleCodec.isEncodedString(value)) {
+            return SampleCodec.decodeString(value);
+        }
+        final byte[] payload = Hex.stringToBytes(value);
+        final float[] samples = new float[payload.length / SampleDecoder.BYTES_PER_SAMPLE];
+        SampleDecoder.decodeBcd16Le(payload, 0, samples, 0, samples.length);
+        return samples;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Read a session log on a background thread into a new sample window, then show it on the graph
+    private void loadSession(final String name) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (SessionLog.Reader reader = SessionLog.Reader.open(sessionDirectory, name)) {
+                    final SampleWindow window = new SampleWindow(CHART_WINDOW_SAMPLES);
+                    final float[] samples = new float[MAX_FRAME_PAYLOAD / SampleDecoder.BYTES_PER_SAMPLE];
+                    final SessionLog.Reader.Cursor cursor = reader.cursor();
+                    int frames = 0;
+                    while (cursor.next()) {
+                        window.append(samples, 0, cursor.readSamples(samples, 0));                  //Window keeps the newest samples
+                        frames++;
+                    }
+                    final int loadedFrames = frames;
+                    shownDevice.pipeline.showWindow(window);                                        //Pipeline makes the snapshot and asks for the redraw
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            tv_rx_.setText("Session " + name + " - " + loadedFrames + " frames, " + window.totalSamples() + " samples");
+                        }
+                    });
+                } catch (Exception e) {
+                    Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+                }
+            }
+        }, TAG + "Session").start();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Export a session log on a background thread and offer it to other apps through the share sheet
+    // Exports the session named in the load box if there is a local log of that name, otherwise the newest session
+    private void exportSession(final SessionExporter.Format format) {
+        final String typed = ((EditText) findViewById(R.id.et_load)).getText().toString();
+        final String[] names = SessionLog.list(sessionDirectory);
+        final String name = new File(sessionDirectory, typed + SessionLog.DATA_SUFFIX).isFile() ? typed
+                : names.length > 0 ? names[names.length - 1] : null;
+        if (name == null) {
+            Toast.makeText(this, "No sessions recorded", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        progressBar.setVisibility(ProgressBar.VISIBLE);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final File directory = new File(getCacheDir(), EXPORT_DIRECTORY);
+                    if (!directory.isDirectory() && !directory.mkdirs()) {
+                        throw new IOException("Cannot create " + directory);
+                    }
+                    final File output = new File(directory, name + format.getSuffix());
+                    final long samples = SessionExporter.export(sessionDirectory, name, format, output); //Streams from the log to the file, constant memory however long the session
+                    Log.i(TAG, "Exported session " + name + ", " + samples + " samples, " + output.length() + " bytes");
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            progressBar.setVisibility(ProgressBar.INVISIBLE);
+                            final Intent shareIntent = new Intent(Intent.ACTION_SEND);
+                            shareIntent.setType(format.getMimeType());
+                            shareIntent.putExtra(Intent.EXTRA_STREAM, FileProvider.getUriForFile(BleMainActivity.this,
+                                    getPackageName() + ".fileprovider", output));                   //Authority matches the provider in the manifest
+                            shareIntent.putExtra(Intent.EXTRA_SUBJECT, "Session " + name);
+                            shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                            startActivity(Intent.createChooser(shareIntent, "Export session " + name));
+                        }
+                    });
+                } catch (final Exception e) {
+                    Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            progressBar.setVisibility(ProgressBar.INVISIBLE);
+                            Toast.makeText(BleMainActivity.this, "Export failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                        }
+                    });
+                }
+            }
+        }, TAG + "Export").start();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Redraw the graph from the newest snapshot, already decimated by the pipeline to the minimum and maximum of each pixel column
+    // Reuses the same Entry objects every time so the cost of a redraw does not grow with acquisition time
     private void drawing() {
+        final ProcessingPipeline pipeline = shownDevice.pipeline;
+        final ProcessingPipeline.RenderSnapshot snapshot = pipeline.takeSnapshot();
+        drawnSnapshot = snapshot;
+        pipeline.setColumns(chart.getWidth());                                                      //One column per pixel, the graph cannot show more detail than that
+        while (cyclesShown < snapshot.getCycles()) {                                                //Mark each completed acquisition cycle
+            cyclesShown++;
+            textTemperature.setText(textTemperature.getText() + "\n" + "==================================");
+        }
+        if (snapshot.getLastSequence() >= 0) {
+            tv_rx_.setText("Received Data - frame " + snapshot.getLastSequence() + " queued for upload");
+        }
 
         LineData data = chart.getData();
 
@@ -819,24 +1027,115 @@ public class BleMainActivity extends AppCompatActivity {
             chart.setData(data);
         }
 
-        ILineDataSet set = data.getDataSetByIndex(0);
-        // set.addEntry(...); // can be called as well
+        LineDataSet set = (LineDataSet) data.getDataSetByIndex(0);
 
         if (set == null) {
             set = createSet();
             data.addDataSet(set);
         }
-        for(int i = 0; i < 300; i++) {
-            data.addEntry(new Entry((float) set.getEntryCount(), grx_arr[i]), 0);
-            data.notifyDataChanged();
+        final int points = snapshot.getPoints();
+        final float[] chartX = snapshot.getX(), chartY = snapshot.getY();
+        while (chartEntryPool.size() < points) {
+            chartEntryPool.add(new Entry());
+        }
+        chartEntries.clear();
+        for (int i = 0; i < points; i++) {
+            final Entry entry = chartEntryPool.get(i);
+            entry.setX(chartX[i]);
+            entry.setY(chartY[i]);
+            chartEntries.add(entry);
         }
+        set.setValues(chartEntries);                                                                //Also recalculates the minimum and maximum of the data set
+        data.notifyDataChanged();
         // let the chart know it's data has changed
         chart.notifyDataSetChanged();
+        chart.invalidate();
+        drawSpectrum();
+
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Redraw the spectrum graph if the pipeline has published a newer spectrum, x is the bin number
+    // Bin k is at k / SPECTRUM_SIZE of the sensor sample rate, from 0 up to half the sample rate
+    private void drawSpectrum() {
+        final ProcessingPipeline.SpectrumSnapshot spectrum = shownDevice.pipeline.takeSpectrum();
+        if (spectrum.getVersion() == spectrumShown) {                                               //Nothing new
+            return;
+        }
+        spectrumShown = spectrum.getVersion();
+        LineData data = spectrumChart.getData();
+        if (data == null) {
+            data = new LineData();
+            spectrumChart.setData(data);
+        }
+        LineDataSet set = (LineDataSet) data.getDataSetByIndex(0);
+        if (set == null) {
+            set = createSet();
+            set.setLabel("Spectrum (" + spectrum.getSize() + " point FFT)");
+            data.addDataSet(set);
+        }
+        final int bins = spectrum.getBins();
+        final float[] magnitudes = spectrum.getMagnitudes();
+        while (spectrumEntryPool.size() < bins) {
+            spectrumEntryPool.add(new Entry());
+        }
+        spectrumEntries.clear();
+        for (int k = 0; k < bins; k++) {
+            final Entry entry = spectrumEntryPool.get(k);
+            entry.setX(k);
+            entry.setY(magnitudes[k]);
+            spectrumEntries.add(entry);
+        }
+        set.setValues(spectrumEntries);
+        data.notifyDataChanged();
+        spectrumChart.notifyDataSetChanged();
+        spectrumChart.invalidate();
+    }
 
-        chart.setVisibleXRangeMaximum(1000);
-        // this automatically refreshes the chart (calls invalidate())
-        chart.moveViewTo(data.getEntryCount(), 50f, YAxis.AxisDependency.LEFT);
+    // ----------------------------------------------------------------------------------------------------------------
+    // The graph has been redrawn, record how long the oldest data it now shows took to get there from the notification
+    private void recordRenderLatency() {
+        final ProcessingPipeline.RenderSnapshot snapshot = drawnSnapshot;
+        if (snapshot == null || snapshot.getVersion() == recordedVersion) {                         //Redrawn without new data
+            return;
+        }
+        if (snapshot.getOldestReceivedTime() != 0 && renderLatency != null) {
+            renderLatency.recordNanos(System.nanoTime() - snapshot.getOldestReceivedTime());
+        }
+        recordedVersion = snapshot.getVersion();
+    }
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Add the data pipeline metrics to the BleService metrics, counts already kept by the pipeline classes are read as gauges
+    private void registerPipelineMetrics(MetricsRegistry metrics) {
+        renderLatency = metrics.histogram("pipeline.latency.render");
+        synchronized (devicePipelines) {                                                            //Devices seen from now on register themselves
+            this.metrics = metrics;
+            for (DevicePipeline device : devicePipelines.values()) {
+                if (!NO_DEVICE.equals(device.address)) {
+                    device.registerMetrics(metrics);
+                }
+            }
+        }
+        firebaseUploader.setLatencyHistogram(metrics.histogram("pipeline.latency.upload"));
+        metrics.gauge("pipeline.upload.dropped_frames", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return firebaseUploader.getDroppedFrames();
+            }
+        });
+        metrics.gauge("pipeline.upload.failures", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return firebaseUploader.getFailures();
+            }
+        });
+        metrics.gauge("pipeline.render.frames_skipped", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return renderScheduler.getFramesSkipped();
+            }
+        });
     }
 
     private LineDataSet createSet() {
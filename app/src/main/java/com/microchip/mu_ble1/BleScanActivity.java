@@ -19,32 +19,30 @@ package com.microchip.mu_ble1;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
-import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
-import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
-import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.recyclerview.widget.SimpleItemAnimator;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -61,12 +59,18 @@ public class BleScanActivity extends AppCompatActivity {
     private static final int REQ_CODE_ENABLE_BT = 1;                                                //Code to identify activity that enables Bluetooth
     private static final UUID EXAMPLE_SERVICE_UUID = UUID.fromString("24e84f52-d20c-4387-85a6-2cea19259c7d"); //Advertised service UUID for scan filter
     private static final long SCAN_TIME = 20000;                                                    //Length of time in milliseconds to scan for BLE devices
+    private static final boolean SCAN_FILTERING = true;                                             //Only report devices that match the scan filters, false to show every device in range
+    private static final long LIST_REFRESH_INTERVAL = 250;                                          //Shortest time in milliseconds between updates of the device list on the screen
 
     private ProgressBar progressBar;                                                                //Progress bar (indeterminate circular) to show that activity is busy connecting to BLE device
     private BluetoothAdapter btAdapter;                                                             //BluetoothAdapter represents the Bluetooth radio in the phone
-    private BluetoothLeScanner bleScanner;                                                          //BluetoothLeScanner handles the scanning for BLE devices that are advertising
-    private Handler stopScanHandler;                                                                //Handler to stop the scan after a time delay
-    private DeviceListAdapter deviceListAdapter;                                                    //ArrayAdapter to manage the ListView showing the devices found during the scan
+    private ScanEngine scanEngine;                                                                  //ScanEngine handles the scanning for BLE devices that are advertising
+    private final ScannedDeviceTracker scannedDevices = new ScannedDeviceTracker();                 //Each device found, with its signal strength and when it was last seen
+    private boolean scannedDevicesChanged;                                                          //A result changed the list since it was last shown
+    private boolean listRefreshPending;                                                             //The listRefreshRunnable has been posted
+    private long lastListRefresh;                                                                   //When the list was last shown, from SystemClock.uptimeMillis()
+    private Handler stopScanHandler;                                                                //Handler to stop the scan after a time delay, and to refresh the list
+    private DeviceListAdapter deviceListAdapter;                                                    //ListAdapter to manage the RecyclerView showing the devices found during the scan
     private boolean areScanning;                                                                    //Indicator that a scan is in progress
     private TextView deviceListText;                                                                //Text to indicate whether devices have been found by the scan
 
@@ -87,10 +91,13 @@ public class BleScanActivity extends AppCompatActivity {
         progressBar = findViewById(R.id.toolbar_progress_bar);                                      //Get a reference to the progress bar
         progressBar.setIndeterminate(true);                                                         //Make the progress bar indeterminate (circular)
         deviceListText = findViewById(R.id.deviceListText);                                         //Text to indicate devices found or not found
-        ListView deviceListView = findViewById(R.id.deviceListView);                                //ListView to show all the devices found during the scan
-        deviceListView.setOnItemClickListener(deviceListClickListener);                             //Click listener for when the user selects an item in the ListView
-        deviceListAdapter = new DeviceListAdapter(this, R.layout.scan_list_item);           //Create new ArrayAdapter to hold a list of BLE devices found during the scan
-        deviceListView.setAdapter(deviceListAdapter);                                               //Bind our ArrayAdapter the new list adapter in our ListActivity
+        RecyclerView deviceListView = findViewById(R.id.deviceListView);                            //RecyclerView to show all the devices found during the scan
+        deviceListView.setLayoutManager(new LinearLayoutManager(this));                             //Show the devices in a vertical list
+        if (deviceListView.getItemAnimator() instanceof SimpleItemAnimator) {                       //RSSI changes all the time, so do not fade rows in and out when their text changes
+            ((SimpleItemAnimator) deviceListView.getItemAnimator()).setSupportsChangeAnimations(false);
+        }
+        deviceListAdapter = new DeviceListAdapter(R.layout.scan_list_item, deviceListClickListener); //Create new ListAdapter to show the list of BLE devices found during the scan
+        deviceListView.setAdapter(deviceListAdapter);                                               //Bind the list adapter to the RecyclerView
         stopScanHandler = new Handler(Looper.getMainLooper());                                      //Create a handler for a delayed runnable that will stop the scan after a time delay
         try {
             btAdapter = BluetoothAdapter.getDefaultAdapter();                                       //Get a reference to the BluetoothAdapter
@@ -98,7 +105,8 @@ public class BleScanActivity extends AppCompatActivity {
                 Log.e(TAG, "Unable to obtain a BluetoothAdapter");
                 finish();                                                                           //End the activity, can do nothing without a BluetoothAdapter
             }
-            bleScanner = btAdapter.getBluetoothLeScanner();                                         //Get a BluetoothLeScanner so we can scan for BLE devices
+            scanEngine = new AndroidScanEngine(btAdapter, SCAN_FILTERING ? createScanFilters() : new ArrayList<ScanFilter>(),
+                    ScanSettings.SCAN_MODE_LOW_LATENCY, AndroidScanEngine.DEFAULT_REPORT_DELAY);    //Scan with the filters offloaded to the controller and batched results where supported
         }
         catch (Exception e) {
             Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
@@ -132,6 +140,8 @@ public class BleScanActivity extends AppCompatActivity {
         super.onPause();                                                                            //Call superclass (AppCompatActivity) onPause method
         stopScanHandler.removeCallbacks(stopScanRunnable);                                          //Stop the scan timeout handler from calling the runnable to stop the scan
         stopScan();                                                                                 //Stop any scan in progress
+        stopScanHandler.removeCallbacks(listRefreshRunnable);                                       //No need to update a list that is not on the screen
+        listRefreshPending = false;
     }
 
     /******************************************************************************************************************
@@ -192,27 +202,32 @@ public class BleScanActivity extends AppCompatActivity {
      * Methods for starting and stopping scans
      */
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Scan filters, a device is reported if it matches any one of them
+    private List<ScanFilter> createScanFilters() {
+        List<ScanFilter> scanFilterList = new ArrayList<>();                                        //Create a new ScanFilter list
+        scanFilterList.add(new ScanFilter.Builder().setDeviceName("AVR-BLE_1B19").build());         //Add a device name to the filter list
+        scanFilterList.add(new ScanFilter.Builder().setDeviceName("PIC-BLE_519E").build());         //Add a device name to the filter list
+        scanFilterList.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(EXAMPLE_SERVICE_UUID)).build()); //Add a service UUID to the filter list
+        final int MCHP_MFR_ID = 0x00cd; //TODO Change this to your own ID                           //Microchip's Bluetooth SIG assigned manufacturer ID
+        scanFilterList.add(new ScanFilter.Builder().setManufacturerData(MCHP_MFR_ID, new byte[]{1, 2, 3, 4}).build()); //Add manufacturer specific data to the filter list
+        return scanFilterList;
+    }
+
     // ----------------------------------------------------------------------------------------------------------------
     // Starts a scan
     private void startScan() {
         try {
             if (!areScanning) {                                                                     //Only start scanning if not already scanning
-                if (btAdapter.isEnabled() && bleScanner != null) {                                  //Check that Bluetooth is enabled
+                if (btAdapter.isEnabled() && scanEngine != null) {                                  //Check that Bluetooth is enabled
                     areScanning = true;                                                             //Indicate that we are scanning - used for menu context and to avoid starting scan twice
                     deviceListText.setText(R.string.no_devices_found);                                     //Show "No devices found" until scan returns a result
-                    deviceListAdapter.clear();                                                      //Clear list of BLE devices found
-                    deviceListAdapter.notifyDataSetChanged();                                       //Update the display to clear previous devices from the screen
+                    scannedDevices.clear();                                                         //Clear list of BLE devices found
+                    scannedDevicesChanged = false;
+                    deviceListAdapter.submitList(new ArrayList<DeviceListItem>());                  //Update the display to clear previous devices from the screen
                     progressBar.setVisibility(ProgressBar.VISIBLE);                                 //Show the circular progress bar
                     invalidateOptionsMenu();                                                        //The options menu needs to be refreshed
-                    List<ScanFilter> scanFilterList = new ArrayList<>();                            //Create a new ScanFilter list
-                    scanFilterList.add(new ScanFilter.Builder().setDeviceName("AVR-BLE_1B19").build()); //Add a device name to the filter list
-                    scanFilterList.add(new ScanFilter.Builder().setDeviceName("PIC-BLE_519E").build()); //Add a device name to the filter list
-                    scanFilterList.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(EXAMPLE_SERVICE_UUID)).build()); //Add a service UUID to the filter list
-                    final int MCHP_MFR_ID = 0x00cd; //TODO Change this to your own ID               //Microchip's Bluetooth SIG assigned manufacturer ID
-                    scanFilterList.add(new ScanFilter.Builder().setManufacturerData(MCHP_MFR_ID, new byte[]{1, 2, 3, 4}).build()); //Add manufacturer specific data to the filter list
-                    ScanSettings scanSettings = new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).build(); //Set the scan mode to low latency
-                    //bleScanner.startScan(scanFilterList, scanSettings, bleScanCallback);            //Start scanning with ScanFilter and provide a callback for scan results
-                    bleScanner.startScan(bleScanCallback);                                          //Start a scan with no filtering and provide a callback for scan results
+                    scanEngine.startScan(scanListener);                                             //Start a scan and provide a listener for scan results
                     stopScanHandler.postDelayed(stopScanRunnable, SCAN_TIME);                       //Create delayed runnable that will stop the scan when it runs after SCAN_TIME milliseconds
                 }
                 else {                                                                              //Radio needs to be enabled
@@ -231,7 +246,7 @@ public class BleScanActivity extends AppCompatActivity {
     private void stopScan() {
         try {
             if (areScanning) {                                                                      //See if still scanning
-                bleScanner.stopScan(bleScanCallback);                                               //Stop scanning
+                scanEngine.stopScan();                                                              //Stop scanning
                 areScanning = false;                                                                //Indicate that we are not scanning
                 progressBar.setVisibility(ProgressBar.INVISIBLE);                                   //Hide circular progress bar
                 invalidateOptionsMenu();                                                            //The options menu needs to be refreshed
@@ -252,26 +267,58 @@ public class BleScanActivity extends AppCompatActivity {
     };
 
     // ----------------------------------------------------------------------------------------------------------------
-    // Scan callback for API 21 (Lollipop, Android 5.0) or later. BluetoothLeScanner calls this method when a new device is discovered during a scan.
-    // The callback is only called for devices with advertising packets meeting the scan filter parameters.
-    private ScanCallback bleScanCallback = new ScanCallback() {
+    // Scan listener, ScanEngine calls this on the main thread with each batch of advertisements found during a scan.
+    // Only devices with advertising packets meeting the scan filter parameters are reported.
+    private final ScanEngine.Listener scanListener = new ScanEngine.Listener() {
         @Override
-        public void onScanResult(int callbackType, ScanResult result) {
-            try {
-                BluetoothDevice device = result.getDevice();                                        //Get the device found by the scan
-                deviceListAdapter.addDevice(device);                                                //Add the new BleDevice object to our list adapter that displays a list on the screen
-                deviceListAdapter.notifyDataSetChanged();                                           //Refresh the list on the screen
-                deviceListText.setText(R.string.devices_found);                                           //Show "Devices found:" because we have found a device
-                Log.i(TAG, "ScanResult: Addr - " + device.getAddress() + ", Name - " + device.getName());
+        public void onScanResult(String address, String name, int rssi, long timestamp) {
+            if (scannedDevices.update(address, name, rssi, timestamp)) {                            //Record the device, see if it is new or its details changed
+                scannedDevicesChanged = true;
+                Log.i(TAG, "ScanResult: Addr - " + address + ", Name - " + name + ", RSSI - " + rssi);
             }
-            catch (Exception e) {
-                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+
+        @Override
+        public void onScanBatchComplete() {
+            if (scannedDevicesChanged && !listRefreshPending) {                                     //Something changed and no refresh is waiting, so schedule one
+                listRefreshPending = true;
+                final long delay = lastListRefresh + LIST_REFRESH_INTERVAL - SystemClock.uptimeMillis(); //Wait until the refresh interval since the last refresh has passed
+                stopScanHandler.postDelayed(listRefreshRunnable, Math.max(0, delay));
             }
         }
 
         @Override
         public void onScanFailed(int errorCode) {
             Log.e(TAG, "Scan Failed: Error Code: " + errorCode);
+            stopScanHandler.removeCallbacks(stopScanRunnable);                                      //Nothing left for the timeout to stop
+            stopScan();
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Runnable used to show the changes to the device list, at most once every LIST_REFRESH_INTERVAL milliseconds
+    // however often advertisements arrive. The ListAdapter works out what changed with DiffUtil on a background thread
+    // and only rebinds the rows that changed.
+    private final Runnable listRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                listRefreshPending = false;
+                lastListRefresh = SystemClock.uptimeMillis();
+                if (!scannedDevicesChanged) {
+                    return;
+                }
+                scannedDevicesChanged = false;
+                final ArrayList<DeviceListItem> items = new ArrayList<>(scannedDevices.size());    //Snapshot of the list, the ListAdapter compares it with the last one
+                for (int i = 0; i < scannedDevices.size(); i++) {
+                    items.add(new DeviceListItem(scannedDevices.get(i)));
+                }
+                deviceListAdapter.submitList(items);                                                //Refresh the list on the screen
+                deviceListText.setText(items.isEmpty() ? R.string.no_devices_found : R.string.devices_found); //Show "Devices found:" because we have found a device
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
         }
     };
 
@@ -280,74 +327,103 @@ public class BleScanActivity extends AppCompatActivity {
      */
 
     // ----------------------------------------------------------------------------------------------------------------
-    // Adapter for holding devices found through scanning
-    private static class DeviceListAdapter extends ArrayAdapter<BluetoothDevice> {
-
-        private ArrayList<BluetoothDevice> btDevices;                                               //An ArrayList to hold the BluetoothDevice objects in the list
-        private int layoutResourceId;
-        private Context context;
-
-        public DeviceListAdapter(Context context, int layoutResourceId) {                           //Constructor for the DeviceListAdapter
-            super(context, layoutResourceId);
-            this.layoutResourceId = layoutResourceId;
-            this.context = context;
-            btDevices = new ArrayList<>();                                                          //Create the list to hold BleDevice objects
+    // What one row of the list shows, copied from the ScannedDeviceTracker so it does not change after it is submitted
+    private static final class DeviceListItem {
+        final String address;
+        final String name;
+        final int rssi;                                                                             //Smoothed RSSI in dBm
+
+        DeviceListItem(ScannedDeviceTracker.Device device) {
+            address = device.getAddress();
+            name = device.getName();
+            rssi = device.getAverageRssi();
         }
+    }
 
-        public void addDevice(BluetoothDevice device) {                                             //Add a new device to the list
-            if(!btDevices.contains(device)) {                                                       //See if device is not already in the list
-                btDevices.add(device);                                                              //Add the device to the list
-            }
+    // ----------------------------------------------------------------------------------------------------------------
+    // DiffUtil callback, rows are the same device if the address is the same and need redrawing if name or RSSI changed
+    private static final DiffUtil.ItemCallback<DeviceListItem> DEVICE_DIFF = new DiffUtil.ItemCallback<DeviceListItem>() {
+        @Override
+        public boolean areItemsTheSame(DeviceListItem oldItem, DeviceListItem newItem) {
+            return oldItem.address.equals(newItem.address);
         }
 
-        public void clear() {                                                                       //Clear the list of devices
-            btDevices.clear();
+        @Override
+        public boolean areContentsTheSame(DeviceListItem oldItem, DeviceListItem newItem) {
+            return oldItem.rssi == newItem.rssi && (oldItem.name == null ? newItem.name == null : oldItem.name.equals(newItem.name));
         }
+    };
 
-        @Override
-        public int getCount() {                                                                     //Get the number of devices in the list
-            return btDevices.size();
+    // ----------------------------------------------------------------------------------------------------------------
+    // Interface for the click on a row of the device list
+    private interface OnDeviceClickListener {
+        void onDeviceClick(DeviceListItem item);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Adapter for showing the devices found through scanning, strongest signal first
+    private static class DeviceListAdapter extends ListAdapter<DeviceListItem, DeviceListAdapter.DeviceViewHolder> {
+
+        private final int layoutResourceId;
+        private final OnDeviceClickListener clickListener;
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // Holds the views of one row so they are only looked up when the row is created
+        static class DeviceViewHolder extends RecyclerView.ViewHolder {
+            final TextView textViewName;
+            final TextView textViewAddress;
+
+            DeviceViewHolder(View itemView) {
+                super(itemView);
+                textViewName = itemView.findViewById(R.id.device_name);                             //Get the TextView for the name
+                textViewAddress = itemView.findViewById(R.id.device_address);                       //Get the TextView for the address
+            }
         }
 
-        @Override
-        public BluetoothDevice getItem(int i) {                                                      //Get a device from the list based on its position
-            return btDevices.get(i);
+        public DeviceListAdapter(int layoutResourceId, OnDeviceClickListener clickListener) {     //Constructor for the DeviceListAdapter
+            super(DEVICE_DIFF);
+            this.layoutResourceId = layoutResourceId;
+            this.clickListener = clickListener;
         }
 
+        //Called by the RecyclerView to create a row, rows that scroll off the screen are reused
         @Override
-        public long getItemId(int i) {                                                              //Get device ID which is just its position in the list
-            return i;
+        public DeviceViewHolder onCreateViewHolder(ViewGroup parentView, int viewType) {
+            final View view = LayoutInflater.from(parentView.getContext()).inflate(layoutResourceId, parentView, false); //Inflate a new view containing the device information
+            final DeviceViewHolder holder = new DeviceViewHolder(view);
+            view.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    final int position = holder.getAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION) {                                     //Row may be on its way out of the list
+                        clickListener.onDeviceClick(getItem(position));
+                    }
+                }
+            });
+            return holder;
         }
 
-        //Called by the Android OS to show each item in the view. View items that scroll off the screen are reused.
+        //Called by the RecyclerView to show a device in a row
         @Override
-        public View getView(int position, View convertView, ViewGroup parentView) {
-            if (convertView == null) {                                                              //Only inflate a new layout if not recycling a view
-                LayoutInflater inflater = ((Activity) context).getLayoutInflater();                 //Get the layout inflater for this activity
-                convertView = inflater.inflate(layoutResourceId, parentView, false);    //Inflate a new view containing the device information
-            }
-            BluetoothDevice device = btDevices.get(position);                                       //Get device item based on the position
-            TextView textViewAddress = convertView.findViewById(R.id.device_address);               //Get the TextView for the address
-            textViewAddress.setText(device.getAddress());                                           //Set the text to the name of the device
-            TextView textViewName = convertView.findViewById(R.id.device_name);                     //Get the TextView for the name
-            textViewName.setText(device.getName());                                                 //Set the text to the name of the device
-            return convertView;
+        public void onBindViewHolder(DeviceViewHolder holder, int position) {
+            final DeviceListItem item = getItem(position);                                          //Get device item based on the position
+            holder.textViewAddress.setText(item.address + "   " + item.rssi + " dBm");              //Set the text to the address and signal strength of the device
+            holder.textViewName.setText(item.name);                                                 //Set the text to the name of the device
         }
     }
 
     // ----------------------------------------------------------------------------------------------------------------
     // Device has been selected in the list adapter
     // Return name and address of BLE device to the BleMainActivity that started this activity
-    private AdapterView.OnItemClickListener deviceListClickListener = new AdapterView.OnItemClickListener() {
+    private final OnDeviceClickListener deviceListClickListener = new OnDeviceClickListener() {
         @Override
-        public void onItemClick(AdapterView<?> adapterView, View view, int i, long l) {
-            final BluetoothDevice device = deviceListAdapter.getItem(i);		                    //Get the device from the list adapter
+        public void onDeviceClick(DeviceListItem device) {
             stopScanHandler.removeCallbacks(stopScanRunnable);                                      //Stop the scan timeout handler from calling the runnable to stop the scan
             stopScan();                                                                             //Stop a scan that might still be running
             final Intent intent = new Intent();                                                     //Create Intent to return information to the BleMainActivity that started this activity
             if (device != null) {                                                                   //Check that a valid device was received
-                intent.putExtra(EXTRA_SCAN_NAME, device.getName());                                 //Add BLE device name to the Intent
-                intent.putExtra(EXTRA_SCAN_ADDRESS, device.getAddress());                           //Add BLE device address to the Intent
+                intent.putExtra(EXTRA_SCAN_NAME, device.name);                                      //Add BLE device name to the Intent
+                intent.putExtra(EXTRA_SCAN_ADDRESS, device.address);                                //Add BLE device address to the Intent
                 setResult(Activity.RESULT_OK, intent);                                              //Set the Intent to return a result to the calling activity with the selected BLE name and address
             }
             else {
@@ -26,19 +26,30 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
-import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Service for handling Bluetooth communication with a Microchip Bluetooth Low Energy module.
@@ -54,21 +65,57 @@ public class BleService extends Service {
     public final static String ACTION_BLE_DISCONNECTED =       "com.microchip.mu_ble1.ACTION_BLE_DISCONNECTED";      //Identifier for Intent to announce that a BLE device disconnected
     public final static String ACTION_BLE_DISCOVERY_DONE =     "com.microchip.mu_ble1.ACTION_BLE_DISCOVERY_DONE";    //Identifier for Intent to announce that service discovery is complete
     public final static String ACTION_BLE_DISCOVERY_FAILED =   "com.microchip.mu_ble1.ACTION_BLE_DISCOVERY_FAILED";  //Identifier for Intent to announce that service discovery failed to find the service and characteristics
-    public final static String ACTION_BLE_NEW_DATA_RECEIVED =  "com.microchip.mu_ble1.ACTION_BLE_NEW_DATA_RECEIVED"; //Identifier for Intent to announce a new characteristic notification
+    public final static String ACTION_BLE_PROFILE_APPLIED =    "com.microchip.mu_ble1.ACTION_BLE_PROFILE_APPLIED";   //Identifier for Intent to announce the connection parameters granted for the connection profile
+    public final static String EXTRA_PROFILE =                 "com.microchip.mu_ble1.EXTRA_PROFILE";                //Name of the ConnectionProfile in an ACTION_BLE_PROFILE_APPLIED Intent
+    public final static String EXTRA_MTU =                     "com.microchip.mu_ble1.EXTRA_MTU";                    //Granted MTU in an ACTION_BLE_PROFILE_APPLIED Intent
+    public final static String EXTRA_PAYLOAD_SIZE =            "com.microchip.mu_ble1.EXTRA_PAYLOAD_SIZE";           //Data bytes per notification in an ACTION_BLE_PROFILE_APPLIED Intent
+    public final static String EXTRA_TX_PHY =                  "com.microchip.mu_ble1.EXTRA_TX_PHY";                 //Granted transmit PHY in an ACTION_BLE_PROFILE_APPLIED Intent
+    public final static String EXTRA_RX_PHY =                  "com.microchip.mu_ble1.EXTRA_RX_PHY";                 //Granted receive PHY in an ACTION_BLE_PROFILE_APPLIED Intent
 
     private final static UUID UUID_TRANSPARENT_PRIVATE_SERVICE = UUID.fromString("6E400001-B5A3-F393-E0A9-E50E24DCCA9E"); //Private service for Microchip Transparent UART
     private final static UUID UUID_TRANSPARENT_SEND_CHAR =       UUID.fromString("6E400002-B5A3-F393-E0A9-E50E24DCCA9E"); //Characteristic for Transparent UART to send to RN or BM module, properties - write, write no response
     private final static UUID UUID_TRANSPARENT_RECEIVE_CHAR =    UUID.fromString("6E400003-B5A3-F393-E0A9-E50E24DCCA9E"); //Characteristic for Transparent UART to receive from RN or BM module, properties - notify, write, write no response
     private final static UUID UUID_CCCD =                        UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"); //Descriptor to enable notification for a characteristic
+    public final static int RECEIVE_BUFFER_SIZE =                65536;                           //Size of the Transparent UART receive buffer, must be a power of two
 
-    private final Queue<byte[]> characteristicWriteQueue = new LinkedList<>();                      //Queue to buffer multiple writes since the radio does one at a time
-    private final Queue<BluetoothGattDescriptor> descriptorWriteQueue = new LinkedList<>();         //Queue to buffer multiple writes since the radio does one at a time
+    public final static String EXTRA_ADDRESS =                 "com.microchip.mu_ble1.EXTRA_ADDRESS";                //Address of the device that every ACTION_BLE_ Intent is about
+    public final static int MAX_SESSIONS =                       7;                               //Most devices connected at the same time, Android supports about 7 connections
+    private final static long RECONNECT_SCAN_TIME =              3000;                            //Milliseconds to look for a known device before leaving it to a background connection
+
+    private final ConcurrentHashMap<String, DeviceSession> sessions = new ConcurrentHashMap<>();     //Connected and connecting devices, keyed by address
+    private volatile DeviceSession primarySession;                                                  //Device last connected with connectBle(), used by the single device methods
+    private volatile ConnectionProfile connectionProfile = ConnectionProfile.HIGH_THROUGHPUT;       //Profile negotiated after service discovery
+    private HandlerThread gattThread;                                                               //Thread that the GATT operation queues of all devices run on
     private BluetoothAdapter btAdapter;                                                             //BluetoothAdapter is used to control the Bluetooth radio
-    private BluetoothGatt btGatt;                                                                   //BluetoothGatt is used to control the Bluetooth connection
-    private BluetoothGattCharacteristic transparentSendCharacteristic;                              //Characteristic used to send data from the Android device to the BM7x or RN487x module
-    private ByteArrayOutputStream transparentReceiveOutput = new ByteArrayOutputStream();           //Object to hold incoming bytes from the Transparent UART Receive characteristic until the Main Activity requests them
-    private int CharacteristicSize = 20;                                                            //To keep track of the maximum length of the characteristics (always 3 less than the real MTU size to fit in opcode and handle)
-    private int connectionAttemptCountdown = 0;                                                     //To keep track of connection attempts for greater reliability
+    private HandlerThread dataThread;                                                               //Thread that delivers batches of received data to the DataListener
+    private Handler dataHandler;                                                                    //Handler to run the data delivery on the dataThread
+    private volatile DataListener dataListener;                                                     //Listener for received data, null if data is read with readFromTransparentUART()
+    private volatile int dataBatchBytes = 1;                                                        //Deliver a batch as soon as this many bytes are waiting
+    private volatile long dataBatchWindow = 0;                                                      //or when this many milliseconds have passed since the first byte of the batch arrived
+    private byte[] dataBatch;                                                                       //Reused array that each batch is delivered in, only used on the dataThread
+    private final MetricsRegistry metrics = new MetricsRegistry();                                  //Link metrics recorded here, the data pipeline adds its own, shown by dumpsys
+    private final MetricsRegistry.Counter notificationsIn = metrics.counter("ble.in.notifications");
+    private final MetricsRegistry.Counter bytesIn = metrics.counter("ble.in.bytes");
+    private final MetricsRegistry.Counter batchesOut = metrics.counter("ble.out.batches");          //Batches handed to the DataListener
+    private final MetricsRegistry.Counter bytesOut = metrics.counter("ble.out.bytes");
+    private final MetricsRegistry.Counter writeRequests = metrics.counter("ble.write.requests");     //Calls to writeToTransparentUART
+    private final MetricsRegistry.Counter writeBytes = metrics.counter("ble.write.bytes");
+    private final MetricsRegistry.Counter overflowNotifications = metrics.counter("ble.receive.overflow.notifications"); //Notifications that did not fit in the receive buffer
+    private final MetricsRegistry.Counter overflowBytes = metrics.counter("ble.receive.overflow.bytes");
+    private final MetricsRegistry.HighWaterMark receiveBufferHigh = metrics.highWaterMark("ble.receive.buffer.bytes");
+    private KnownDeviceStore knownDevices;                                                          //Devices connected to before, with their last known GATT layout
+    private Handler mainHandler;                                                                    //Handler for the reconnect scan, which is started and stopped on the main thread
+    private ScanEngine reconnectScan;                                                               //Short scan for a known device that is being reconnected, null when not scanning
+    private String reconnectAddress;                                                                //Device the reconnect scan is looking for
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Interface for receiving data from the Transparent UART without a broadcast for every notification
+    // Called on the BleService data thread with the address of the device that sent the data
+    // The array is reused for the next batch after the method returns
+    // receivedTime is the System.nanoTime() of the newest notification in the batch, for measuring latency downstream
+    public interface DataListener {
+        void onDataReceived(String address, byte[] data, int length, long receivedTime);
+    }
 
     // ----------------------------------------------------------------------------------------------------------------
     // Binder to return a reference to this BleService so clients of the service can access it's methods
@@ -76,6 +123,46 @@ public class BleService extends Service {
      * Methods for handling creation and binding of the BleService.
      */
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Service created
+    // Start the thread that delivers received data to the DataListener
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        dataThread = new HandlerThread(TAG + "Data");                                               //Dedicated thread so data delivery never waits for the main thread
+        dataThread.start();
+        dataHandler = new Handler(dataThread.getLooper());
+        gattThread = new HandlerThread(TAG + "Gatt");                                               //GATT operations are queued and timed out on their own thread
+        gattThread.start();
+        mainHandler = new Handler(Looper.getMainLooper());
+        knownDevices = new KnownDeviceStore(this);                                                  //Read the devices remembered from earlier connections
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Print the metrics and the state of each connection, for adb shell dumpsys activity service BleService
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        try {
+            metrics.dump(writer);
+            writer.println("Devices: " + sessions.size());
+            for (DeviceSession session : sessions.values()) {
+                writer.printf("  %s %s payload %d, notifications %d, received %d bytes at %.1f bytes/s, delivered %d bytes, overflow %d bytes%n",
+                        session.address, session.connected ? "connected" : "not connected", session.getEffectivePayloadSize(),
+                        session.notifications, session.bytesReceived, session.getReceiveRate(), session.bytesDelivered, session.getReceiveOverflowBytes());
+            }
+            writer.flush();
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Metrics of the link, the data pipeline adds its own
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
     // ----------------------------------------------------------------------------------------------------------------
     // Client Activity has bound to our Service
     @Override
@@ -101,6 +188,22 @@ public class BleService extends Service {
         BleService getService() {
             return BleService.this;
         }
+
+        // Register the listener for received data, replacing any previous listener
+        // A batch is delivered when batchBytes bytes are waiting or batchWindow milliseconds after the first byte arrived
+        public void registerDataListener(DataListener listener, int batchBytes, long batchWindow) {
+            BleService.this.registerDataListener(listener, batchBytes, batchWindow);
+        }
+
+        // Unregister the listener for received data, data is then buffered until read with readFromTransparentUART()
+        public void unregisterDataListener(DataListener listener) {
+            BleService.this.unregisterDataListener(listener);
+        }
+
+        // Metrics of the link, the data pipeline can add its own
+        public MetricsRegistry getMetrics() {
+            return metrics;
+        }
     }
     @Override
     public boolean onUnbind(Intent intent) {
@@ -114,9 +217,14 @@ public class BleService extends Service {
     public void onDestroy() {
         try {
             unregisterReceiver(broadcastReceiver);                                                  //Unregister receiver to handle Intents from the BluetoothAdapter
-            if (btGatt != null) {                                                                   //See if there is an existing Bluetooth connection
-                btGatt.close();                                                                     //Close the connection as the service is ending
+            stopReconnectScan();
+            for (DeviceSession session : sessions.values()) {                                      //Close every connection as the service is ending
+                session.close();
             }
+            sessions.clear();
+            dataListener = null;
+            dataThread.quit();                                                                      //Stop the data delivery thread
+            gattThread.quitSafely();                                                                //Stop the GATT operation thread once the queues have been cancelled
         }
         catch (Exception e) {
             Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
@@ -154,207 +262,589 @@ public class BleService extends Service {
         }
     };
 
+
     /******************************************************************************************************************
-     * Callback methods for handling events related to the BluetoothGatt connection
+     * Device sessions, one for each connected device
      */
 
     // ----------------------------------------------------------------------------------------------------------------
-    // GATT callback methods for GATT events such as connecting, discovering services, write completion, etc.
-    private final BluetoothGattCallback btGattCallback = new BluetoothGattCallback() {
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {         //Connected or disconnected
-            try {
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    connectionAttemptCountdown = 0;                                                 //Stop counting connection attempts
-                    switch (newState) {
-                        case BluetoothProfile.STATE_CONNECTED: {                                    //Are now connected
-                            Log.i(TAG, "Connected to BLE device");
-                            transparentReceiveOutput.reset();                                       //Reset (empty) the ByteArrayOutputStream of any data left over from a previous connection
-                            sendBroadcast(new Intent(ACTION_BLE_CONNECTED));                        //Let the BleMainActivity know that we are connected by broadcasting an Intent
-                            descriptorWriteQueue.clear();                                           //Clear write queues in case there was something left in the queue from the previous connection
-                            characteristicWriteQueue.clear();
-                            btGatt.discoverServices();                                              //Discover services after successful connection
-                            break;
-                        }
-                        case BluetoothProfile.STATE_DISCONNECTED: {                                 //Are now disconnected
-                            Log.i(TAG, "Disconnected from BLE device");
-                            sendBroadcast(new Intent(ACTION_BLE_DISCONNECTED));                     //Let the BleMainActivity know that we are disconnected by broadcasting an Intent
-                        }
+    // Everything that belongs to one connection: its BluetoothGatt and callback, GATT operation queue, receive buffer,
+    // negotiated connection parameters and statistics. Devices do not wait for each other, each has its own queue,
+    // and the data of all devices is delivered on the one data thread, tagged with the device address.
+    // A session created with connectTransport() runs over a UartTransport, such as a SimulatedUartPeripheral, instead
+    // of a BluetoothGatt. Everything from the receive buffer onwards is the same for both.
+    public class DeviceSession {
+        private final String address;
+        private final BluetoothDevice btDevice;                                                     //Null for a session over a UartTransport
+        private final UartTransport transport;                                                      //Null for a Bluetooth LE session
+        private final ArrayDeque<byte[]> transportWrites = new ArrayDeque<>();                      //Writes waiting for the transport to accept them, only used on the gattThread
+        private int transportWriteOffset;                                                           //Bytes of the first waiting write already accepted
+        private Handler transportHandler;                                                           //Runs the transport writes on the gattThread
+        private final GattOperationScheduler gattScheduler;                                         //Queue for all GATT operations since the radio does one at a time per connection
+        private final ConnectionProfileManager profileManager;                                      //Negotiates MTU, PHY and connection priority and records what was granted
+        private final ByteRingBuffer transparentReceiveBuffer = new ByteRingBuffer(RECEIVE_BUFFER_SIZE); //Holds incoming bytes from the Transparent UART Receive characteristic until they are delivered or read
+        private final AtomicBoolean dataDeliveryPending = new AtomicBoolean();                      //A delivery has been posted to the dataHandler, possibly delayed
+        private final AtomicBoolean dataDeliveryImmediate = new AtomicBoolean();                    //An undelayed delivery has been posted to the dataHandler
+        private volatile BluetoothGatt btGatt;                                                      //BluetoothGatt is used to control the Bluetooth connection
+        private volatile BluetoothGattCharacteristic transparentSendCharacteristic;                 //Characteristic used to send data from the Android device to the BM7x or RN487x module
+        private volatile boolean connected;                                                         //Connected and not yet disconnected
+        private volatile boolean disconnectRequested;                                               //disconnect() called since the last connect()
+        private int CharacteristicSize = 20;                                                        //To keep track of the maximum length of the characteristics (always 3 less than the real MTU size to fit in opcode and handle)
+        private int connectionAttemptCountdown = 0;                                                 //To keep track of connection attempts for greater reliability
+        private volatile long connectedTime;                                                        //When the connection was made, from SystemClock.elapsedRealtime()
+        private volatile long notifications;                                                        //Notifications received on this connection
+        private volatile long bytesReceived;                                                        //Bytes received in notifications
+        private volatile long bytesDelivered;                                                       //Bytes handed to the DataListener
+        private volatile long lastNotificationTime;                                                 //System.nanoTime() of the latest notification
+
+        private DeviceSession(BluetoothDevice btDevice) {
+            this(btDevice, null);
+        }
+
+        private DeviceSession(UartTransport transport) {
+            this(null, transport);
+            transportHandler = new Handler(gattThread.getLooper());
+        }
+
+        private DeviceSession(BluetoothDevice btDevice, UartTransport transport) {
+            this.btDevice = btDevice;
+            this.transport = transport;
+            address = btDevice != null ? btDevice.getAddress() : transport.getAddress();
+            gattScheduler = new GattOperationScheduler(gattThread.getLooper());
+            gattScheduler.setLatencyHistogram(GattOperationScheduler.Type.CHARACTERISTIC_WRITE, metrics.histogram("gatt.latency.write"));
+            gattScheduler.setLatencyHistogram(GattOperationScheduler.Type.DESCRIPTOR_WRITE, metrics.histogram("gatt.latency.descriptor"));
+            gattScheduler.setLatencyHistogram(GattOperationScheduler.Type.MTU_REQUEST, metrics.histogram("gatt.latency.mtu"));
+            gattScheduler.setLatencyHistogram(GattOperationScheduler.Type.PHY_REQUEST, metrics.histogram("gatt.latency.phy"));
+            profileManager = new ConnectionProfileManager(gattScheduler, new ConnectionProfileManager.Listener() {
+                @Override
+                public void onProfileApplied(ConnectionProfile profile, int mtu, int txPhy, int rxPhy) {
+                    final Intent intent = newIntent(ACTION_BLE_PROFILE_APPLIED, address);
+                    intent.putExtra(EXTRA_PROFILE, profile.name());
+                    intent.putExtra(EXTRA_MTU, mtu);
+                    intent.putExtra(EXTRA_PAYLOAD_SIZE, profileManager.getEffectivePayloadSize());
+                    intent.putExtra(EXTRA_TX_PHY, txPhy);
+                    intent.putExtra(EXTRA_RX_PHY, rxPhy);
+                    sendBroadcast(intent);                                                          //Let the BleMainActivity know how much data each notification can carry
+                }
+            });
+        }
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // Start a new connection attempt, closing any BluetoothGatt left from an earlier one
+        // A direct connection gives up after about 30 seconds, a background (autoConnect) connection waits for the device
+        // to come in range for as long as it takes, but scans slowly so it is not used when the device may be in range now
+        private void connect(boolean autoConnect) {
+            if (transport != null) {                                                                //Nothing to find, the transport connects straight away
+                disconnectRequested = false;
+                transport.connect(transportListener);
+                return;
+            }
+            if (btGatt != null) {                                                                   //See if an existing connection needs to be closed
+                btGatt.close();                                                                     //Faster to create new connection than reconnect with existing BluetoothGatt
+                gattScheduler.setGatt(null);                                                        //Cancel operations queued for the old connection
+            }
+            connectionAttemptCountdown = 3;                                                         //Try to connect three times for reliability
+            disconnectRequested = false;
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {                                   //Build.VERSION_CODES.M = 23 for Android 6
+                btGatt = btDevice.connectGatt(BleService.this, autoConnect, btGattCallback, BluetoothDevice.TRANSPORT_LE); //Connect using BLE if device is dual-mode
+            }
+            else {
+                btGatt = btDevice.connectGatt(BleService.this, autoConnect, btGattCallback);
+            }
+            Log.d(TAG, "Attempting to create a new " + (autoConnect ? "background" : "direct") + " Bluetooth connection to " + address);
+        }
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // Disconnect, or cancel the connection attempt, the session is removed once the disconnection is reported
+        private void disconnect() {
+            disconnectRequested = true;
+            if (transport != null) {
+                transport.disconnect();
+            }
+            else if (btGatt != null) {                                                                   //See if we have a connection before attempting to disconnect
+                connectionAttemptCountdown = 0;                                                     //Stop counting connection attempts
+                btGatt.disconnect();                                                                //Disconnect
+            }
+        }
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // Release the BluetoothGatt, after this the session gets no more callbacks
+        private void close() {
+            connected = false;
+            gattScheduler.setGatt(null);                                                            //Cancel anything still queued
+            if (btGatt != null) {
+                btGatt.close();
+            }
+            if (transport != null) {
+                transport.disconnect();                                                             //Reports nothing more once the session has been told it is disconnected
+                transportHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        transportWrites.clear();
                     }
+                });
+            }
+        }
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // The connection has ended for good, free the connection slot for another device
+        private void onDisconnected() {
+            close();
+            sessions.remove(address, this);
+            if (primarySession == this) {
+                primarySession = null;
+            }
+            sendBroadcast(newIntent(ACTION_BLE_DISCONNECTED, address));                             //Let the BleMainActivity know that we are disconnected by broadcasting an Intent
+        }
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // Write part of an array to this device's Transparent UART
+        private void write(byte[] bytesToWrite, int offset, int length) {
+            if (transport != null && connected) {
+                if (length > 0) {
+                    final byte[] bytes = Arrays.copyOfRange(bytesToWrite, offset, offset + length); //Copy because the caller may reuse the array before the transport takes it
+                    transportHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            transportWrites.add(bytes);
+                            writeToTransport();
+                        }
+                    });
+                    writeRequests.increment();
+                    writeBytes.add(length);
+                }
+            }
+            else if (btGatt != null && transparentSendCharacteristic != null) {                          //See if there is a connection and a valid characteristic
+                if (length > 0) {
+                    gattScheduler.enqueue(gattScheduler.writeChunked(transparentSendCharacteristic, bytesToWrite, offset, length,
+                            GattOperationScheduler.Priority.NORMAL, null));                         //Queue one write for the whole payload, behind any connection setup operations
+                    writeRequests.increment();
+                    writeBytes.add(length);
+                }
+            }
+            else {
+                Log.w(TAG, "Write attempted to " + address + " while not connected");
+            }
+        }
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // Hand waiting writes to the transport until it stops accepting, it calls onWritable() when it can take more
+        private void writeToTransport() {
+            while (!transportWrites.isEmpty()) {
+                final byte[] bytes = transportWrites.peek();
+                transportWriteOffset += transport.write(bytes, transportWriteOffset, bytes.length - transportWriteOffset);
+                if (transportWriteOffset < bytes.length) {                                          //Transport is backed up, wait for onWritable()
+                    return;
+                }
+                transportWrites.poll();
+                transportWriteOffset = 0;
+            }
+        }
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // A notification has arrived, put it in the receive buffer and let the data thread deliver it
+        private void receive(byte[] value, int length) {
+            lastNotificationTime = System.nanoTime();
+            notifications++;
+            bytesReceived += length;
+            notificationsIn.increment();
+            bytesIn.add(length);
+            final int written = transparentReceiveBuffer.write(value, 0, length);                   //Put them in the receive buffer for later
+            if (written < length) {                                                                 //See if any did not fit
+                overflowNotifications.increment();
+                overflowBytes.add(length - written);
+                Log.w(TAG, "Receive buffer overflow on " + address + ", total bytes dropped: " + transparentReceiveBuffer.getOverflowBytes());
+            }
+            receiveBufferHigh.update(transparentReceiveBuffer.available());
+            scheduleDataDelivery();                                                                 //Let the data thread deliver the bytes to the DataListener, if there is one
+        }
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // Post a delivery to the data thread, immediately if a full batch is waiting, otherwise after the batch window
+        // Called on the Binder thread for each notification so it only posts when there is not already a suitable delivery pending
+        private void scheduleDataDelivery() {
+            if (dataListener == null) {                                                             //Nobody to deliver to, data waits in the receive buffer
+                return;
+            }
+            if (transparentReceiveBuffer.available() >= dataBatchBytes) {                           //Full batch waiting so deliver now
+                if (!dataDeliveryImmediate.getAndSet(true)) {
+                    dataDeliveryPending.set(true);
+                    dataHandler.post(deliverData);
                 }
-                else {                                                                              //Something went wrong with the connection or disconnection request
-                    if (connectionAttemptCountdown-- > 0) {                                         //See if we should try another attempt at connecting
-                        gatt.connect();                                                             //Use the existing BluetoothGatt to try connect
-                        Log.d(TAG, "Connection attempt failed, trying again");
+            }
+            else if (!dataDeliveryPending.getAndSet(true)) {                                        //First bytes of a new batch so start the batch window
+                dataHandler.postDelayed(deliverData, dataBatchWindow);
+            }
+        }
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // Runnable on the data thread that drains the receive buffer and hands the bytes to the DataListener
+        private final Runnable deliverData = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dataHandler.removeCallbacks(deliverData);                                       //This delivery takes everything, so any other pending delivery is not needed
+                    dataDeliveryImmediate.set(false);                                               //Clear before reading so bytes arriving from now on schedule a new delivery
+                    dataDeliveryPending.set(false);
+                    final DataListener listener = dataListener;
+                    if (listener == null) {
+                        return;
+                    }
+                    if (dataBatch == null) {
+                        dataBatch = new byte[RECEIVE_BUFFER_SIZE];                                  //Big enough to empty a receive buffer in one batch, shared because all deliveries run on the data thread
                     }
-                    else if (newState == BluetoothProfile.STATE_DISCONNECTED) {                     //Not trying another connection attempt and are not connected
-                        sendBroadcast(new Intent(ACTION_BLE_DISCONNECTED));                         //Let the BleMainActivity know that we are disconnected by broadcasting an Intent
-                        Log.i(TAG, "Unexpectedly disconnected from BLE device");
+                    final long receivedTime = lastNotificationTime;                                 //Read before the buffer so the time is never later than the data
+                    final int length = transparentReceiveBuffer.read(dataBatch, 0, dataBatch.length);
+                    if (length > 0) {
+                        bytesDelivered += length;
+                        batchesOut.increment();
+                        bytesOut.add(length);
+                        listener.onDataReceived(address, dataBatch, length, receivedTime);
                     }
                 }
+                catch (Exception e) {
+                    Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+                }
             }
-            catch (Exception e) {
-                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        };
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // GATT callback methods for GATT events such as connecting, discovering services, write completion, etc.
+        // Each session has its own callback so no lookup is needed to find the device a notification came from
+        private final BluetoothGattCallback btGattCallback = new BluetoothGattCallback() {
+            @Override
+            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {     //Connected or disconnected
+                try {
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        connectionAttemptCountdown = 0;                                             //Stop counting connection attempts
+                        switch (newState) {
+                            case BluetoothProfile.STATE_CONNECTED: {                                //Are now connected
+                                Log.i(TAG, "Connected to BLE device " + address);
+                                connected = true;
+                                mainHandler.post(new Runnable() {                                   //No need to keep looking for the device
+                                    @Override
+                                    public void run() {
+                                        if (address.equals(reconnectAddress)) {
+                                            stopReconnectScan();
+                                        }
+                                    }
+                                });
+                                connectedTime = SystemClock.elapsedRealtime();
+                                transparentReceiveBuffer.discard();                                 //Drop any data left over from a previous connection, this is the producer thread so the data thread skips it on its next read
+                                profileManager.reset();                                             //New connection starts with the default MTU and PHY
+                                CharacteristicSize = profileManager.getEffectivePayloadSize();
+                                gattScheduler.setMaxWriteLength(CharacteristicSize);
+                                sendBroadcast(newIntent(ACTION_BLE_CONNECTED, address));            //Let the BleMainActivity know that we are connected by broadcasting an Intent
+                                gattScheduler.setGatt(gatt);                                        //Start a fresh operation queue in case there was something left from the previous connection
+                                gatt.discoverServices();                                            //Discover services after successful connection
+                                break;
+                            }
+                            case BluetoothProfile.STATE_DISCONNECTED: {                             //Are now disconnected
+                                Log.i(TAG, "Disconnected from BLE device " + address);
+                                onDisconnected();
+                            }
+                        }
+                    }
+                    else {                                                                          //Something went wrong with the connection or disconnection request
+                        if (connectionAttemptCountdown-- > 0) {                                     //See if we should try another attempt at connecting
+                            gatt.connect();                                                         //Use the existing BluetoothGatt to try connect
+                            Log.d(TAG, "Connection attempt to " + address + " failed, trying again");
+                        }
+                        else if (newState == BluetoothProfile.STATE_DISCONNECTED) {                 //Not trying another connection attempt and are not connected
+                            Log.i(TAG, "Unexpectedly disconnected from BLE device " + address);
+                            onDisconnected();
+                        }
+                    }
+                }
+                catch (Exception e) {
+                    Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+                }
             }
-        }
 
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {                          //Service discovery completed
-            try {
-                boolean discoveryFailed = false;                                                    //Record any failures as services, characteristics, and descriptors are requested
-                transparentSendCharacteristic = null;                                               //Have not found characteristic yet
-                if (status == BluetoothGatt.GATT_SUCCESS) {                                         //See if service discovery was successful
-                    BluetoothGattService gattService = gatt.getService(UUID_TRANSPARENT_PRIVATE_SERVICE); //Get the Transparent UART service
-                    if (gattService != null) {                                                      //Check that the service was discovered
-                        Log.i(TAG, "Found Transparent UART service");
-                        final BluetoothGattCharacteristic transparentReceiveCharacteristic = gattService.getCharacteristic(UUID_TRANSPARENT_RECEIVE_CHAR); //Get the characteristic for receiving from the Transparent UART
-                        if (transparentReceiveCharacteristic != null) {                             //See if the characteristic was found
-                            Log.i(TAG, "Found Transparent Receive characteristic");
-                            final int characteristicProperties = transparentReceiveCharacteristic.getProperties(); //Get the properties of the characteristic
-                            Log.d("^^", "CCCD work00");
-                            if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY)) > 0) { //See if the characteristic has the Notify property
-                                Log.d("^^", "CCCD work11");
-                                BluetoothGattDescriptor descriptor = transparentReceiveCharacteristic.getDescriptor(UUID_CCCD); //Get the descriptor that enables notification on the server
-                                Log.d("^^", "CCCD work22");
-                                if (descriptor != null) {
-                                    //See if we got the descriptor
-                                    Log.d("^^", "CCCD work33");
-                                    btGatt.setCharacteristicNotification(transparentReceiveCharacteristic, true); //If so then enable notification in the BluetoothGatt
-                                    descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE); //Set the value of the descriptor to enable notification
-                                    descriptorWriteQueue.add(descriptor);                           //Put the descriptor into the write queue
-                                    if (descriptorWriteQueue.size() == 1) {                         //If there is only 1 item in the queue, then write it.  If more than 1, we handle asynchronously in the onDescriptorWrite callback below
-                                        Log.d("^^", "CCCD work44");
-                                        btGatt.writeDescriptor(descriptor);                         //Write the descriptor
-                                    } else{
-                                        Log.d("^^", "CCCD work55");
+            @Override
+            public void onServicesDiscovered(BluetoothGatt gatt, int status) {                      //Service discovery completed
+                try {
+                    boolean discoveryFailed = false;                                                //Record any failures as services, characteristics, and descriptors are requested
+                    transparentSendCharacteristic = null;                                           //Have not found characteristic yet
+                    if (status == BluetoothGatt.GATT_SUCCESS) {                                     //See if service discovery was successful
+                        BluetoothGattService gattService = gatt.getService(UUID_TRANSPARENT_PRIVATE_SERVICE); //Get the Transparent UART service
+                        if (gattService != null) {                                                  //Check that the service was discovered
+                            Log.i(TAG, "Found Transparent UART service");
+                            final BluetoothGattCharacteristic transparentReceiveCharacteristic = gattService.getCharacteristic(UUID_TRANSPARENT_RECEIVE_CHAR); //Get the characteristic for receiving from the Transparent UART
+                            if (transparentReceiveCharacteristic != null) {                         //See if the characteristic was found
+                                Log.i(TAG, "Found Transparent Receive characteristic");
+                                final int characteristicProperties = transparentReceiveCharacteristic.getProperties(); //Get the properties of the characteristic
+                                if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY)) > 0) { //See if the characteristic has the Notify property
+                                    BluetoothGattDescriptor descriptor = transparentReceiveCharacteristic.getDescriptor(UUID_CCCD); //Get the descriptor that enables notification on the server
+                                    if (descriptor != null) {                                       //See if we got the descriptor
+                                        gatt.setCharacteristicNotification(transparentReceiveCharacteristic, true); //If so then enable notification in the BluetoothGatt
+                                        gattScheduler.enqueue(gattScheduler.writeDescriptor(descriptor, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE,
+                                                GattOperationScheduler.Priority.HIGH, null));       //Queue the descriptor write that enables notification on the server
+                                    }
+                                    else {
+                                        discoveryFailed = true;
+                                        Log.w(TAG, "No CCCD descriptor for Transparent Receive characteristic");
                                     }
                                 }
                                 else {
                                     discoveryFailed = true;
-                                    Log.w(TAG, "No CCCD descriptor for Transparent Receive characteristic");
+                                    Log.w(TAG, "Transparent Receive characteristic does not have notify property");
                                 }
                             }
                             else {
                                 discoveryFailed = true;
-                                Log.w(TAG, "Transparent Receive characteristic does not have notify property");
+                                Log.w(TAG, "Did not find Transparent Receive characteristic");
                             }
-                        }
-                        else {
-                            discoveryFailed = true;
-                            Log.w(TAG, "Did not find Transparent Receive characteristic");
-                        }
 
-                        transparentSendCharacteristic = gattService.getCharacteristic(UUID_TRANSPARENT_SEND_CHAR); //Get the Transparent Send characteristic
-                        if (transparentSendCharacteristic != null) {                                //See if the characteristic was found
-                            Log.i(TAG, "Found Transparent Send characteristic");
-                            final int characteristicProperties = transparentSendCharacteristic.getProperties(); //Get the properties of the characteristic
-                            if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) > 0) { //See if the characteristic has the Write (unacknowledged) property
-                                transparentSendCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE); //If so then set the write type (write with no acknowledge) in the BluetoothGatt
-                            } else if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE)) > 0) { //Else see if the characteristic has the Write (acknowledged) property
-                                transparentSendCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT); //If so then set the write type (write with no acknowledge) in the BluetoothGatt
-                            } else {
+                            final BluetoothGattCharacteristic sendCharacteristic = gattService.getCharacteristic(UUID_TRANSPARENT_SEND_CHAR); //Get the Transparent Send characteristic
+                            if (sendCharacteristic != null) {                                       //See if the characteristic was found
+                                Log.i(TAG, "Found Transparent Send characteristic");
+                                final int characteristicProperties = sendCharacteristic.getProperties(); //Get the properties of the characteristic
+                                if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) > 0) { //See if the characteristic has the Write (unacknowledged) property
+                                    sendCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE); //If so then set the write type (write with no acknowledge) in the BluetoothGatt
+                                } else if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE)) > 0) { //Else see if the characteristic has the Write (acknowledged) property
+                                    sendCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT); //If so then set the write type (write with no acknowledge) in the BluetoothGatt
+                                } else {
+                                    discoveryFailed = true;
+                                    Log.w(TAG, "Transparent Send characteristic does not have write property");
+                                }
+                                transparentSendCharacteristic = sendCharacteristic;
+                            }
+                            else {
                                 discoveryFailed = true;
-                                Log.w(TAG, "Transparent Send characteristic does not have write property");
+                                Log.w(TAG, "Did not find Transparent Send characteristic");
                             }
                         }
                         else {
                             discoveryFailed = true;
-                            Log.w(TAG, "Did not find Transparent Send characteristic");
+                            Log.w(TAG, "Did not find Transparent UART service");
                         }
                     }
                     else {
                         discoveryFailed = true;
-                        Log.w(TAG, "Did not find Transparent UART service");
+                        Log.w(TAG, "Failed service discovery with status: " + status);
+                    }
+
+                    if (!discoveryFailed) {                                                         //Service discovery returned the correct service and characteristics
+                        rememberDevice(gatt);                                                       //Remember the device and its layout for the next time the app starts
+                        profileManager.apply(connectionProfile);                                    //Negotiate MTU, PHY and connection priority after the descriptor write
+                        sendBroadcast(newIntent(ACTION_BLE_DISCOVERY_DONE, address));               //Broadcast Intent to announce the completion of service discovery
+                    }
+                    else {
+                        sendBroadcast(newIntent(ACTION_BLE_DISCOVERY_FAILED, address));             //Broadcast Intent to announce the failure of service discovery
                     }
                 }
-                else {
-                    discoveryFailed = true;
-                    Log.w(TAG, "Failed service discovery with status: " + status);
+                catch (Exception e) {
+                    Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
                 }
+            }
 
-                if (!discoveryFailed) {                                                             //Service discovery returned the correct service and characteristics
-                    btGatt.requestMtu(512);                                                         //Request max data length and get the negotiated length in mtu argument of onMtuChanged()
-                    sendBroadcast(new Intent(ACTION_BLE_DISCOVERY_DONE));                           //Broadcast Intent to announce the completion of service discovery
-                }
-                else {
-                    sendBroadcast(new Intent(ACTION_BLE_DISCOVERY_FAILED));                         //Broadcast Intent to announce the failure of service discovery
+            @Override
+            public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {                     //A new maximum transmission unit (MTU) size was negotiated with the Bluetooth device
+                super.onMtuChanged(gatt, mtu, status);
+                profileManager.onMtuChanged(mtu, status);                                           //Record what was granted
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    knownDevices.updateMtu(address, mtu);
                 }
+                CharacteristicSize = profileManager.getEffectivePayloadSize();                      //The mtu includes space for 1 byte opcode and 2 byte handle in addition to data
+                gattScheduler.setMaxWriteLength(CharacteristicSize);                                //Chunked writes use the new size from their next chunk
+                gattScheduler.onResult(GattOperationScheduler.Type.MTU_REQUEST, status);            //Let the next GATT operation start
             }
-            catch (Exception e) {
-                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+
+            @Override
+            public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {        //PHY changed, either because we requested it or the remote device did
+                Log.d(TAG, "PHY update, tx: " + txPhy + ", rx: " + rxPhy + ", status: " + status);
+                profileManager.onPhyUpdate(txPhy, rxPhy, status);                                   //Record what was granted
+                gattScheduler.onResult(GattOperationScheduler.Type.PHY_REQUEST, status);            //Let the next GATT operation start
             }
-        }
 
-        @Override
-        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {                         //A new maximum transmission unit (MTU) size was negotiated with the Bluetooth device
-            super.onMtuChanged(gatt, mtu, status);
-            CharacteristicSize = mtu - 3;                                                           //The mtu argument indicates the size of a characteristic using Data Length Extension. It includes space for 1 byte opcode and 2 byte handle in addition to data so subtract 3.
-        }
+            @Override
+            public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) { //Received notification or indication with a new value for a characteristic
+                try {
+                    if (UUID_TRANSPARENT_RECEIVE_CHAR.equals(characteristic.getUuid())) {           //See if it is the Transparent Receive characteristic (the only notification expected)
+                        final byte[] value = characteristic.getValue();                             //Get the bytes from the characteristic
+                        receive(value, value.length);
+                    }
+                }
+                catch (Exception e) {
+                    Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+                }
+            }
 
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) { //Received notification or indication with a new value for a characteristic
-            try {
-                Log.d(TAG, "on CHARRRR");
-                if (UUID_TRANSPARENT_RECEIVE_CHAR.equals(characteristic.getUuid())) {               //See if it is the Transparent Receive characteristic (the only notification expected)
-                    Log.d(TAG, "New notification or indication");
-                    transparentReceiveOutput.write(characteristic.getValue());                      //Get the bytes from the characteristic and put them in the ByteArrayOutputStream for later
-                    sendBroadcast(new Intent(ACTION_BLE_NEW_DATA_RECEIVED));                        //Broadcast Intent to announce the new data. This does not send the data, it needs to be read by calling readFromTransparentUART() below
-                }else{
-                    Log.d(TAG, "what@#@!");
+            @Override
+            public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) { //Write completed
+                try {
+                    if (status != BluetoothGatt.GATT_SUCCESS) {                                     //See if the write was successful
+                        Log.w(TAG, "Error writing GATT characteristic with status: " + status);
+                    }
+                    gattScheduler.onResult(GattOperationScheduler.Type.CHARACTERISTIC_WRITE, status); //A queue is used because BluetoothGatt can only do one operation at a time, start the next one
+                }
+                catch (Exception e) {
+                    Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
                 }
             }
-            catch (Exception e) {
-                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+
+            @Override
+            public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) { //Write descriptor completed
+                try {
+                    if (status != BluetoothGatt.GATT_SUCCESS) {
+                        Log.w(TAG, "Error writing GATT descriptor with status: " + status);
+                    }
+                    Log.d(TAG, "Descriptor write completed");
+                    gattScheduler.onResult(GattOperationScheduler.Type.DESCRIPTOR_WRITE, status);   //A queue is used because BluetoothGatt can only do one operation at a time, start the next one
+                }
+                catch (Exception e) {
+                    Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+                }
             }
-        }
 
-        @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) { //Write completed
-            try {
-                if (status != BluetoothGatt.GATT_SUCCESS) {                                         //See if the write was successful
-                    Log.w(TAG, "Error writing GATT characteristic with status: " + status);
-                }                                                                                   //A queue is used because BluetoothGatt can only do one write at a time
-                Log.d(TAG, "Characteristic write completed");
-                characteristicWriteQueue.remove();                                                  //Pop the item that we just finishing writing
-                if(characteristicWriteQueue.size() > 0) {                                           //See if there is more to write
-                    transparentSendCharacteristic.setValue(characteristicWriteQueue.element());     //Set the new value of the characteristic
-                    btGatt.writeCharacteristic(transparentSendCharacteristic);                      //Write characteristic
+            @Override
+            public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {} //Read completed - not used because this application uses Notification or Indication to receive characteristic data
+
+            @Override
+            public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {} //Read descriptor completed - not used
+
+            @Override
+            public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {}                 //Write with acknowledgement completed - not used
+
+            @Override
+            public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {}               //Read remote RSSI completed - not used
+        };
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // Transport events for a session created with connectTransport(), the transport already has the Transparent UART
+        // service so a connection is reported as connected and discovered together
+        private final UartTransport.Listener transportListener = new UartTransport.Listener() {
+            @Override
+            public void onConnected(UartTransport transport) {
+                try {
+                    Log.i(TAG, "Connected to transport " + address);
+                    connected = true;
+                    connectedTime = SystemClock.elapsedRealtime();
+                    transparentReceiveBuffer.discard();                                             //Producer side, the data thread skips the old data on its next read
+                    CharacteristicSize = transport.getPayloadSize();
+                    sendBroadcast(newIntent(ACTION_BLE_CONNECTED, address));
+                    sendBroadcast(newIntent(ACTION_BLE_DISCOVERY_DONE, address));
+                }
+                catch (Exception e) {
+                    Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
                 }
             }
-            catch (Exception e) {
-                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+
+            @Override
+            public void onDisconnected(UartTransport transport) {
+                try {
+                    Log.i(TAG, "Disconnected from transport " + address);
+                    if (connected || disconnectRequested) {                                         //Not already closed by the service
+                        DeviceSession.this.onDisconnected();
+                    }
+                }
+                catch (Exception e) {
+                    Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+                }
             }
-        }
 
-        @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) { //Write descriptor completed
-            try {
-                if (status != BluetoothGatt.GATT_SUCCESS) {
-                    Log.w(TAG, "Error writing GATT descriptor with status: " + status);
-                }                                                                                   //A queue is used because BluetoothGatt can only do one write at a time
-                Log.d(TAG, "Descriptor write completed");
-                descriptorWriteQueue.remove();                                                      //Pop the item that we just finishing writing
-                if(descriptorWriteQueue.size() > 0) {                                               //See if there are more descriptors to write
-                    btGatt.writeDescriptor(descriptorWriteQueue.element());                         //Write descriptor
+            @Override
+            public void onPayloadSizeChanged(UartTransport transport, int payloadSize) {
+                CharacteristicSize = Math.min(payloadSize, ConnectionProfile.MAX_ATTRIBUTE_SIZE);  //Same limit as a real connection
+                final Intent intent = newIntent(ACTION_BLE_PROFILE_APPLIED, address);
+                intent.putExtra(EXTRA_PROFILE, connectionProfile.name());
+                intent.putExtra(EXTRA_MTU, payloadSize + ConnectionProfile.ATT_HEADER_SIZE);
+                intent.putExtra(EXTRA_PAYLOAD_SIZE, CharacteristicSize);
+                sendBroadcast(intent);
+            }
+
+            @Override
+            public void onNotification(UartTransport transport, byte[] value, int length) {
+                try {
+                    receive(value, length);
+                }
+                catch (Exception e) {
+                    Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
                 }
             }
-            catch (Exception e) {
-                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+
+            @Override
+            public void onWritable(UartTransport transport) {
+                transportHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeToTransport();
+                    }
+                });
             }
+        };
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // Remember the device and the layout just discovered, and note if the layout is not what it was last time
+        private void rememberDevice(BluetoothGatt gatt) {
+            final ArrayList<String> services = new ArrayList<>();
+            for (BluetoothGattService service : gatt.getServices()) {
+                services.add(service.getUuid().toString());
+            }
+            final int sendWriteType = transparentSendCharacteristic.getWriteType();
+            final KnownDeviceStore.KnownDevice known = knownDevices.get(address);
+            if (known != null && !known.hasSameLayout(services, sendWriteType)) {                   //Firmware changed since the last connection
+                Log.i(TAG, "GATT layout of " + address + " has changed since the last connection");
+            }
+            knownDevices.remember(new KnownDeviceStore.KnownDevice(address, btDevice.getName(), System.currentTimeMillis(),
+                    services, sendWriteType, known != null ? known.getMtu() : ConnectionProfile.DEFAULT_MTU));
         }
 
-        @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {} //Read completed - not used because this application uses Notification or Indication to receive characteristic data
+        public String getAddress() {
+            return address;
+        }
 
-        @Override
-        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {} //Read descriptor completed - not used
+        public boolean isConnected() {
+            return connected;
+        }
 
-        @Override
-        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {}                     //Write with acknowledgement completed - not used
+        public ConnectionProfileManager getConnectionProfileManager() {
+            return profileManager;
+        }
 
-        @Override
-        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {}                   //Read remote RSSI completed - not used
-    };
+        // Number of data bytes that fit in one notification or write on this connection
+        public int getEffectivePayloadSize() {
+            return transport != null ? Math.min(transport.getPayloadSize(), ConnectionProfile.MAX_ATTRIBUTE_SIZE)
+                    : profileManager.getEffectivePayloadSize();
+        }
+
+        public long getNotifications() {
+            return notifications;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        public long getBytesDelivered() {
+            return bytesDelivered;
+        }
+
+        // Number of bytes dropped, and number of notifications that lost bytes, because the receive buffer was full
+        public long getReceiveOverflowBytes() {
+            return transparentReceiveBuffer.getOverflowBytes();
+        }
+
+        public long getReceiveOverflowCount() {
+            return transparentReceiveBuffer.getOverflowCount();
+        }
+
+        // Average received bytes per second since the connection was made
+        public double getReceiveRate() {
+            final long elapsed = SystemClock.elapsedRealtime() - connectedTime;
+            return connected && elapsed > 0 ? bytesReceived * 1000.0 / elapsed : 0;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Create an Intent for one of the ACTION_BLE_ actions, tagged with the device address
+    private static Intent newIntent(String action, String address) {
+        final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, address);
+        return intent;
+    }
 
     /******************************************************************************************************************
      * Methods for bound activities to access Bluetooth LE functions
@@ -376,42 +866,225 @@ public class BleService extends Service {
 
     // ----------------------------------------------------------------------------------------------------------------
     // Connect to a Bluetooth LE device with a specific address (address is usually obtained from a scan)
+    // Other devices stay connected, up to MAX_SESSIONS. The device becomes the one used by the single device methods.
     public void connectBle(final String address) {
+        connectBle(address, false);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Connect directly or in the background, returns the session or null if the connection could not be started
+    private DeviceSession connectBle(final String address, boolean autoConnect) {
         try {
             if (btAdapter == null || address == null) {                                             //See if there is a radio and an address
                 Log.w(TAG, "BluetoothAdapter not initialized or unspecified address");
-                return;
+                return null;
             }
-            BluetoothDevice btDevice = btAdapter.getRemoteDevice(address);                          //Use the address to get the remote device
-            if (btDevice == null) {                                                                 //See if the device was found
-                Log.w(TAG, "Unable to connect because device was not found");
+            DeviceSession session = sessions.get(address);
+            if (session == null) {                                                                  //Not already connected or connecting
+                if (sessions.size() >= MAX_SESSIONS) {
+                    Log.w(TAG, "Unable to connect to " + address + ", already " + sessions.size() + " devices connected");
+                    return null;
+                }
+                BluetoothDevice btDevice = btAdapter.getRemoteDevice(address);                      //Use the address to get the remote device
+                if (btDevice == null) {                                                             //See if the device was found
+                    Log.w(TAG, "Unable to connect because device was not found");
+                    return null;
+                }
+                session = new DeviceSession(btDevice);
+                sessions.put(address, session);
+            }
+            primarySession = session;
+            session.connect(autoConnect);
+            return session;
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Connect over a UartTransport instead of Bluetooth LE, for example a SimulatedUartPeripheral to load test the data
+    // path without hardware. The session is used like any other, its address is the transport's address.
+    public DeviceSession connectTransport(UartTransport transport) {
+        try {
+            DeviceSession session = sessions.get(transport.getAddress());
+            if (session != null && session.transport != transport) {                                //Address is taken by another connection
+                Log.w(TAG, "Unable to connect transport, " + transport.getAddress() + " is already in use");
+                return null;
+            }
+            if (session == null) {
+                if (sessions.size() >= MAX_SESSIONS) {
+                    Log.w(TAG, "Unable to connect transport " + transport.getAddress() + ", already " + sessions.size() + " devices connected");
+                    return null;
+                }
+                session = new DeviceSession(transport);
+                sessions.put(transport.getAddress(), session);
+            }
+            primarySession = session;
+            session.connect(false);
+            return session;
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Reconnect to a device connected to before, without waiting for the user to scan
+    // Connects directly straight away and at the same time runs a short scan for just that device. If the scan does not
+    // see the device within RECONNECT_SCAN_TIME it is probably out of range, so the direct attempt, which would soon time
+    // out, is replaced by a background connection that completes whenever the device comes back in range.
+    // Must be called on the main thread.
+    public void reconnectBle(final String address) {
+        try {
+            stopReconnectScan();
+            if (connectBle(address, false) == null) {
                 return;
             }
-            if (btGatt != null) {                                                                   //See if an existing connection needs to be closed
-                btGatt.close();                                                                     //Faster to create new connection than reconnect with existing BluetoothGatt
+            final ArrayList<ScanFilter> filters = new ArrayList<>();
+            filters.add(new ScanFilter.Builder().setDeviceAddress(address).build());                //Only this device, so the controller can ignore every other advertisement
+            reconnectScan = new AndroidScanEngine(btAdapter, filters, ScanSettings.SCAN_MODE_LOW_LATENCY, 0);
+            reconnectAddress = address;
+            reconnectScan.startScan(reconnectScanListener);
+            mainHandler.postDelayed(reconnectScanTimeout, RECONNECT_SCAN_TIME);
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stop the reconnect scan, on the main thread
+    private void stopReconnectScan() {
+        mainHandler.removeCallbacks(reconnectScanTimeout);
+        if (reconnectScan != null) {
+            reconnectScan.stopScan();
+            reconnectScan = null;
+        }
+        reconnectAddress = null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The device is advertising so the direct connection attempt will reach it, no need to scan any more
+    private final ScanEngine.Listener reconnectScanListener = new ScanEngine.Listener() {
+        @Override
+        public void onScanResult(String address, String name, int rssi, long timestamp) {
+            if (address.equals(reconnectAddress)) {
+                Log.d(TAG, "Known device " + address + " is in range, RSSI " + rssi);
+                mainHandler.post(new Runnable() {                                                   //Stop after the ScanEngine has finished reporting
+                    @Override
+                    public void run() {
+                        stopReconnectScan();
+                    }
+                });
             }
-            connectionAttemptCountdown = 3;                                                         //Try to connect three times for reliability
+        }
 
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {                                   //Build.VERSION_CODES.M = 23 for Android 6
-                btGatt = btDevice.connectGatt(this, false, btGattCallback, BluetoothDevice.TRANSPORT_LE); //Directly connect to the device now, so set autoConnect to false, connect using BLE if device is dual-mode
+        @Override
+        public void onScanBatchComplete() {}
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w(TAG, "Reconnect scan failed with error " + errorCode + ", direct connection attempt continues");
+            reconnectScan = null;
+            stopReconnectScan();
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Runnable for when the reconnect scan has not seen the device, continue with a background connection
+    private final Runnable reconnectScanTimeout = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                final String address = reconnectAddress;
+                stopReconnectScan();
+                final DeviceSession session = address != null ? sessions.get(address) : null;
+                if (session != null && !session.connected && !session.disconnectRequested) {       //Still trying and still wanted
+                    Log.i(TAG, "Known device " + address + " not seen, waiting for it in the background");
+                    session.connect(true);
+                }
             }
-            else {
-                btGatt = btDevice.connectGatt(this, false, btGattCallback);      //Directly connect to the device now, so set autoConnect to false
+            catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Devices connected to before, most recent first
+    public KnownDeviceStore getKnownDeviceStore() {
+        return knownDevices;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Choose the connection profile for every device, negotiated now for connected devices and at the next connection otherwise
+    public void setConnectionProfile(ConnectionProfile profile) {
+        try {
+            connectionProfile = profile;
+            for (DeviceSession session : sessions.values()) {
+                if (session.btGatt != null && session.transparentSendCharacteristic != null) {      //Connected and discovered, so renegotiate now
+                    session.profileManager.apply(profile);
+                }
             }
-            Log.d(TAG, "Attempting to create a new Bluetooth connection");
         }
         catch (Exception e) {
             Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
         }
     }
 
+    // Connection profile manager of the device last connected with connectBle(), null if it is not connected
+    public ConnectionProfileManager getConnectionProfileManager() {
+        final DeviceSession session = primarySession;
+        return session != null ? session.profileManager : null;
+    }
+
     // ----------------------------------------------------------------------------------------------------------------
-    // Disconnect an existing connection or cancel a connection that has been requested
+    // Number of data bytes that fit in one notification or write to the device last connected with connectBle()
+    public int getEffectivePayloadSize() {
+        final DeviceSession session = primarySession;
+        return session != null ? session.getEffectivePayloadSize() : ConnectionProfile.DEFAULT_MTU - ConnectionProfile.ATT_HEADER_SIZE;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Session for a device, null if it is not connected or connecting
+    public DeviceSession getSession(String address) {
+        return sessions.get(address);
+    }
+
+    // All connected and connecting devices
+    public Collection<DeviceSession> getSessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Disconnect every device, or cancel the connections that have been requested
     public void disconnectBle() {
         try {
-            if (btAdapter != null && btGatt != null) {                                              //See if we have a connection before attempting to disconnect
-                connectionAttemptCountdown = 0;                                                     //Stop counting connection attempts
-                btGatt.disconnect();                                                                //Disconnect
+            mainHandler.post(new Runnable() {                                                       //Stop looking for a device that is no longer wanted
+                @Override
+                public void run() {
+                    stopReconnectScan();
+                }
+            });
+            for (DeviceSession session : sessions.values()) {
+                session.disconnect();
+            }
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Disconnect one device, or cancel its connection attempt
+    public void disconnectBle(String address) {
+        try {
+            final DeviceSession session = sessions.get(address);
+            if (session != null) {
+                session.disconnect();
             }
         }
         catch (Exception e) {
@@ -420,12 +1093,16 @@ public class BleService extends Service {
     }
 
     // ----------------------------------------------------------------------------------------------------------------
-    // Read from the Transparent UART - get all the bytes that have been received since the last read
+    // Read from the Transparent UART of the device last connected with connectBle() - get all the bytes that have been received since the last read
+    // Allocates a new array on every call, use readFromTransparentUART(byte[], int, int) to read into a reused array
     public byte[] readFromTransparentUART() {
         try {
-            final byte[] out = transparentReceiveOutput.toByteArray();                              //Get bytes from the ByteArrayOutputStream where they were put when onCharacteristicChanged was executed\
-            transparentReceiveOutput.reset();                                                       //Reset (empty) the ByteArrayOutputStream since we have all the bytes
-            return out;                                                                             //Return the array of bytes
+            final DeviceSession session = primarySession;
+            if (session != null) {
+                final byte[] out = new byte[session.transparentReceiveBuffer.available()];          //Array for the bytes put in the receive buffer when onCharacteristicChanged was executed
+                session.transparentReceiveBuffer.read(out, 0, out.length);                          //Move the bytes out of the receive buffer
+                return out;                                                                         //Return the array of bytes
+            }
         } catch (Exception e) {
             Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
         }
@@ -433,23 +1110,71 @@ public class BleService extends Service {
     }
 
     // ----------------------------------------------------------------------------------------------------------------
-    // Write to the Transparent UART
+    // Read from the Transparent UART into the caller's array - returns the number of bytes read, up to length
+    // Only one thread may read from the Transparent UART, so do not use this while a DataListener is registered
+    public int readFromTransparentUART(byte[] buffer, int offset, int length) {
+        try {
+            final DeviceSession session = primarySession;
+            if (session != null) {
+                return session.transparentReceiveBuffer.read(buffer, offset, length);               //Move the bytes straight from the receive buffer into the caller's array
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+        return 0;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Register the listener that receives batches of data from every device on the data thread instead of reading with readFromTransparentUART()
+    public void registerDataListener(DataListener listener, int batchBytes, long batchWindow) {
+        dataBatchBytes = Math.max(1, batchBytes);
+        dataBatchWindow = Math.max(0, batchWindow);
+        dataListener = listener;
+        for (DeviceSession session : sessions.values()) {
+            session.scheduleDataDelivery();                                                         //Deliver anything that was already waiting
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Unregister the listener, only if it is the one currently registered
+    public void unregisterDataListener(DataListener listener) {
+        if (dataListener == listener) {
+            dataListener = null;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Number of bytes dropped, and number of notifications that lost bytes, because a receive buffer was full, all devices together
+    public long getReceiveOverflowBytes() {
+        long total = 0;
+        for (DeviceSession session : sessions.values()) {
+            total += session.getReceiveOverflowBytes();
+        }
+        return total;
+    }
+
+    public long getReceiveOverflowCount() {
+        long total = 0;
+        for (DeviceSession session : sessions.values()) {
+            total += session.getReceiveOverflowCount();
+        }
+        return total;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write to the Transparent UART of the device last connected with connectBle()
     public void writeToTransparentUART(byte[] bytesToWrite) {
+        writeToTransparentUART(bytesToWrite, 0, bytesToWrite.length);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write part of an array to the Transparent UART of the device last connected with connectBle()
+    // The bytes are split into characteristic sized chunks as they are sent, so they must not be changed until the write completes
+    public void writeToTransparentUART(byte[] bytesToWrite, int offset, int length) {
         try {
-            if (btAdapter != null && btGatt != null && transparentSendCharacteristic != null) {     //See if there is a radio, a connection, and a valid characteristic
-                while (bytesToWrite.length > 0) {                                                   //Keep doing writes (adding to the write queue) until all bytes have been written
-                    int length = Math.min(bytesToWrite.length, CharacteristicSize);                 //Get the number of bytes to write, limited to the max size of a characteristic
-                    byte[] limitedBytesToWrite = Arrays.copyOf(bytesToWrite, length);               //Get a subset of the bytes that will fit into a characteristic
-                    bytesToWrite = Arrays.copyOfRange(bytesToWrite, length, bytesToWrite.length);   //Get the remaining bytes ready for the next write
-                    characteristicWriteQueue.add(limitedBytesToWrite);                              //Put the characteristic value into the write queue
-                    if (characteristicWriteQueue.size() == 1) {                                     //If there is only 1 item in the queue, then write it.  If more than 1, we do it in the onCharacteristicWrite() callback above
-                        transparentSendCharacteristic.setValue(limitedBytesToWrite);                //Put the bytes into the characteristic value
-                        Log.i(TAG, "Characteristic write started");
-                        if (!btGatt.writeCharacteristic(transparentSendCharacteristic)) {           //Request the BluetoothGatt to do the Write
-                            Log.w(TAG, "Failed to write characteristic");                      //Warning that write request was not accepted by the BluetoothGatt
-                        }
-                    }
-                }
+            final DeviceSession session = primarySession;
+            if (btAdapter != null && session != null) {                                             //See if there is a radio and a connection
+                session.write(bytesToWrite, offset, length);
             }
             else {
                 Log.w(TAG, "Write attempted with Bluetooth uninitialized or not connected");
@@ -458,4 +1183,20 @@ public class BleService extends Service {
             Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
         }
     }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write part of an array to the Transparent UART of a particular device
+    public void writeToTransparentUART(String address, byte[] bytesToWrite, int offset, int length) {
+        try {
+            final DeviceSession session = sessions.get(address);
+            if (session != null) {
+                session.write(bytesToWrite, offset, length);
+            }
+            else {
+                Log.w(TAG, "Write attempted to " + address + " which is not connected");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
 }
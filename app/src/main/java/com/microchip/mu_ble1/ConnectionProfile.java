@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * Named sets of connection parameters that the ConnectionProfileManager negotiates after service discovery.
+ * The MTU sets how much data fits in one notification, the PHY sets the radio bit rate (2M doubles it over the default
+ * 1M if both ends support it) and the connection priority sets the connection interval, how often the radios exchange packets.
+ */
+public enum ConnectionProfile {
+    HIGH_THROUGHPUT(517, BluetoothDevice.PHY_LE_2M_MASK, BluetoothGatt.CONNECTION_PRIORITY_HIGH),          //Largest MTU, 2M PHY and shortest connection interval (11.25 - 15 ms)
+    BALANCED(247, BluetoothDevice.PHY_LE_2M_MASK, BluetoothGatt.CONNECTION_PRIORITY_BALANCED),             //MTU that fits one Data Length Extension packet, 2M PHY and 30 - 50 ms interval
+    LOW_POWER(247, BluetoothDevice.PHY_LE_1M_MASK, BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);           //Same MTU, 1M PHY for range and 100 - 125 ms interval
+
+    public static final int DEFAULT_MTU = 23;                                                       //MTU of every connection until a larger one is negotiated
+    public static final int ATT_HEADER_SIZE = 3;                                                    //Opcode and handle in every notification and write, the rest of the MTU is data
+    public static final int MAX_ATTRIBUTE_SIZE = 512;                                               //Longest value ATT allows, so the largest MTU of 517 carries only 512 bytes of data
+
+    public final int mtu;                                                                           //MTU to request
+    public final int phyMask;                                                                       //BluetoothDevice.PHY_LE_xxx_MASK to request for transmit and receive
+    public final int connectionPriority;                                                            //BluetoothGatt.CONNECTION_PRIORITY_xxx to request
+
+    ConnectionProfile(int mtu, int phyMask, int connectionPriority) {
+        this.mtu = mtu;
+        this.phyMask = phyMask;
+        this.connectionPriority = connectionPriority;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.util.Log;
+
+/**
+ * Negotiates a ConnectionProfile on a connection and keeps track of what the remote device actually granted.
+ * The requests go through the GattOperationScheduler at HIGH priority, in this order:
+ *   MTU                 first, since it is an ATT exchange that some devices only accept before other traffic
+ *   PHY                 link layer procedure, ignored on Android 7 and earlier
+ *   connection priority last, so the profile's interval is the one left in place once negotiation is over
+ * The granted MTU and PHY come from onMtuChanged() and onPhyUpdate(), which also report changes made by the remote
+ * device. getEffectivePayloadSize() is the number of data bytes that fit in one notification or write.
+ */
+public class ConnectionProfileManager {
+    private final static String TAG = ConnectionProfileManager.class.getSimpleName();
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Listener for the end of a negotiation, called on the GATT operation thread
+    public interface Listener {
+        void onProfileApplied(ConnectionProfile profile, int mtu, int txPhy, int rxPhy);
+    }
+
+    private final GattOperationScheduler gattScheduler;
+    private final Listener listener;
+    private volatile ConnectionProfile profile;                                                     //Profile last applied, null before the first
+    private volatile int mtu = ConnectionProfile.DEFAULT_MTU;                                       //Granted MTU
+    private volatile int txPhy = BluetoothDevice.PHY_LE_1M;                                         //Granted transmit PHY
+    private volatile int rxPhy = BluetoothDevice.PHY_LE_1M;                                         //Granted receive PHY
+    private volatile int connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;           //Connection priority accepted by the BluetoothGatt
+    private volatile int negotiation;                                                               //Incremented for every apply() so results of an older negotiation are ignored
+
+    public ConnectionProfileManager(GattOperationScheduler gattScheduler, Listener listener) {
+        this.gattScheduler = gattScheduler;
+        this.listener = listener;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Queue the requests for a profile, call after service discovery or to change profile while connected
+    public void apply(final ConnectionProfile profile) {
+        this.profile = profile;
+        final int thisNegotiation = ++negotiation;
+        gattScheduler.enqueue(gattScheduler.requestMtu(profile.mtu, GattOperationScheduler.Priority.HIGH, null)); //Result arrives in onMtuChanged()
+        gattScheduler.enqueue(gattScheduler.setPreferredPhy(profile.phyMask, profile.phyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED,
+                GattOperationScheduler.Priority.HIGH, null));                                       //Result arrives in onPhyUpdate()
+        gattScheduler.enqueue(gattScheduler.requestConnectionPriority(profile.connectionPriority, GattOperationScheduler.Priority.HIGH,
+                new GattOperationScheduler.Callback() {
+                    @Override
+                    public void onComplete(GattOperationScheduler.Operation operation, int status) {
+                        if (thisNegotiation != negotiation) {                                       //Another profile was applied since
+                            return;
+                        }
+                        if (status == BluetoothGatt.GATT_SUCCESS) {
+                            connectionPriority = profile.connectionPriority;
+                        }
+                        Log.i(TAG, "Profile " + profile + " applied, MTU " + mtu + ", PHY tx " + txPhy + " rx " + rxPhy
+                                + ", priority " + connectionPriority + ", payload " + getEffectivePayloadSize() + " bytes");
+                        if (listener != null) {
+                            listener.onProfileApplied(profile, mtu, txPhy, rxPhy);
+                        }
+                    }
+                }));
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Back to the values every new connection starts with, call when disconnected
+    public void reset() {
+        mtu = ConnectionProfile.DEFAULT_MTU;
+        txPhy = BluetoothDevice.PHY_LE_1M;
+        rxPhy = BluetoothDevice.PHY_LE_1M;
+        connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Record the MTU, called from BluetoothGattCallback.onMtuChanged()
+    public void onMtuChanged(int mtu, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.mtu = mtu;
+        }
+        else {
+            Log.w(TAG, "MTU request failed with status " + status + ", keeping MTU " + this.mtu);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Record the PHY, called from BluetoothGattCallback.onPhyUpdate()
+    public void onPhyUpdate(int txPhy, int rxPhy, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.txPhy = txPhy;
+            this.rxPhy = rxPhy;
+        }
+        else {
+            Log.w(TAG, "PHY update failed with status " + status);
+        }
+    }
+
+    public ConnectionProfile getProfile() {
+        return profile;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    public int getTxPhy() {
+        return txPhy;
+    }
+
+    public int getRxPhy() {
+        return rxPhy;
+    }
+
+    public int getConnectionPriority() {
+        return connectionPriority;
+    }
+
+    // Data bytes in one notification or write with the granted MTU, never more than the 512 bytes an attribute can hold
+    public int getEffectivePayloadSize() {
+        return Math.min(mtu - ConnectionProfile.ATT_HEADER_SIZE, ConnectionProfile.MAX_ATTRIBUTE_SIZE);
+    }
+}
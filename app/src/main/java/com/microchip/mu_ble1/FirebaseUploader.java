@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.database.DatabaseReference;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads received frames to the Firebase Realtime Database in batches, on its own thread.
+ * Frames wait in a bounded queue (the oldest are dropped if it fills) and are written with a single updateChildren()
+ * call per batch, as soon as a full batch is waiting or after the flush interval. Each frame is stored at
+ * root/<yyyyMMddHHmmss>/<push key>. The time is on the 24 hour clock with the year, so the buckets sort in time order,
+ * and the push key is unique and increases with time so frames received in the same second never overwrite each other.
+ * Frames submitted with a device are stored at root/<yyyyMMddHHmmss>/<device>/<push key>, so the frames of devices
+ * connected at the same time stay apart within the bucket.
+ * Uploads from before this change are under root/<MMddhhmmss>, a 12 hour time without the year, and are not moved.
+ * A failed batch is retried with exponential backoff while new frames keep queueing.
+ */
+public class FirebaseUploader {
+    private final static String TAG = FirebaseUploader.class.getSimpleName();                     //Get name of class for tagging log messages
+
+    public static final int DEFAULT_BATCH_SIZE =      30;                                          //Frames per updateChildren() call
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;                                        //Milliseconds to wait for a full batch before sending a partial one
+    public static final int DEFAULT_MAX_QUEUED =      2048;                                        //Frames that can wait before the oldest are dropped
+    private static final long INITIAL_BACKOFF =       1000;                                        //Milliseconds before the first retry of a failed batch
+    private static final long MAX_BACKOFF =           60000;                                       //Longest wait between retries
+
+    private final DatabaseReference root;                                                          //Frames are written below this reference
+    private final int batchSize;
+    private final long flushInterval;
+    private final ArrayBlockingQueue<Frame> queue;                                                 //Frames waiting to be uploaded
+    private final HandlerThread uploadThread;                                                      //All database calls and their results are handled on this thread
+    private final Handler uploadHandler;
+    private final AtomicBoolean flushPending = new AtomicBoolean();                                //A flush is posted, possibly delayed
+    private final AtomicBoolean flushImmediate = new AtomicBoolean();                              //A flush is posted to run now
+    public static final String BUCKET_FORMAT = "yyyyMMddHHmmss";                                    //Time of the database key each frame is stored under, to the second
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat(BUCKET_FORMAT, Locale.US);     //Only used on the upload thread, SimpleDateFormat is not thread safe
+    private final Date date = new Date();                                                          //Reused to format the time of each frame
+
+    private HashMap<String, Object> batch;                                                         //Batch being written or waiting to be retried, null when there is none
+    private int batchFrames;                                                                       //Number of frames in the batch
+    private final long[] batchReceivedTimes;                                                       //When each frame in the batch was received, System.nanoTime()
+    private volatile MetricsRegistry.Histogram latencyHistogram;                                   //Time from receiving each frame to the database confirming it, null if not recorded
+    private long backoff = INITIAL_BACKOFF;                                                        //Wait before the next retry
+    private boolean retryPending;                                                                  //The batch failed and a retry is posted
+    private boolean stopped;                                                                       //stop() has handed everything to the database, results are no longer waited for
+
+    private final AtomicLong submittedFrames = new AtomicLong();                                   //Frames passed to submit()
+    private final AtomicLong droppedFrames = new AtomicLong();                                     //Frames dropped because the queue was full
+    private volatile long uploadedFrames;                                                          //Frames the database confirmed
+    private volatile long batches;                                                                 //Successful updateChildren() calls
+    private volatile long failures;                                                                //Failed updateChildren() calls, each one retried
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // One received frame waiting to be uploaded
+    private static final class Frame {
+        final long time;                                                                           //Time received, in milliseconds since the epoch
+        final long receivedTime;                                                                   //Time received, System.nanoTime() for measuring latency
+        final String device;                                                                       //Device the frame came from, null if not known
+        final String value;                                                                        //Value stored in the database
+
+        Frame(long time, long receivedTime, String device, String value) {
+            this.time = time;
+            this.device = device;
+            this.receivedTime = receivedTime;
+            this.value = value;
+        }
+    }
+
+    public FirebaseUploader(DatabaseReference root) {
+        this(root, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL, DEFAULT_MAX_QUEUED);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor, starts the upload thread
+    public FirebaseUploader(DatabaseReference root, int batchSize, long flushInterval, int maxQueued) {
+        this.root = root;
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        queue = new ArrayBlockingQueue<>(maxQueued);
+        batchReceivedTimes = new long[batchSize];
+        uploadThread = new HandlerThread(TAG);
+        uploadThread.start();
+        uploadHandler = new Handler(uploadThread.getLooper());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Queue a frame for upload, may be called from any thread and never waits for the database
+    public void submit(String value) {
+        submit(value, System.nanoTime());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Queue a frame for upload, receivedTime is the System.nanoTime() the data arrived, for the latency histogram
+    public void submit(String value, long receivedTime) {
+        submit(null, value, receivedTime);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Queue a frame from a device for upload, device must be a valid database key, or null if not known
+    public void submit(String device, String value, long receivedTime) {
+        final Frame frame = new Frame(System.currentTimeMillis(), receivedTime, device, value);
+        submittedFrames.incrementAndGet();
+        while (!queue.offer(frame)) {                                                              //Queue is full so drop the oldest frame to make room
+            if (queue.poll() != null) {
+                droppedFrames.incrementAndGet();
+            }
+        }
+        scheduleFlush();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Hand every queued frame to the database and then stop the upload thread
+    // Firebase keeps writes it has been given and completes them itself, even after this thread has stopped, so the
+    // batches are all sent at once without waiting for the one in flight, and a batch waiting for a retry is sent now
+    public void stop() {
+        uploadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stopped = true;
+                    uploadHandler.removeCallbacks(flush);
+                    if (retryPending) {
+                        uploadHandler.removeCallbacks(retry);
+                        retryPending = false;
+                        sendBatch();
+                    }
+                    while (!queue.isEmpty()) {
+                        takeBatch();
+                        sendBatch();
+                    }
+                }
+                catch (Exception e) {
+                    Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+                }
+                uploadThread.quitSafely();                                                         //Results posted from now on are dropped, Firebase still completes the writes
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Post a flush to the upload thread, immediately if a full batch is waiting, otherwise after the flush interval
+    private void scheduleFlush() {
+        if (queue.size() >= batchSize) {                                                           //Full batch waiting so flush now
+            if (!flushImmediate.getAndSet(true)) {
+                flushPending.set(true);
+                uploadHandler.post(flush);
+            }
+        }
+        else if (!flushPending.getAndSet(true)) {                                                  //First frame of a new batch so start the flush interval
+            uploadHandler.postDelayed(flush, flushInterval);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Runnable on the upload thread that takes a batch of frames from the queue and writes them in one call
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                uploadHandler.removeCallbacks(flush);                                              //This flush covers any other one that is pending
+                flushImmediate.set(false);                                                         //Clear before taking frames so frames queued from now on schedule a new flush
+                flushPending.set(false);
+                if (batch != null || queue.isEmpty() || stopped) {                                 //Previous batch not finished yet, it flushes again when it is
+                    return;
+                }
+                takeBatch();
+                sendBatch();
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Take up to a batch of frames from the queue as the current batch
+    private void takeBatch() {
+        batch = new HashMap<>();
+        batchFrames = 0;
+        Frame frame;
+        while (batchFrames < batchSize && (frame = queue.poll()) != null) {
+            date.setTime(frame.time);
+            final String bucket = frame.device == null ? dateFormat.format(date) : dateFormat.format(date) + "/" + frame.device;
+            batch.put(bucket + "/" + root.push().getKey(), frame.value);                           //Push keys are generated locally, unique and in time order
+            batchReceivedTimes[batchFrames] = frame.receivedTime;
+            batchFrames++;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write the current batch as one multi-path update, the result comes back on the upload thread
+    private void sendBatch() {
+        root.updateChildren(batch).addOnCompleteListener(uploadExecutor, batchComplete);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Runnable on the upload thread that retries the batch after a failure
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                retryPending = false;
+                if (batch != null) {
+                    sendBatch();
+                }
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Result of updateChildren(), either move on to the next batch or retry this one after the backoff time
+    private final OnCompleteListener<Void> batchComplete = new OnCompleteListener<Void>() {
+        @Override
+        public void onComplete(Task<Void> task) {
+            if (stopped) {                                                                         //Batches sent by stop() are no longer tracked
+                return;
+            }
+            if (task.isSuccessful()) {
+                final MetricsRegistry.Histogram histogram = latencyHistogram;
+                if (histogram != null) {
+                    final long now = System.nanoTime();
+                    for (int i = 0; i < batchFrames; i++) {
+                        histogram.recordNanos(now - batchReceivedTimes[i]);
+                    }
+                }
+                uploadedFrames += batchFrames;
+                batches++;
+                batch = null;
+                backoff = INITIAL_BACKOFF;
+                if (!queue.isEmpty()) {                                                            //Frames queued while this batch was being written
+                    scheduleFlush();
+                }
+            }
+            else {
+                failures++;
+                Log.w(TAG, "Upload of " + batchFrames + " frames failed, retrying in " + backoff + " ms: "
+                        + (task.getException() != null ? task.getException().getMessage() : "unknown error"));
+                retryPending = true;
+                uploadHandler.postDelayed(retry, backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Executor that runs database results on the upload thread instead of the UI thread
+    private final Executor uploadExecutor = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            uploadHandler.post(runnable);
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Record the time from each frame being received to the database confirming it
+    public void setLatencyHistogram(MetricsRegistry.Histogram histogram) {
+        latencyHistogram = histogram;
+    }
+
+    public long getSubmittedFrames() {
+        return submittedFrames.get();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    public long getUploadedFrames() {
+        return uploadedFrames;
+    }
+
+    public long getBatches() {
+        return batches;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    public int getQueuedFrames() {
+        return queue.size();
+    }
+}
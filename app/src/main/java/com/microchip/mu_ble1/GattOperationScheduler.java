@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import java.util.PriorityQueue;
+
+/**
+ * Serializes every operation on a BluetoothGatt connection.
+ * Android only allows one outstanding GATT operation at a time and silently drops a new request while another is pending,
+ * so descriptor writes, characteristic writes, MTU, PHY and connection priority requests all go through this one queue.
+ *
+ * Operations run in priority order, first in first out within a priority, so connection setup can be queued ahead
+ * of bulk writes that are already waiting. Each operation has a timeout so a lost callback cannot stall the queue.
+ * All queue processing and completion callbacks run on the Looper given to the constructor.
+ */
+public class GattOperationScheduler {
+    private final static String TAG = GattOperationScheduler.class.getSimpleName();
+
+    public final static int STATUS_TIMEOUT = -1;                                                    //Completion status when the GATT callback did not arrive in time
+    public final static int STATUS_NOT_STARTED = -2;                                                //Completion status when the BluetoothGatt refused to start the operation
+    public final static int STATUS_CANCELLED = -3;                                                  //Completion status when the queue was cleared, usually on disconnection
+
+    public final static long DEFAULT_TIMEOUT = 5000;                                                //Default time in milliseconds to wait for an operation to complete
+    public final static long PHY_TIMEOUT = 1000;                                                    //Time to wait for onPhyUpdate(), some stacks never call it if the PHY is already in use
+    public final static int MAX_WRITE_LENGTH = 512;                                                 //Largest attribute value ATT allows, Android 13 and later reject longer writes even with an MTU of 517
+
+    public enum Type {DESCRIPTOR_WRITE, CHARACTERISTIC_WRITE, MTU_REQUEST, PHY_REQUEST, CONNECTION_PRIORITY}
+    public enum Priority {HIGH, NORMAL, LOW}                                                        //HIGH for connection setup, NORMAL for data, LOW for background work
+
+    private final static Type[] TYPES = Type.values();                                              //values() copies the array on every call, look the results up in this one
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Callback when an operation completes, status is a BluetoothGatt status or one of the STATUS_ constants above
+    public interface Callback {
+        void onComplete(Operation operation, int status);
+    }
+
+    private final static int MSG_RESULT = 1;                                                        //Message for a GATT callback result, arg1 is the Type ordinal and arg2 the status
+
+    private final Handler handler;                                                                  //Handler that all queue processing runs on
+    private final PriorityQueue<Operation> queue = new PriorityQueue<>();                           //Operations waiting to be started
+    private BluetoothGatt gatt;                                                                     //Connection that operations are performed on
+    private Operation current;                                                                      //Operation that has been started and not yet completed
+    private long nextSequence;                                                                      //To keep operations of the same priority in the order they were queued
+    private final MtuChunker chunker = new MtuChunker(MAX_WRITE_LENGTH);                            //Splits payloads for chunked writes, only one write runs at a time so one is enough
+    private volatile int maxWriteLength = 20;                                                       //Largest characteristic value for the current MTU, the default MTU of 23 less 3 bytes of header
+    private final MetricsRegistry.Histogram[] latencyHistograms = new MetricsRegistry.Histogram[TYPES.length]; //Time from each GATT request to its callback, by Type, null if not recorded
+    private long stepStartTime;                                                                     //System.nanoTime() when the current GATT request was made
+
+    public GattOperationScheduler(Looper looper) {
+        handler = new Handler(looper, new Handler.Callback() {                                      //Results arrive as pooled Messages so a stream of chunk writes creates no garbage
+            @Override
+            public boolean handleMessage(Message msg) {
+                if (msg.what == MSG_RESULT) {
+                    handleResult(TYPES[msg.arg1], msg.arg2);
+                    return true;
+                }
+                return false;
+            }
+        });
+    }
+
+    /******************************************************************************************************************
+     * Methods that may be called from any thread.
+     */
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Set the connection to perform operations on and cancel anything left over from a previous connection
+    public void setGatt(final BluetoothGatt newGatt) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                cancelAll();
+                gatt = newGatt;
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Cancel the operation in progress and all waiting operations, for example when disconnected
+    public void clear() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                cancelAll();
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Set the largest characteristic value that can be written, normally the negotiated MTU less 3 bytes
+    // Chunked writes use the length in effect when each chunk is written
+    public void setMaxWriteLength(int length) {
+        maxWriteLength = Math.max(1, Math.min(length, MAX_WRITE_LENGTH));
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Record the time from each GATT request of this type to its callback, every chunk of a chunked write is a request
+    public void setLatencyHistogram(Type type, MetricsRegistry.Histogram histogram) {
+        latencyHistograms[type.ordinal()] = histogram;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Add an operation to the queue, it is started as soon as the operations ahead of it complete
+    public void enqueue(final Operation operation) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                operation.sequence = nextSequence++;
+                queue.add(operation);
+                startNext();
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Report a GATT callback, called from the BluetoothGattCallback methods
+    // Completes the operation in progress if it is of the same type, otherwise the result was not requested by us and is ignored
+    public void onResult(Type type, int status) {
+        handler.obtainMessage(MSG_RESULT, type.ordinal(), status).sendToTarget();
+    }
+
+    /******************************************************************************************************************
+     * Methods that only run on the handler.
+     */
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Handle a GATT callback result
+    private void handleResult(Type type, int status) {
+        if (current == null || current.type != type) {
+            Log.d(TAG, "Ignoring unexpected " + type + " result");
+            return;
+        }
+        final Operation operation = current;
+        final MetricsRegistry.Histogram histogram = latencyHistograms[type.ordinal()];
+        if (histogram != null) {
+            histogram.recordNanos(System.nanoTime() - stepStartTime);
+        }
+        stepStartTime = System.nanoTime();                                                          //In case the operation starts another step
+        if (operation.onResult(gatt, status)) {                                                     //See if the operation has finished or has started another step
+            complete(operation, operation.resultStatus(status));
+        }
+        else {
+            handler.removeCallbacks(operation.timeout);                                             //Restart the timeout for the next step
+            handler.postDelayed(operation.timeout, operation.timeoutMillis);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start the operation at the head of the queue if there is nothing in progress
+    private void startNext() {
+        while (current == null && !queue.isEmpty()) {
+            final Operation operation = queue.poll();
+            if (gatt == null) {
+                finish(operation, STATUS_NOT_STARTED);
+                continue;
+            }
+            current = operation;
+            stepStartTime = System.nanoTime();
+            boolean started;
+            try {
+                started = operation.execute(gatt);
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+                started = false;
+            }
+            if (!started) {                                                                         //BluetoothGatt refused the request
+                Log.w(TAG, "Failed to start " + operation.type);
+                complete(operation, STATUS_NOT_STARTED);
+            }
+            else if (!operation.hasResult()) {                                                      //No GATT callback will follow, so it is already complete
+                complete(operation, BluetoothGatt.GATT_SUCCESS);
+            }
+            else {
+                handler.postDelayed(operation.timeout, operation.timeoutMillis);                    //Wait for the GATT callback, but not forever
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Finish the operation in progress and start the next one
+    private void complete(Operation operation, int status) {
+        handler.removeCallbacks(operation.timeout);
+        current = null;
+        finish(operation, status);
+        startNext();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Cancel every operation, including the one in progress
+    private void cancelAll() {
+        if (current != null) {
+            handler.removeCallbacks(current.timeout);
+            final Operation operation = current;
+            current = null;
+            finish(operation, STATUS_CANCELLED);
+        }
+        Operation operation;
+        while ((operation = queue.poll()) != null) {
+            finish(operation, STATUS_CANCELLED);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Tell the operation's callback that it has finished
+    private void finish(Operation operation, int status) {
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(TAG, operation.type + " completed with status: " + status);
+        }
+        if (operation.callback != null) {
+            try {
+                operation.callback.onComplete(operation, status);
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /******************************************************************************************************************
+     * Operations.
+     */
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Base class for all GATT operations
+    public abstract class Operation implements Comparable<Operation> {
+        public final Type type;
+        public final Priority priority;
+        private final long timeoutMillis;
+        private final Callback callback;
+        private long sequence;
+        private final Runnable timeout = new Runnable() {                                           //Runs if the GATT callback does not arrive in time
+            @Override
+            public void run() {
+                if (current == Operation.this) {
+                    Log.w(TAG, "Timed out waiting for " + type);
+                    complete(Operation.this, STATUS_TIMEOUT);
+                }
+            }
+        };
+
+        protected Operation(Type type, Priority priority, long timeoutMillis, Callback callback) {
+            this.type = type;
+            this.priority = priority;
+            this.timeoutMillis = timeoutMillis;
+            this.callback = callback;
+        }
+
+        // Start the operation, return false if the BluetoothGatt did not accept it
+        protected abstract boolean execute(BluetoothGatt gatt);
+
+        // Handle the GATT callback, return true when the operation is finished or false if another step was started
+        protected boolean onResult(BluetoothGatt gatt, int status) {
+            return true;
+        }
+
+        // Status to complete with, given the status of the last GATT callback
+        protected int resultStatus(int lastStatus) {
+            return lastStatus;
+        }
+
+        // Return false for operations that have no GATT callback to wait for
+        protected boolean hasResult() {
+            return true;
+        }
+
+        @Override
+        public int compareTo(Operation other) {
+            final int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write a descriptor, for example the CCCD to enable notifications
+    public Operation writeDescriptor(final BluetoothGattDescriptor descriptor, final byte[] value, Priority priority, Callback callback) {
+        return new Operation(Type.DESCRIPTOR_WRITE, priority, DEFAULT_TIMEOUT, callback) {
+            @Override
+            protected boolean execute(BluetoothGatt gatt) {
+                descriptor.setValue(value);
+                return gatt.writeDescriptor(descriptor);
+            }
+        };
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write a value to a characteristic using the write type already set on the characteristic
+    public Operation writeCharacteristic(final BluetoothGattCharacteristic characteristic, final byte[] value, Priority priority, Callback callback) {
+        return new Operation(Type.CHARACTERISTIC_WRITE, priority, DEFAULT_TIMEOUT, callback) {
+            @Override
+            protected boolean execute(BluetoothGatt gatt) {
+                characteristic.setValue(value);
+                return gatt.writeCharacteristic(characteristic);
+            }
+        };
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write a payload of any length to a characteristic, one chunk per write, without copying the payload first
+    // The caller must not change the bytes until the operation completes. Completes with the status of the first failed chunk, if any.
+    public Operation writeChunked(final BluetoothGattCharacteristic characteristic, final byte[] payload, final int offset, final int length,
+                                  Priority priority, Callback callback) {
+        return new Operation(Type.CHARACTERISTIC_WRITE, priority, DEFAULT_TIMEOUT, callback) {
+            private int firstError = BluetoothGatt.GATT_SUCCESS;
+
+            @Override
+            protected boolean execute(BluetoothGatt gatt) {
+                chunker.reset(payload, offset, length);
+                return writeNextChunk(gatt);
+            }
+
+            @Override
+            protected boolean onResult(BluetoothGatt gatt, int status) {
+                if (status != BluetoothGatt.GATT_SUCCESS && firstError == BluetoothGatt.GATT_SUCCESS) {
+                    firstError = status;                                                            //Remember the failure but keep sending the rest, as a single write would
+                }
+                if (!chunker.hasNext()) {                                                           //All chunks written
+                    chunker.release();
+                    return true;
+                }
+                if (!writeNextChunk(gatt)) {                                                        //BluetoothGatt refused the next chunk so give up on the rest
+                    firstError = STATUS_NOT_STARTED;
+                    chunker.release();
+                    return true;
+                }
+                return false;                                                                       //Wait for the next onCharacteristicWrite()
+            }
+
+            @Override
+            protected int resultStatus(int lastStatus) {
+                return firstError;
+            }
+
+            private boolean writeNextChunk(BluetoothGatt gatt) {
+                characteristic.setValue(chunker.next(maxWriteLength));                              //Reused chunk array, BluetoothGatt copies the value when the write is requested
+                return gatt.writeCharacteristic(characteristic);
+            }
+        };
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Request a new MTU size, the result arrives in onMtuChanged()
+    public Operation requestMtu(final int mtu, Priority priority, Callback callback) {
+        return new Operation(Type.MTU_REQUEST, priority, DEFAULT_TIMEOUT, callback) {
+            @Override
+            protected boolean execute(BluetoothGatt gatt) {
+                return gatt.requestMtu(mtu);
+            }
+        };
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Request the preferred PHY, the result arrives in onPhyUpdate(), needs Android 8 or later
+    // Several stacks do not call back when the PHY asked for is already in use, so this only waits PHY_TIMEOUT and then
+    // completes with STATUS_TIMEOUT, which means the PHY is as it was, rather than hold up the queue behind it
+    public Operation setPreferredPhy(final int txPhy, final int rxPhy, final int phyOptions, Priority priority, Callback callback) {
+        return new Operation(Type.PHY_REQUEST, priority, PHY_TIMEOUT, callback) {
+            @Override
+            protected boolean execute(BluetoothGatt gatt) {
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {                                //Build.VERSION_CODES.O = 26 for Android 8
+                    return false;
+                }
+                gatt.setPreferredPhy(txPhy, rxPhy, phyOptions);
+                return true;
+            }
+        };
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Request a connection priority (connection interval), there is no GATT callback so it completes once requested
+    public Operation requestConnectionPriority(final int connectionPriority, Priority priority, Callback callback) {
+        return new Operation(Type.CONNECTION_PRIORITY, priority, DEFAULT_TIMEOUT, callback) {
+            @Override
+            protected boolean execute(BluetoothGatt gatt) {
+                return gatt.requestConnectionPriority(connectionPriority);
+            }
+
+            @Override
+            protected boolean hasResult() {
+                return false;
+            }
+        };
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Devices recently connected to, most recent first, kept in SharedPreferences so they survive the app being closed.
+ * For each device it keeps the name and the GATT layout found the last time services were discovered: the services,
+ * how the Transparent UART Send characteristic is written, and the MTU that was granted. The layout lets the next
+ * connection check that it is talking to the same firmware without a scan.
+ */
+public class KnownDeviceStore {
+    private final static String TAG = KnownDeviceStore.class.getSimpleName();                       //Get name of class for tagging log messages
+
+    public static final int MAX_DEVICES = 5;                                                        //Number of devices remembered, the oldest is forgotten first
+    private static final String PREFERENCES_NAME = "known_devices";
+    private static final String KEY_DEVICES = "devices";
+
+    private final SharedPreferences preferences;
+    private final ArrayList<KnownDevice> devices = new ArrayList<>();                               //Most recently connected first
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // One remembered device and its last known GATT layout
+    public static final class KnownDevice {
+        private final String address;
+        private final String name;
+        private final long lastConnected;                                                           //System.currentTimeMillis() when services were last discovered
+        private final List<String> services;                                                        //UUIDs of the services, in the order discovered
+        private final int sendWriteType;                                                            //Write type used for the Transparent UART Send characteristic
+        private final int mtu;                                                                      //MTU granted on the last connection
+
+        public KnownDevice(String address, String name, long lastConnected, List<String> services, int sendWriteType, int mtu) {
+            this.address = address;
+            this.name = name;
+            this.lastConnected = lastConnected;
+            this.services = Collections.unmodifiableList(new ArrayList<>(services));
+            this.sendWriteType = sendWriteType;
+            this.mtu = mtu;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLastConnected() {
+            return lastConnected;
+        }
+
+        public List<String> getServices() {
+            return services;
+        }
+
+        public int getSendWriteType() {
+            return sendWriteType;
+        }
+
+        public int getMtu() {
+            return mtu;
+        }
+
+        // See if a newly discovered layout is the same as the remembered one
+        public boolean hasSameLayout(List<String> services, int sendWriteType) {
+            return this.services.equals(services) && this.sendWriteType == sendWriteType;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor, reads the remembered devices
+    public KnownDeviceStore(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        load();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Remember a device, replacing what was remembered about it before and making it the most recent
+    public synchronized void remember(KnownDevice device) {
+        for (int i = devices.size() - 1; i >= 0; i--) {
+            if (devices.get(i).address.equals(device.address)) {
+                devices.remove(i);
+            }
+        }
+        devices.add(0, device);
+        while (devices.size() > MAX_DEVICES) {
+            devices.remove(devices.size() - 1);
+        }
+        save();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Record the MTU granted on the current connection
+    public synchronized void updateMtu(String address, int mtu) {
+        for (int i = 0; i < devices.size(); i++) {
+            final KnownDevice device = devices.get(i);
+            if (device.address.equals(address) && device.mtu != mtu) {
+                devices.set(i, new KnownDevice(address, device.name, device.lastConnected, device.services, device.sendWriteType, mtu));
+                save();
+            }
+        }
+    }
+
+    public synchronized void forget(String address) {
+        for (int i = devices.size() - 1; i >= 0; i--) {
+            if (devices.get(i).address.equals(address)) {
+                devices.remove(i);
+            }
+        }
+        save();
+    }
+
+    public synchronized KnownDevice get(String address) {
+        for (KnownDevice device : devices) {
+            if (device.address.equals(address)) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    // Most recently connected device, null if there are none
+    public synchronized KnownDevice getLastDevice() {
+        return devices.isEmpty() ? null : devices.get(0);
+    }
+
+    public synchronized List<KnownDevice> getDevices() {
+        return new ArrayList<>(devices);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Read the devices from the JSON array in the preferences
+    private void load() {
+        try {
+            final JSONArray array = new JSONArray(preferences.getString(KEY_DEVICES, "[]"));
+            for (int i = 0; i < array.length(); i++) {
+                final JSONObject object = array.getJSONObject(i);
+                final JSONArray serviceArray = object.getJSONArray("services");
+                final ArrayList<String> services = new ArrayList<>(serviceArray.length());
+                for (int j = 0; j < serviceArray.length(); j++) {
+                    services.add(serviceArray.getString(j));
+                }
+                devices.add(new KnownDevice(object.getString("address"), object.optString("name", null), object.getLong("lastConnected"),
+                        services, object.getInt("sendWriteType"), object.getInt("mtu")));
+            }
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write the devices as a JSON array, apply() writes to storage in the background
+    private void save() {
+        try {
+            final JSONArray array = new JSONArray();
+            for (KnownDevice device : devices) {
+                final JSONObject object = new JSONObject();
+                object.put("address", device.address);
+                if (device.name != null) {
+                    object.put("name", device.name);
+                }
+                object.put("lastConnected", device.lastConnected);
+                object.put("services", new JSONArray(device.services));
+                object.put("sendWriteType", device.sendWriteType);
+                object.put("mtu", device.mtu);
+                array.put(object);
+            }
+            preferences.edit().putString(KEY_DEVICES, array.toString()).apply();
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Named counters, high-water marks, latency histograms and gauges for the Bluetooth link and the data pipeline.
+ * Metrics are created once, by name, and the objects kept by the code that records them. Recording only updates
+ * atomic longs, never allocates and never locks, so it can be done for every notification on any thread.
+ * Everything is read and formatted by dump(), which BleService uses for dumpsys.
+ */
+public class MetricsRegistry {
+
+    private final ConcurrentHashMap<String, Metric> metrics = new ConcurrentHashMap<>();
+    private final long startTime = System.nanoTime();                                               //Rates are averaged from here
+    private long lastDumpTime = startTime;                                                          //Recent rates are measured from the last dump
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Base class for all metrics, prints its current value on one line
+    public abstract static class Metric {
+        abstract void dump(PrintWriter writer, String name, double elapsed, double recentElapsed);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Count of events or bytes, shown with its average rate and its rate since the last dump
+    public static final class Counter extends Metric {
+        private final AtomicLong value = new AtomicLong();
+        private long lastDumpValue;
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long amount) {
+            value.addAndGet(amount);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        @Override
+        void dump(PrintWriter writer, String name, double elapsed, double recentElapsed) {
+            final long current = value.get();
+            writer.printf("%-40s %12d  %10.1f/s  recent %10.1f/s%n", name, current, current / elapsed,
+                    recentElapsed > 0 ? (current - lastDumpValue) / recentElapsed : 0.0);
+            lastDumpValue = current;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Highest value seen, for example the most bytes ever waiting in a buffer
+    public static final class HighWaterMark extends Metric {
+        private final AtomicLong value = new AtomicLong();
+
+        public void update(long current) {
+            long high = value.get();
+            while (current > high && !value.compareAndSet(high, current)) {
+                high = value.get();
+            }
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        @Override
+        void dump(PrintWriter writer, String name, double elapsed, double recentElapsed) {
+            writer.printf("%-40s %12d  (high-water)%n", name, value.get());
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Distribution of latencies in microseconds, in power of two buckets so recording is a few instructions
+    // Bucket i holds values from 2^(i-1) to 2^i - 1, percentiles are reported as the top of their bucket
+    public static final class Histogram extends Metric {
+        private static final int BUCKETS = 40;                                                      //Largest bucket holds everything over about 6 days
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final HighWaterMark max = new HighWaterMark();
+
+        // Record a latency given in nanoseconds
+        public void recordNanos(long nanos) {
+            recordMicros(nanos / 1000);
+        }
+
+        public void recordMicros(long micros) {
+            if (micros < 0) {
+                micros = 0;
+            }
+            counts.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+            count.incrementAndGet();
+            sum.addAndGet(micros);
+            max.update(micros);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getMeanMicros() {
+            final long n = count.get();
+            return n > 0 ? (double) sum.get() / n : 0;
+        }
+
+        public long getMaxMicros() {
+            return max.get();
+        }
+
+        // Upper bound of the bucket that holds the given fraction of values, 0.99 for the 99th percentile
+        public long getPercentileMicros(double fraction) {
+            final long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            final long target = (long) Math.ceil(fraction * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= target) {
+                    return Math.min((1L << i) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        @Override
+        void dump(PrintWriter writer, String name, double elapsed, double recentElapsed) {
+            writer.printf("%-40s %12d  mean %8.1f ms  p50 %8.1f ms  p90 %8.1f ms  p99 %8.1f ms  max %8.1f ms%n", name, count.get(),
+                    getMeanMicros() / 1000, getPercentileMicros(0.5) / 1000.0, getPercentileMicros(0.9) / 1000.0,
+                    getPercentileMicros(0.99) / 1000.0, max.get() / 1000.0);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Value read when metrics are dumped, for counts already kept by other classes
+    public interface Gauge {
+        long get();
+    }
+
+    private static final class GaugeMetric extends Metric {
+        private final Gauge gauge;
+
+        GaugeMetric(Gauge gauge) {
+            this.gauge = gauge;
+        }
+
+        @Override
+        void dump(PrintWriter writer, String name, double elapsed, double recentElapsed) {
+            writer.printf("%-40s %12d%n", name, gauge.get());
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Get the metric with this name, creating it the first time
+    public Counter counter(String name) {
+        final Metric metric = metrics.get(name);
+        return cast(name, metric != null ? metric : register(name, new Counter()), Counter.class);
+    }
+
+    public HighWaterMark highWaterMark(String name) {
+        final Metric metric = metrics.get(name);
+        return cast(name, metric != null ? metric : register(name, new HighWaterMark()), HighWaterMark.class);
+    }
+
+    public Histogram histogram(String name) {
+        final Metric metric = metrics.get(name);
+        return cast(name, metric != null ? metric : register(name, new Histogram()), Histogram.class);
+    }
+
+    // Register a gauge, replacing any gauge with the same name
+    public void gauge(String name, Gauge gauge) {
+        metrics.put(name, new GaugeMetric(gauge));
+    }
+
+    // Add a new metric unless another thread got there first, returns the one that is registered
+    private Metric register(String name, Metric created) {
+        final Metric existing = metrics.putIfAbsent(name, created);
+        return existing != null ? existing : created;
+    }
+
+    private static <T extends Metric> T cast(String name, Metric metric, Class<T> type) {
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException("Metric " + name + " is not a " + type.getSimpleName());
+        }
+        return type.cast(metric);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Print every metric, sorted by name
+    public synchronized void dump(PrintWriter writer) {
+        final long now = System.nanoTime();
+        final double elapsed = Math.max(1e-9, (now - startTime) / 1e9);
+        final double recentElapsed = (now - lastDumpTime) / 1e9;
+        lastDumpTime = now;
+        writer.printf("Metrics over %.1f s, recent rates over the last %.1f s%n", elapsed, recentElapsed);
+        final ArrayList<String> names = new ArrayList<>(metrics.keySet());
+        Collections.sort(names);
+        for (String name : names) {
+            metrics.get(name).dump(writer, name, elapsed, recentElapsed);
+        }
+        writer.flush();
+    }
+}
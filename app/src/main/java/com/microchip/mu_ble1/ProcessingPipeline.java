@@ -0,0 +1,768 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Processing stage between the BleService and the display, on its own thread.
+ * Received data is copied into a ring buffer and the pipeline thread finds the frames, decodes the samples and
+ * assembles the acquisition cycles. Each decoded frame is then published on a SampleStream, and the consumers each
+ * take it at their own pace on their own thread, with their own queue and overflow policy:
+ *
+ *   chart     DROP_OLDEST  appends to the graph window and decimates it, the graph always shows the newest data
+ *   recorder  BLOCK        appends to the session log, which must never lose a frame and is fast enough not to stall
+ *
+ * The upload reads from the session log. Each frame appended wakes the upload thread, which reads the new records back
+ * through a SessionLog.Reader, encodes them with the SampleCodec and queues them for the FirebaseUploader, which never
+ * waits. So a frame is only uploaded once it is in the log, in the recorder's channel, and a slow upload never holds up
+ * the log. Frames only drop out of the FirebaseUploader's own bounded queue, counted as pipeline.upload.dropped_frames.
+ *
+ * The blocks come from a pool and go back to it once every consumer has finished with them, so a steady stream of
+ * frames allocates nothing on the pipeline thread.
+ *
+ * The decoded samples go through a configurable SampleFilter chain on the pipeline thread, so each block carries the
+ * raw and the filtered samples and every consumer takes the channel set for it, by default the chart shows the filtered
+ * channel while the session log, and so the upload, keep the raw data. The filter state carries over from frame to frame
+ * and starts again with each connection.
+ *
+ * A SpectrumAnalyzer can also run on the pipeline thread, on every sample of one channel so the sliding window has no
+ * gaps, and its magnitude bins are published to the display in SpectrumSnapshots, buffered like the graph snapshots.
+ *
+ * Each connected device has its own pipeline, named by the device, so the frames of one device are never mixed into the
+ * stream of another. The device name goes into the session log names, the upload path and the metric names.
+ *
+ * The display is never handed raw data, only finished RenderSnapshots with the points to draw, so a burst of data costs
+ * the main thread one redraw however many frames arrived.
+ *
+ * Snapshots are triple buffered: the pipeline fills one, the display draws another and the third holds the newest
+ * finished one, so neither thread ever waits for the other and nothing is allocated once the graph width is known.
+ */
+public class ProcessingPipeline {
+    private final static String TAG = ProcessingPipeline.class.getSimpleName();                    //Get name of class for tagging log messages
+
+    private static final int INPUT_BUFFER_SIZE = BleService.RECEIVE_BUFFER_SIZE;                   //Received bytes waiting for the pipeline thread, must be a power of two
+    private static final int CHART_QUEUE =       64;                                                //Frames that can wait for each consumer
+    private static final int RECORDER_QUEUE =    256;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Events from the pipeline, called on the pipeline thread
+    public interface Listener {
+        void onSnapshot();                                                                          //A new RenderSnapshot is ready to take
+        void onCycleComplete();                                                                     //A full acquisition cycle has been received
+        void onSpectrum();                                                                          //A new SpectrumSnapshot is ready to take
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Everything the display needs for one redraw, only read by the display after takeSnapshot() returns it
+    public static final class RenderSnapshot {
+        private float[] x = new float[0], y = new float[0];                                        //Decimated points, absolute sample index and value
+        private int points;
+        private long version;                                                                       //Increases with every snapshot published
+        private long oldestReceivedTime;                                                            //System.nanoTime() the oldest data not yet taken by the display arrived, 0 if none
+        private int lastSequence = -1;                                                              //Sequence number of the newest frame in the window
+        private long cycles;                                                                        //Acquisition cycles completed so far
+        private long frames;                                                                        //Frames processed so far
+
+        public float[] getX() {
+            return x;
+        }
+
+        public float[] getY() {
+            return y;
+        }
+
+        public int getPoints() {
+            return points;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getOldestReceivedTime() {
+            return oldestReceivedTime;
+        }
+
+        public int getLastSequence() {
+            return lastSequence;
+        }
+
+        public long getCycles() {
+            return cycles;
+        }
+
+        public long getFrames() {
+            return frames;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Magnitude bins of one spectrum for the display, only read by the display after takeSpectrum() returns it
+    public static final class SpectrumSnapshot {
+        private float[] magnitudes = new float[0];                                                  //Amplitude of each bin, bin k is at k / size of the sample rate
+        private int bins;
+        private int size;                                                                           //Samples in the FFT window
+        private long version;                                                                       //Increases with every spectrum published
+
+        public float[] getMagnitudes() {
+            return magnitudes;
+        }
+
+        public int getBins() {
+            return bins;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    private final String device;                                                                    //Device the data comes from, null if not known
+    private final String metricsPrefix;                                                             //Start of the metric names, includes the device
+    private final Listener listener;
+    private final FirebaseUploader uploader;
+    private final File sessionDirectory;
+    private final HandlerThread pipelineThread;
+    private final Handler pipelineHandler;
+    private final ByteRingBuffer input = new ByteRingBuffer(INPUT_BUFFER_SIZE);                    //Written by the BleService data thread, read by the pipeline thread
+    private final AtomicBoolean drainPending = new AtomicBoolean();                                 //A drain is posted to the pipeline thread
+    private volatile long inputReceivedTime;                                                        //System.nanoTime() of the newest data put in the input buffer
+
+    // Only used on the pipeline thread
+    private final byte[] drainBuffer = new byte[INPUT_BUFFER_SIZE];
+    private final FrameReassembler frameReassembler;                                                //Finds the frames in the received data
+    private final SampleStream.BlockPool blockPool;                                                 //Blocks for the decoded samples of each frame, reused once every consumer is done
+    private final int cycleLength;                                                                  //Samples in one acquisition cycle
+    private int samplesInCycle;                                                                     //Samples of the current acquisition cycle received so far
+    private int lastFrameSequence = -1;                                                             //Sequence number of the last frame processed, -1 before the first
+    private long drainReceivedTime;                                                                 //Time the data being fed to the FrameReassembler arrived
+    private volatile long cycles, frames;
+    private SampleFilter filter;                                                                    //Filter chain for the FILTERED channel, null for none
+    private SpectrumAnalyzer spectrumAnalyzer;                                                      //Spectrum of the samples, null for none
+    private long spectrumVersion;                                                                   //Version of the newest spectrum published
+    private SpectrumSnapshot spectrumBack = new SpectrumSnapshot();                                 //Spectrum being filled
+    private volatile SampleStream.Channel spectrumChannel = SampleStream.Channel.RAW;               //Channel the spectrum is computed from
+    private MetricsRegistry.Counter framesProcessed;
+
+    // Consumers of the decoded frames
+    private final SampleStream stream = new SampleStream();
+    private final SampleStream.Subscription chartSubscription, recorderSubscription;
+    private final Object chartLock = new Object();                                                  //Guards the graph window and the back snapshot, mostly used on the chart thread
+    private SampleWindow sampleWindow;                                                              //Most recent samples for the graph
+    private long pendingSince;                                                                      //Time the oldest data not yet taken by the display arrived, 0 if none
+    private int chartSequence = -1;                                                                 //Sequence number of the newest frame in the graph window
+    private long publishedVersion;                                                                  //Version of the newest snapshot published
+    private RenderSnapshot back = new RenderSnapshot();                                            //Snapshot being filled
+    private SessionLog sessionLog;                                                                  //Local log of every decoded frame of the current connection, only used on the recorder thread
+    private volatile MetricsRegistry.HighWaterMark uploadQueueHigh;
+    private volatile SampleStream.Channel chartChannel = SampleStream.Channel.FILTERED;             //Channel each consumer takes
+    private volatile SampleStream.Channel recorderChannel = SampleStream.Channel.RAW;
+    private volatile Runnable onStopped;                                                            //Run once the last frame is logged and handed to the uploader, null for nothing
+
+    // Upload from the session log
+    private final HandlerThread uploadThread;
+    private final Handler uploadHandler;
+    private final AtomicBoolean uploadPending = new AtomicBoolean();                                //An upload of new records is posted to the upload thread
+    private volatile long recordsLogged;                                                            //Records appended to every session log so far, set after each append
+    private volatile long recordsUploaded;                                                          //Records read back and handed to the uploader, or skipped, only set on the upload thread
+    private SessionLog.Reader uploadReader;                                                         //Session log being uploaded, null between sessions, only used on the upload thread
+    private SessionLog.Reader.Cursor uploadCursor;
+    private float[] uploadSamples = new float[0];
+    private final SampleCodec uploadCodec = new SampleCodec();
+
+    private final AtomicReference<RenderSnapshot> ready = new AtomicReference<>(new RenderSnapshot()); //Newest finished snapshot, or the one the display gave back
+    private RenderSnapshot front = new RenderSnapshot();                                           //Snapshot the display is drawing, only used on the display thread
+    private volatile long takenVersion;                                                             //Version of the snapshot the display last took
+    private final AtomicReference<SpectrumSnapshot> spectrumReady = new AtomicReference<>(new SpectrumSnapshot()); //Newest finished spectrum, or the one the display gave back
+    private SpectrumSnapshot spectrumFront = new SpectrumSnapshot();                                //Spectrum the display is drawing, only used on the display thread
+    private volatile int columns = 1;                                                               //Width of the graph in pixels, the snapshot has at most two points per column
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor, starts the pipeline thread
+    // device names the source of the data, letters and digits only, null if not known
+    // maxFramePayload is the largest frame the sensor sends, cycleSamples the number of samples in one acquisition cycle
+    public ProcessingPipeline(String device, int maxFramePayload, int cycleSamples, int windowSamples, File sessionDirectory,
+                              FirebaseUploader uploader, Listener listener) {
+        this.device = device;
+        metricsPrefix = device == null ? "pipeline." : "pipeline." + device + ".";
+        this.listener = listener;
+        this.uploader = uploader;
+        this.sessionDirectory = sessionDirectory;
+        frameReassembler = new FrameReassembler(maxFramePayload, frameListener);
+        blockPool = new SampleStream.BlockPool(CHART_QUEUE + RECORDER_QUEUE + 3,                   //Enough for every queue to be full, each consumer to hold one and one being filled
+                maxFramePayload / SampleDecoder.BYTES_PER_SAMPLE, true);
+        cycleLength = cycleSamples;
+        sampleWindow = new SampleWindow(windowSamples);
+        pipelineThread = new HandlerThread(TAG);
+        pipelineThread.start();
+        pipelineHandler = new Handler(pipelineThread.getLooper());
+        uploadThread = new HandlerThread(TAG + "Upload");
+        uploadThread.start();
+        uploadHandler = new Handler(uploadThread.getLooper());
+        chartSubscription = stream.subscribe("chart", CHART_QUEUE, SampleStream.OverflowPolicy.DROP_OLDEST, chart);
+        recorderSubscription = stream.subscribe("recorder", RECORDER_QUEUE, SampleStream.OverflowPolicy.BLOCK, recorder);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Device the data comes from, null if not known
+    public String getDevice() {
+        return device;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Add another consumer of the decoded frames, for example analysis that only needs the latest data
+    public SampleStream.Subscription subscribe(String name, int capacity, SampleStream.OverflowPolicy policy, SampleStream.Subscriber subscriber) {
+        return stream.subscribe(name, capacity, policy, subscriber);
+    }
+
+    /******************************************************************************************************************
+     * Input, from the BleService data thread
+     */
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Copy received data into the input buffer and have the pipeline thread process it, only from one thread
+    // Returns straight away, receivedTime is the System.nanoTime() the data arrived
+    public void submit(byte[] data, int length, long receivedTime) {
+        final int written = input.write(data, 0, length);
+        if (written < length) {                                                                     //Pipeline thread has fallen a whole buffer behind
+            Log.w(TAG, "Pipeline input overflow, total bytes dropped: " + input.getOverflowBytes());
+        }
+        inputReceivedTime = receivedTime;
+        if (!drainPending.getAndSet(true)) {
+            pipelineHandler.post(drain);
+        }
+    }
+
+    /******************************************************************************************************************
+     * Control, from any thread
+     */
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The connection has ended, finish the session log and start the next connection with a fresh cycle and frame stream
+    public void endSession() {
+        pipelineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stream.publish(SampleStream.Block.endOfSession());                                  //Recorder finishes the session log when it gets here
+                input.clear();
+                frameReassembler.reset();
+                samplesInCycle = 0;
+                lastFrameSequence = -1;
+                if (filter != null) {
+                    filter.reset();                                                                 //The next connection is a new signal
+                }
+                if (spectrumAnalyzer != null) {
+                    spectrumAnalyzer.reset();
+                }
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Filter for the FILTERED channel, replacing the current one, null for none
+    // From now on the filter is only used on the pipeline thread, do not use it anywhere else
+    public void setFilter(final SampleFilter filter) {
+        pipelineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (filter != null) {
+                    filter.reset();
+                }
+                ProcessingPipeline.this.filter = filter;
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Analyzer for the spectrum, replacing the current one, null for none
+    // From now on the analyzer is only used on the pipeline thread, do not use it anywhere else
+    public void setSpectrumAnalyzer(final SpectrumAnalyzer analyzer) {
+        pipelineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (analyzer != null) {
+                    analyzer.reset();
+                }
+                spectrumAnalyzer = analyzer;
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Channel the spectrum is computed from, the raw samples if there is no filter
+    public void setSpectrumChannel(SampleStream.Channel channel) {
+        spectrumChannel = channel;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Channel the chart and the session log take, each sees the change from its next frame, the upload is read from the log
+    // Without a filter every consumer gets the raw samples whatever its channel
+    public void setChannels(SampleStream.Channel chart, SampleStream.Channel recorder) {
+        chartChannel = chart;
+        recorderChannel = recorder;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Replace the graph window with one loaded from a session log, frames received after this are added to it
+    public void showWindow(SampleWindow window) {
+        synchronized (chartLock) {
+            sampleWindow = window;
+            publishSnapshot();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Finish the session log and stop the pipeline thread once everything already submitted has been processed
+    // The consumers finish the frames already queued for them and then end their threads
+    public void stop() {
+        stop(null);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // As stop(), and run stopped on the upload thread once every frame is in the session log and handed to the
+    // FirebaseUploader, so the uploader is not stopped before the last frames reach it
+    public void stop(Runnable stopped) {
+        onStopped = stopped;
+        endSession();
+        pipelineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stream.close();
+            }
+        });
+        pipelineThread.quitSafely();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Add the pipeline metrics to a registry, counts kept by the pipeline classes are read as gauges
+    public void registerMetrics(MetricsRegistry metrics) {
+        uploadQueueHigh = metrics.highWaterMark(metricsPrefix + "upload.queue.frames");
+        framesProcessed = metrics.counter(metricsPrefix + "frames");
+        metrics.gauge(metricsPrefix + "input.overflow_bytes", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return input.getOverflowBytes();
+            }
+        });
+        metrics.gauge(metricsPrefix + "blocks_allocated", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return blockPool.getAllocated();
+            }
+        });
+        metrics.gauge(metricsPrefix + "reassembler.crc_errors", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return frameReassembler.getCrcErrors();
+            }
+        });
+        metrics.gauge(metricsPrefix + "reassembler.lost_frames", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return frameReassembler.getLostFrames();
+            }
+        });
+        metrics.gauge(metricsPrefix + "reassembler.discarded_bytes", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return frameReassembler.getDiscardedBytes();
+            }
+        });
+        registerMetrics(metrics, metricsPrefix, chartSubscription);
+        metrics.gauge(metricsPrefix + "upload.lag_frames", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return recordsLogged - recordsUploaded;
+            }
+        });
+        registerMetrics(metrics, metricsPrefix, recorderSubscription);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Frames dropped, the most frames waiting and the time the pipeline thread waited, for one consumer
+    public static void registerMetrics(MetricsRegistry metrics, final SampleStream.Subscription subscription) {
+        registerMetrics(metrics, "pipeline.", subscription);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Same, with the metric names starting with metricsPrefix
+    private static void registerMetrics(MetricsRegistry metrics, String metricsPrefix, final SampleStream.Subscription subscription) {
+        final String prefix = metricsPrefix + "stream." + subscription.getName();
+        metrics.gauge(prefix + ".dropped_frames", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return subscription.getDropped();
+            }
+        });
+        metrics.gauge(prefix + ".queue_high", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return subscription.getHighWater();
+            }
+        });
+        metrics.gauge(prefix + ".blocked_ms", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return subscription.getBlockedNanos() / 1000000;
+            }
+        });
+    }
+
+    /******************************************************************************************************************
+     * Output, on the display thread
+     */
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Newest finished snapshot, or the one returned last time if nothing newer has been published
+    // The snapshot stays unchanged until the next call, always call from the same thread
+    public RenderSnapshot takeSnapshot() {
+        if (ready.get().version > front.version) {                                                  //Only the pipeline puts newer snapshots there
+            front = ready.getAndSet(front);
+            takenVersion = front.version;
+        }
+        return front;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Newest finished spectrum, or the one returned last time if nothing newer has been published
+    // The spectrum stays unchanged until the next call, always call from the same thread
+    public SpectrumSnapshot takeSpectrum() {
+        if (spectrumReady.get().version > spectrumFront.version) {
+            spectrumFront = spectrumReady.getAndSet(spectrumFront);
+        }
+        return spectrumFront;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Width of the graph in pixels, a new snapshot is made if it changed
+    public void setColumns(int columns) {
+        columns = Math.max(1, columns);
+        if (this.columns != columns) {
+            this.columns = columns;
+            pipelineHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (chartLock) {
+                        publishSnapshot();
+                    }
+                }
+            });
+        }
+    }
+
+    /******************************************************************************************************************
+     * Pipeline thread
+     */
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Runnable that takes everything in the input buffer through the FrameReassembler, then publishes one snapshot
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                drainPending.set(false);                                                            //Clear before reading so data arriving from now on posts a new drain
+                drainReceivedTime = inputReceivedTime;                                              //Read before the buffer so the time is never later than the data
+                int length;
+                while ((length = input.read(drainBuffer, 0, drainBuffer.length)) > 0) {
+                    frameReassembler.feed(drainBuffer, 0, length);                                  //Complete frames are processed and published before this returns
+                }
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // FrameListener receives each complete frame with a good CRC, on the pipeline thread
+    private final FrameReassembler.FrameListener frameListener = new FrameReassembler.FrameListener() {
+        @Override
+        public void onFrame(int sequence, byte[] buffer, int offset, int length) {
+            processFrame(sequence, buffer, offset, length);
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Decode the samples in a frame, count them towards the acquisition cycle and publish them to the consumers
+    private void processFrame(int sequence, byte[] buffer, int offset, int length) {
+        try {
+            if (lastFrameSequence >= 0 && sequence != ((lastFrameSequence + 1) & 0xFFFF) && samplesInCycle > 0) { //Frames were lost so the cycle has a hole in it
+                Log.w(TAG, "Lost " + frameReassembler.getLostFrames() + " frames in total, discarding " + samplesInCycle + " samples of the current cycle");
+                samplesInCycle = 0;                                                                 //Start a new cycle rather than put samples in the wrong place
+            }
+            lastFrameSequence = sequence;
+            final SampleStream.Block block = blockPool.obtain();
+            final float[] samples = block.getRawBuffer();
+            final int count = SampleDecoder.decodeBcd16Le(buffer, offset, samples, 0,
+                    length / SampleDecoder.BYTES_PER_SAMPLE);                                       //Decode straight from the bytes into the block
+            samplesInCycle += count;                                                                //Only counted, the consumers get the samples frame by frame
+            while (samplesInCycle >= cycleLength) {                                                 //A frame may complete one cycle and start the next
+                samplesInCycle -= cycleLength;
+                cycles++;
+                listener.onCycleComplete();
+            }
+            frames++;
+            if (framesProcessed != null) {
+                framesProcessed.increment();
+            }
+            float[] filtered = null;
+            if (filter != null) {
+                filtered = block.getFilteredBuffer();
+                System.arraycopy(samples, 0, filtered, 0, count);
+                filter.process(filtered, 0, count);                                                 //In place on the copy, the filter state carries on to the next frame
+            }
+            if (spectrumAnalyzer != null) {
+                final float[] spectrumSamples = spectrumChannel == SampleStream.Channel.FILTERED && filtered != null ? filtered : samples;
+                if (spectrumAnalyzer.append(spectrumSamples, 0, count) > 0) {                       //Only the newest spectrum of the frame is shown
+                    publishSpectrum();
+                }
+            }
+            stream.publish(block.set(sequence, drainReceivedTime, count, filtered != null));        //Every consumer shares the one block, the payload bytes are not needed
+        } catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+
+    /******************************************************************************************************************
+     * Consumers, each on its own SampleStream thread
+     */
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Chart consumer, adds the samples to the graph window and publishes a snapshot once it has caught up
+    private final SampleStream.Subscriber chart = new SampleStream.Subscriber() {
+        @Override
+        public void onBlock(SampleStream.Block block) {
+            try {
+                if (block.isEndOfSession()) {
+                    return;
+                }
+                synchronized (chartLock) {
+                    final float[] samples = block.getSamples(chartChannel);
+                    sampleWindow.append(samples, 0, block.getLength());
+                    chartSequence = block.getSequence();
+                    if (pendingSince == 0 || takenVersion >= publishedVersion) {                    //Display has taken everything published so far, start timing from this data
+                        pendingSince = block.getReceivedTime();
+                    }
+                    if (chartSubscription.getQueued() == 0) {                                       //Decimate once per burst, not once per frame
+                        publishSnapshot();
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onComplete() {}
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Recorder consumer, writes every frame to the session log and finishes the log at the end of each connection
+    private final SampleStream.Subscriber recorder = new SampleStream.Subscriber() {
+        @Override
+        public void onBlock(SampleStream.Block block) {
+            if (block.isEndOfSession()) {
+                closeSessionLog();                                                                  //The next connection starts a new session
+            }
+            else {
+                logFrame(block.getSequence(), block.getSamples(recorderChannel), block.getLength());
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            closeSessionLog();                                                                      //Make sure the session is complete on storage
+            uploadHandler.post(new Runnable() {                                                     //After the last of the log has been uploaded
+                @Override
+                public void run() {
+                    uploadThread.quitSafely();
+                    final Runnable stopped = onStopped;
+                    if (stopped != null) {
+                        stopped.run();
+                    }
+                }
+            });
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Append the decoded samples of a frame to the session log, starting a new session log with the first frame
+    private void logFrame(int sequence, float[] samples, int length) {
+        if (length == 0) {
+            return;
+        }
+        try {
+            if (sessionLog == null) {
+                final String time = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+                final String name = device == null ? time : time + "_" + device;                    //Devices connected at the same time each have their own log
+                sessionLog = SessionLog.create(sessionDirectory, name);
+                Log.i(TAG, "Logging session " + name);
+                final long firstRecord = recordsLogged;
+                uploadHandler.post(new Runnable() {                                                 //Before any upload of the new records
+                    @Override
+                    public void run() {
+                        openUploadLog(name, firstRecord);
+                    }
+                });
+            }
+            sessionLog.append(System.currentTimeMillis(), sequence, samples, 0, length);
+            recordsLogged++;                                                                        //After the append, so the upload never reads a record still being written
+            if (!uploadPending.getAndSet(true)) {
+                uploadHandler.post(uploadFromLog);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            closeSessionLog();                                                                      //Try a new session log with the next frame
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Finish the current session log, if there is one
+    private void closeSessionLog() {
+        if (sessionLog == null) {
+            return;
+        }
+        try {
+            Log.i(TAG, "Session " + sessionLog.getName() + " logged " + sessionLog.getRecords() + " frames, " + sessionLog.getSize() + " bytes");
+            sessionLog.close();
+        } catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+        sessionLog = null;
+        uploadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                uploadFromLog.run();                                                                //Whatever is left of the session
+                closeUploadLog();
+            }
+        });
+    }
+
+    /******************************************************************************************************************
+     * Upload, from the session log on the upload thread
+     */
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start reading a new session log, firstRecord is the number of records logged before it
+    private void openUploadLog(String name, long firstRecord) {
+        closeUploadLog();
+        recordsUploaded = firstRecord;                                                              //Records of a log that could not be read are not waited for
+        try {
+            uploadReader = SessionLog.Reader.open(sessionDirectory, name);
+            uploadCursor = uploadReader.cursor();
+        } catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Runnable on the upload thread that reads the records appended since the last time and hands them to the uploader
+    // Only reads as far as recordsLogged, records after that may still be being written
+    private final Runnable uploadFromLog = new Runnable() {
+        @Override
+        public void run() {
+            uploadPending.set(false);                                                               //Clear first so records appended from now on post another upload
+            if (uploadCursor == null) {
+                return;
+            }
+            try {
+                while (recordsUploaded < recordsLogged && uploadCursor.next()) {
+                    final int count = uploadCursor.getSampleCount();
+                    if (uploadSamples.length < count) {                                             //Only grows to the largest frame
+                        uploadSamples = new float[count];
+                    }
+                    uploadCursor.readSamples(uploadSamples, 0);
+                    final long age = System.currentTimeMillis() - uploadCursor.getTimestamp();      //Log has the wall clock time, the uploader wants System.nanoTime()
+                    uploader.submit(device, uploadCodec.encodeToString(uploadSamples, 0, count), System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(age));
+                    recordsUploaded++;
+                }
+                final MetricsRegistry.HighWaterMark high = uploadQueueHigh;
+                if (high != null) {
+                    high.update(uploader.getQueuedFrames());
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stop reading the session log, the last reader to close lets SessionLog cut off its unused end
+    private void closeUploadLog() {
+        if (uploadReader == null) {
+            return;
+        }
+        try {
+            uploadReader.close();
+        } catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+        uploadReader = null;
+        uploadCursor = null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Decimate the graph window into the back snapshot and swap it with the ready one, holding the chartLock
+    private void publishSnapshot() {
+        final RenderSnapshot snapshot = back;
+        final int columns = this.columns;
+        if (snapshot.x.length < 2 * columns) {                                                      //Only grows if the graph gets wider
+            snapshot.x = new float[2 * columns];
+            snapshot.y = new float[2 * columns];
+        }
+        snapshot.points = sampleWindow.decimateMinMax(columns, snapshot.x, snapshot.y);
+        snapshot.version = ++publishedVersion;
+        snapshot.oldestReceivedTime = pendingSince;
+        snapshot.lastSequence = chartSequence;
+        snapshot.cycles = cycles;
+        snapshot.frames = frames;
+        back = ready.getAndSet(snapshot);
+        listener.onSnapshot();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Copy the newest spectrum into the back spectrum snapshot and swap it with the ready one, on the pipeline thread
+    private void publishSpectrum() {
+        final SpectrumSnapshot snapshot = spectrumBack;
+        final int bins = spectrumAnalyzer.getBins();
+        if (snapshot.magnitudes.length < bins) {                                                    //Only grows if a bigger analyzer is set
+            snapshot.magnitudes = new float[bins];
+        }
+        System.arraycopy(spectrumAnalyzer.getMagnitudes(), 0, snapshot.magnitudes, 0, bins);
+        snapshot.bins = bins;
+        snapshot.size = spectrumAnalyzer.getSize();
+        snapshot.version = ++spectrumVersion;
+        spectrumBack = spectrumReady.getAndSet(snapshot);
+        listener.onSpectrum();
+    }
+}
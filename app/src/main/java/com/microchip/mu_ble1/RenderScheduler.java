@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a render task at most once per display frame and no faster than a maximum frame rate.
+ * Any number of requestRender() calls between two frames result in a single render, so a burst of incoming data
+ * never queues a backlog of redraws. Requesting a render only sets a flag, so it never holds up the caller.
+ * The render task runs on the main thread.
+ */
+public class RenderScheduler implements Choreographer.FrameCallback {
+
+    private static final long FRAME_TOLERANCE = 2000000L;                                           //A render may come this many nanoseconds early, under half a frame at up to 240 Hz
+
+    private final Runnable renderTask;                                                              //Task that redraws the display
+    private final long minFrameInterval;                                                            //Shortest time between renders in nanoseconds
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());                        //Choreographer must be used from the main thread
+    private final AtomicBoolean renderRequested = new AtomicBoolean();                              //New data since the last render
+    private final AtomicBoolean frameCallbackPosted = new AtomicBoolean();                          //Waiting for the next frame already
+    private final AtomicLong requests = new AtomicLong();                                           //Number of calls to requestRender()
+    private volatile long framesRendered;                                                           //Number of renders done
+    private volatile long framesSkipped;                                                            //Frames with a render waiting that were skipped to keep to the maximum frame rate
+    private long lastRenderTime;                                                                    //Frame time of the last render in nanoseconds
+    private boolean stopped;                                                                        //No more renders after stop(), only used on the main thread
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor, maxFramesPerSecond limits how often renderTask runs, for example 30 or 60
+    public RenderScheduler(int maxFramesPerSecond, Runnable renderTask) {
+        this.renderTask = renderTask;
+        minFrameInterval = 1000000000L / Math.max(1, maxFramesPerSecond);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Ask for a render at the next allowed frame, may be called from any thread
+    public void requestRender() {
+        requests.incrementAndGet();
+        renderRequested.set(true);
+        if (!frameCallbackPosted.getAndSet(true)) {
+            mainHandler.post(postFrameCallback);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stop rendering, call from the main thread when the display is going away
+    public void stop() {
+        stopped = true;
+        mainHandler.removeCallbacks(postFrameCallback);
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    private final Runnable postFrameCallback = new Runnable() {
+        @Override
+        public void run() {
+            if (!stopped) {
+                Choreographer.getInstance().postFrameCallback(RenderScheduler.this);
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by the Choreographer at the start of a display frame
+    // Vsyncs can be a little less than the frame interval apart, without the tolerance 30 fps on a 60 Hz display is 20 fps
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (stopped) {
+            return;
+        }
+        if (frameTimeNanos - lastRenderTime < minFrameInterval - FRAME_TOLERANCE) {                 //Too soon after the last render, wait for a later frame
+            framesSkipped++;
+            Choreographer.getInstance().postFrameCallback(this);
+            return;
+        }
+        frameCallbackPosted.set(false);                                                             //Clear before rendering so data arriving during the render asks for another frame
+        if (renderRequested.getAndSet(false)) {
+            lastRenderTime = frameTimeNanos;
+            framesRendered++;
+            renderTask.run();
+        }
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFramesRendered() {
+        return framesRendered;
+    }
+
+    public long getFramesSkipped() {
+        return framesSkipped;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+/**
+ * Source of advertising reports, implemented by AndroidScanEngine for the Bluetooth radio.
+ * Keeps the scan activity independent of BluetoothLeScanner so it can be driven by a fake scanner that replays
+ * recorded or generated advertisements.
+ *
+ * Results are reported in batches: onScanResult() once for each advertisement, then onScanBatchComplete(), so a
+ * listener can update its display once per batch. A scanner without batching reports batches of one.
+ */
+public interface ScanEngine {
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Receives the scan results, called on the main thread
+    interface Listener {
+        void onScanResult(String address, String name, int rssi, long timestamp);                  //Timestamp in nanoseconds of SystemClock.elapsedRealtimeNanos()
+        void onScanBatchComplete();
+        void onScanFailed(int errorCode);
+    }
+
+    void startScan(Listener listener);                                                              //Start scanning, replacing any scan already running
+
+    void stopScan();                                                                                //Stop scanning, results waiting in a batch are flushed first
+
+    boolean isScanning();
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Devices found during a scan, each listed once however many advertisements it sends.
+ * A hash map keyed by address finds the entry for each advertisement in constant time, and a list keeps the devices
+ * sorted by smoothed RSSI, strongest first. When an advertisement changes a device's smoothed RSSI only that device
+ * is moved, its old and new positions are found with binary searches, so the list is never sorted as a whole.
+ * Records the latest RSSI, a smoothed RSSI, and when the device was last seen.
+ */
+public class ScannedDeviceTracker {
+
+    private static final double RSSI_WEIGHT = 0.25;                                                 //Weight of the newest RSSI in the smoothed RSSI
+
+    private final HashMap<String, Device> devicesByAddress = new HashMap<>();                       //Every device found, keyed by address
+    private final ArrayList<Device> devices = new ArrayList<>();                                    //Same devices sorted by smoothed RSSI, strongest first, in the order found when equal
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // One device found by the scan
+    public static final class Device {
+        private final String address;
+        private String name;
+        private int rssi;                                                                           //Signal strength of the latest advertisement in dBm
+        private double averageRssi;                                                                 //Moving average of the signal strength in dBm
+        private long lastSeen;                                                                      //Timestamp of the latest advertisement in nanoseconds
+        private int advertisements;                                                                 //Advertisements received from the device
+
+        private Device(String address) {
+            this.address = address;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getRssi() {
+            return rssi;
+        }
+
+        public int getAverageRssi() {
+            return (int) Math.round(averageRssi);
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        public int getAdvertisements() {
+            return advertisements;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Record an advertisement, returns true if it is from a new device or changes what is displayed for a known one
+    public boolean update(String address, String name, int rssi, long timestamp) {
+        Device device = devicesByAddress.get(address);
+        boolean changed = false;
+        if (device == null) {                                                                       //First advertisement from this device
+            device = new Device(address);
+            device.averageRssi = rssi;
+            devicesByAddress.put(address, device);
+            devices.add(insertionPoint(device.getAverageRssi()), device);
+            changed = true;
+        }
+        else {
+            final double average = device.averageRssi + RSSI_WEIGHT * (rssi - device.averageRssi);
+            if (Math.round(average) != device.getAverageRssi()) {                                   //Displayed RSSI changed so the device may have to move
+                final int index = indexOf(device);                                                  //Before the update, the list is sorted by the old value
+                device.averageRssi = average;
+                devices.remove(index);
+                devices.add(insertionPoint(device.getAverageRssi()), device);
+                changed = true;
+            }
+            else {
+                device.averageRssi = average;
+            }
+        }
+        if (name != null && !name.equals(device.name)) {                                            //Name can arrive later, in a scan response
+            device.name = name;
+            changed = true;
+        }
+        device.rssi = rssi;
+        device.lastSeen = Math.max(device.lastSeen, timestamp);                                     //Batched results are not always in time order
+        device.advertisements++;
+        return changed;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // First position with a weaker smoothed RSSI, so a device is placed after the devices with the same RSSI
+    private int insertionPoint(int averageRssi) {
+        int low = 0, high = devices.size();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (devices.get(middle).getAverageRssi() >= averageRssi) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Position of a device in the list, found from the smoothed RSSI it was sorted with, so call before changing it
+    private int indexOf(Device device) {
+        final int averageRssi = device.getAverageRssi();
+        int low = 0, high = devices.size();
+        while (low < high) {                                                                        //Find the first device with this RSSI or weaker
+            final int middle = (low + high) >>> 1;
+            if (devices.get(middle).getAverageRssi() > averageRssi) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        for (int i = low; i < devices.size() && devices.get(i).getAverageRssi() == averageRssi; i++) { //Then look through the devices with the same RSSI
+            if (devices.get(i) == device) {
+                return i;
+            }
+        }
+        return devices.indexOf(device);                                                             //Not expected, list was not in order
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Remove devices not seen since the given timestamp, returns the number removed
+    public int removeOlderThan(long timestamp) {
+        int removed = 0;
+        for (int i = devices.size() - 1; i >= 0; i--) {
+            final Device device = devices.get(i);
+            if (device.lastSeen < timestamp) {
+                devices.remove(i);
+                devicesByAddress.remove(device.address);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public void clear() {
+        devicesByAddress.clear();
+        devices.clear();
+    }
+
+    public Device get(String address) {
+        return devicesByAddress.get(address);
+    }
+
+    public Device get(int position) {
+        return devices.get(position);
+    }
+
+    public int size() {
+        return devices.size();
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Exports a SessionLog to a file that can be shared, streaming it record by record from the memory-mapped log through
+ * one direct buffer to a FileChannel. Memory use is the same for a session of any length and nothing is allocated per
+ * record, so a session of many hours exports at the speed of the storage.
+ *
+ * Formats:
+ *   CSV     text, a header line and then one line per sample: time_ms,sequence,index,value
+ *           time_ms is when the frame was received in milliseconds since the epoch, index the sample's place in the frame
+ *   BINARY  every sample of the session in order as a 32-bit little-endian float and nothing else, copied straight from
+ *           the log, for example numpy.fromfile(name, dtype='<f4')
+ *
+ * The log can still be being written, the export has what was logged when it reached the end.
+ */
+public final class SessionExporter {
+
+    public enum Format {
+        CSV(".csv", "text/csv"),
+        BINARY(".f32", "application/octet-stream");
+
+        private final String suffix;
+        private final String mimeType;
+
+        Format(String suffix, String mimeType) {
+            this.suffix = suffix;
+            this.mimeType = mimeType;
+        }
+
+        public String getSuffix() {
+            return suffix;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 256 * 1024;                                              //Bytes written to the file at a time
+    private static final int MAX_CSV_LINE = 96;                                                     //Longest CSV line, room for the widest numbers
+    private static final byte[] CSV_HEADER = "time_ms,sequence,index,value\n".getBytes(Charset.forName("US-ASCII"));
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final byte[] digits = new byte[20];                                                     //Digits of a number being written, in reverse
+    private FileChannel channel;
+    private long samples;
+
+    private SessionExporter() {
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Export the log name in directory to output, replacing it, returns the number of samples exported
+    public static long export(File directory, String name, Format format, File output) throws IOException {
+        final SessionExporter exporter = new SessionExporter();
+        try (SessionLog.Reader reader = SessionLog.Reader.open(directory, name);
+             FileOutputStream stream = new FileOutputStream(output)) {
+            exporter.channel = stream.getChannel();
+            if (format == Format.CSV) {
+                exporter.writeCsv(reader.cursor());
+            }
+            else {
+                exporter.writeBinary(reader.cursor());
+            }
+            exporter.flush();
+            stream.getFD().sync();                                                                  //On storage before it is shared
+        }
+        return exporter.samples;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // One line per sample, the numbers are written as ASCII straight into the buffer
+    private void writeCsv(SessionLog.Reader.Cursor cursor) throws IOException {
+        buffer.put(CSV_HEADER);
+        float[] values = new float[0];
+        while (cursor.next()) {
+            final int count = cursor.getSampleCount();
+            if (values.length < count) {                                                            //Only grows to the largest record
+                values = new float[count];
+            }
+            cursor.readSamples(values, 0);
+            for (int i = 0; i < count; i++) {
+                if (buffer.remaining() < MAX_CSV_LINE) {
+                    flush();
+                }
+                putLong(cursor.getTimestamp());
+                buffer.put((byte) ',');
+                putLong(cursor.getSequence());
+                buffer.put((byte) ',');
+                putLong(i);
+                buffer.put((byte) ',');
+                putValue(values[i]);
+                buffer.put((byte) '\n');
+            }
+            samples += count;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The samples of each record, already little-endian floats in the log, copied from the mapped file into the buffer
+    private void writeBinary(SessionLog.Reader.Cursor cursor) throws IOException {
+        while (cursor.next()) {
+            final ByteBuffer source = cursor.getSampleBytes();
+            final int end = source.limit();
+            while (source.position() < end) {                                                       //A record can be bigger than the buffer
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                source.limit(Math.min(end, source.position() + buffer.remaining()));
+                buffer.put(source);
+                source.limit(end);
+            }
+            samples += cursor.getSampleCount();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write everything in the buffer to the file and empty it
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write a whole number in decimal
+    private void putLong(long value) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+        }
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + Math.abs(value % 10));                                  //abs of each digit so Long.MIN_VALUE works too
+            value /= 10;
+        } while (value != 0);
+        while (count > 0) {
+            buffer.put(digits[--count]);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write a sample, decoded samples are whole numbers and written as such, filtered ones in full
+    private void putValue(float value) {
+        if (value == (long) value && Math.abs(value) < 1e15f) {
+            putLong((long) value);
+        }
+        else {
+            final String text = Float.toString(value);                                              //Only for samples with a fraction, NaN or infinity
+            for (int i = 0; i < text.length(); i++) {
+                buffer.put((byte) text.charAt(i));
+            }
+        }
+    }
+}
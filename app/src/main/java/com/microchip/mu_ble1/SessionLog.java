@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Append-only local log of the decoded samples of one acquisition session, written through a memory-mapped file.
+ * Appending a frame is a memory copy, the operating system writes the pages to storage, and records already
+ * appended survive the app being killed.
+ *
+ * Data file <name>.log, a sequence of records, all fields little-endian:
+ *   count     4 bytes  number of samples, written last so a partly written record is never read
+ *   sequence  4 bytes  frame sequence number
+ *   timestamp 8 bytes  time received, milliseconds since the epoch
+ *   samples   count * 4 bytes, float
+ * The file is mapped REGION_SIZE bytes at a time, the unused zero-filled end of the last region reads as a count of 0,
+ * which marks the end of the log, and is cut off when the log is closed.
+ *
+ * Index file <name>.idx has one 20 byte entry (timestamp 8, sequence 4, file offset 8) for the first record of every
+ * block of RECORDS_PER_BLOCK records, so a Reader can find a time without reading the whole log.
+ *
+ * A SessionLog must only be used from one thread. Any number of Readers can read a log while it is being written.
+ * Touching a mapped page past the end of a file kills the process with SIGBUS, so while any Reader of a log is open the
+ * log is never made shorter: closing it leaves the cut to the last Reader to close, and it cannot be created again.
+ */
+public final class SessionLog implements Closeable {
+
+    public static final String DATA_SUFFIX = ".log";
+    public static final String INDEX_SUFFIX = ".idx";
+    public static final int RECORD_HEADER_SIZE = 16;                                                //Count, sequence and timestamp
+    public static final int INDEX_ENTRY_SIZE = 20;                                                  //Timestamp, sequence and file offset
+    public static final int RECORDS_PER_BLOCK = 64;                                                 //Records between index entries
+    private static final int REGION_SIZE = 4 * 1024 * 1024;                                         //Bytes mapped at a time, also the largest possible record
+    private static final int MAX_SAMPLES = (REGION_SIZE - RECORD_HEADER_SIZE) / 4;                  //Most samples in one record
+
+    private static final HashMap<String, Integer> openReaders = new HashMap<>();                   //Readers open on each data file, by path, guards both maps
+    private static final HashMap<String, Long> pendingLengths = new HashMap<>();                    //Length to cut each data file to once its last Reader closes
+
+    private final String name;
+    private final String dataPath;
+    private final RandomAccessFile dataFile, indexFile;
+    private final FileChannel dataChannel, indexChannel;
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN); //Reused for every index entry
+    private MappedByteBuffer region;                                                                //Part of the data file being written, null when closed
+    private long regionStart;                                                                       //File offset of the start of the region
+    private long position;                                                                          //File offset of the next record
+    private long indexPosition;                                                                     //File offset of the next index entry
+    private long records;                                                                           //Number of records appended
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Create a new empty log in directory, replacing any log with the same name unless it is being read
+    public static SessionLog create(File directory, String name) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        return new SessionLog(directory, name);
+    }
+
+    private SessionLog(File directory, String name) throws IOException {
+        this.name = name;
+        dataPath = new File(directory, name + DATA_SUFFIX).getAbsolutePath();
+        synchronized (openReaders) {
+            if (openReaders.containsKey(dataPath)) {
+                throw new IOException("Log " + name + " is being read");
+            }
+            pendingLengths.remove(dataPath);                                                        //An old log of this name is replaced, not cut
+            dataFile = new RandomAccessFile(dataPath, "rw");
+            indexFile = new RandomAccessFile(new File(directory, name + INDEX_SUFFIX), "rw");
+            dataFile.setLength(0);
+            indexFile.setLength(0);
+        }
+        dataChannel = dataFile.getChannel();
+        indexChannel = indexFile.getChannel();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Append the samples of one frame
+    public void append(long timestamp, int sequence, float[] samples, int offset, int count) throws IOException {
+        if (count <= 0 || count > MAX_SAMPLES) {
+            throw new IllegalArgumentException("Cannot log " + count + " samples in one record");
+        }
+        final int size = RECORD_HEADER_SIZE + count * 4;
+        if (region == null || position + size > regionStart + REGION_SIZE) {                        //Record does not fit in the current region
+            mapRegion();
+        }
+        if (records % RECORDS_PER_BLOCK == 0) {                                                     //First record of a block
+            writeIndexEntry(timestamp, sequence, position);
+        }
+        final int start = (int) (position - regionStart);
+        region.putInt(start + 4, sequence);
+        region.putLong(start + 8, timestamp);
+        int index = start + RECORD_HEADER_SIZE;
+        for (int i = offset; i < offset + count; i++, index += 4) {
+            region.putFloat(index, samples[i]);
+        }
+        region.putInt(start, count);                                                                //Record is complete once the count is there
+        position += size;
+        records++;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Ask the operating system to write everything appended so far to storage
+    public void flush() throws IOException {
+        if (region != null) {
+            region.force();
+        }
+        indexChannel.force(false);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write everything to storage and cut off the unused end of the last region, now or when the last Reader closes
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            region = null;                                                                          //Nothing may touch the mapping once the file is shorter
+            synchronized (openReaders) {
+                if (openReaders.containsKey(dataPath)) {                                            //A Reader may have the end mapped, the zeros read as the end of the log
+                    pendingLengths.put(dataPath, position);
+                }
+                else {
+                    dataChannel.truncate(position);
+                }
+            }
+        }
+        finally {
+            dataFile.close();
+            indexFile.close();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Map the next region of the file, starting at the next record so a record never crosses regions
+    private void mapRegion() throws IOException {
+        if (region != null) {
+            region.force();
+        }
+        region = dataChannel.map(FileChannel.MapMode.READ_WRITE, position, REGION_SIZE);            //Grows the file, the new bytes are zero
+        region.order(ByteOrder.LITTLE_ENDIAN);
+        regionStart = position;
+    }
+
+    private void writeIndexEntry(long timestamp, int sequence, long offset) throws IOException {
+        indexEntry.clear();
+        indexEntry.putLong(timestamp).putInt(sequence).putLong(offset);
+        indexEntry.flip();
+        while (indexEntry.hasRemaining()) {
+            indexPosition += indexChannel.write(indexEntry, indexPosition);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    // Number of bytes of records in the data file
+    public long getSize() {
+        return position;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Names of the logs in a directory, oldest first when the names start with the date and time
+    public static String[] list(File directory) {
+        final String[] files = directory.list();
+        if (files == null) {
+            return new String[0];
+        }
+        int count = 0;
+        for (String file : files) {
+            if (file.endsWith(DATA_SUFFIX)) {
+                files[count++] = file.substring(0, file.length() - DATA_SUFFIX.length());
+            }
+        }
+        final String[] names = Arrays.copyOf(files, count);
+        Arrays.sort(names);
+        return names;
+    }
+
+    /******************************************************************************************************************
+     * Reading a log
+     */
+
+    public static final class Reader implements Closeable {
+
+        private final String dataPath;
+        private final RandomAccessFile dataFile;
+        private final FileChannel dataChannel;
+        private boolean closed;
+        private final long[] blockTimes;                                                            //Timestamp of the first record of each block
+        private final long[] blockOffsets;                                                          //File offset of the first record of each block
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // Open a log for reading, it may still be open for writing
+        public static Reader open(File directory, String name) throws IOException {
+            return new Reader(directory, name);
+        }
+
+        private Reader(File directory, String name) throws IOException {
+            final ByteBuffer index;
+            try (RandomAccessFile indexFile = new RandomAccessFile(new File(directory, name + INDEX_SUFFIX), "r")) {
+                index = ByteBuffer.allocate((int) (indexFile.length() / INDEX_ENTRY_SIZE * INDEX_ENTRY_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+                final FileChannel indexChannel = indexFile.getChannel();
+                int read;
+                do {
+                    read = indexChannel.read(index, index.position());                              //Buffer position is also the file offset
+                } while (read > 0 && index.hasRemaining());
+            }
+            final int blocks = index.position() / INDEX_ENTRY_SIZE;
+            blockTimes = new long[blocks];
+            blockOffsets = new long[blocks];
+            for (int i = 0; i < blocks; i++) {
+                blockTimes[i] = index.getLong(i * INDEX_ENTRY_SIZE);
+                blockOffsets[i] = index.getLong(i * INDEX_ENTRY_SIZE + 12);
+            }
+            dataPath = new File(directory, name + DATA_SUFFIX).getAbsolutePath();
+            synchronized (openReaders) {                                                            //Registered before anything is mapped
+                dataFile = new RandomAccessFile(dataPath, "r");
+                final Integer open = openReaders.get(dataPath);
+                openReaders.put(dataPath, open == null ? 1 : open + 1);
+            }
+            dataChannel = dataFile.getChannel();
+        }
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // Cursor positioned before the first record
+        public Cursor cursor() {
+            return new Cursor(0);
+        }
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // Cursor positioned before the first record received at or after timestamp, found through the block index
+        public Cursor seek(long timestamp) throws IOException {
+            int low = 0, high = blockTimes.length - 1, block = 0;
+            while (low <= high) {                                                                   //Find the last block that starts before timestamp
+                final int middle = (low + high) >>> 1;
+                if (blockTimes[middle] < timestamp) {
+                    block = middle;
+                    low = middle + 1;
+                }
+                else {
+                    high = middle - 1;
+                }
+            }
+            final Cursor cursor = new Cursor(blockOffsets.length > 0 ? blockOffsets[block] : 0);
+            while (cursor.peek() && cursor.timestamp < timestamp) {                                 //At most one block to read through
+                cursor.nextOffset += RECORD_HEADER_SIZE + cursor.count * 4;
+            }
+            return cursor;
+        }
+
+        public int getBlocks() {
+            return blockTimes.length;
+        }
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // Close the log, its Cursors must not be used after this
+        // The last Reader of a log that has been closed by its writer cuts off the unused end
+        @Override
+        public void close() throws IOException {
+            synchronized (openReaders) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                dataFile.close();
+                final int open = openReaders.get(dataPath) - 1;
+                if (open > 0) {
+                    openReaders.put(dataPath, open);
+                }
+                else {
+                    openReaders.remove(dataPath);
+                    final Long length = pendingLengths.remove(dataPath);
+                    if (length != null && new File(dataPath).isFile()) {
+                        try (RandomAccessFile file = new RandomAccessFile(dataPath, "rw")) {
+                            file.setLength(length);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Steps through the records of a log, mapping the file a region at a time. Not thread safe.
+         */
+        public final class Cursor {
+
+            private MappedByteBuffer region;
+            private ByteBuffer sampleBytes;                                                         //View of the region for getSampleBytes(), made once per region
+            private long regionStart;
+            private long nextOffset;                                                                //File offset of the next record
+            private int recordStart;                                                                //Position of the current record in the region
+            private int count, sequence;
+            private long timestamp;
+
+            private Cursor(long offset) {
+                nextOffset = offset;
+            }
+
+            // ----------------------------------------------------------------------------------------------------------------
+            // Move to the next record, returns false at the end of the log
+            public boolean next() throws IOException {
+                if (!peek()) {
+                    return false;
+                }
+                nextOffset += RECORD_HEADER_SIZE + count * 4;
+                return true;
+            }
+
+            // ----------------------------------------------------------------------------------------------------------------
+            // Read the header of the record at nextOffset without moving past it
+            private boolean peek() throws IOException {
+                if (!map(nextOffset, RECORD_HEADER_SIZE)) {
+                    return false;
+                }
+                final int start = (int) (nextOffset - regionStart);
+                final int samples = region.getInt(start);
+                if (samples <= 0 || samples > MAX_SAMPLES || !map(nextOffset, RECORD_HEADER_SIZE + samples * 4)) { //End of the log so far
+                    return false;
+                }
+                recordStart = (int) (nextOffset - regionStart);
+                count = samples;
+                sequence = region.getInt(recordStart + 4);
+                timestamp = region.getLong(recordStart + 8);
+                return true;
+            }
+
+            // ----------------------------------------------------------------------------------------------------------------
+            // Make sure size bytes from offset are mapped, returns false if the file is not that long
+            private boolean map(long offset, int size) throws IOException {
+                if (region != null && offset >= regionStart && offset + size <= regionStart + region.capacity()) {
+                    return true;
+                }
+                final long length = dataChannel.size();
+                if (offset + size > length) {
+                    return false;
+                }
+                region = dataChannel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(REGION_SIZE, length - offset));
+                region.order(ByteOrder.LITTLE_ENDIAN);
+                sampleBytes = region.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                regionStart = offset;
+                return true;
+            }
+
+            public long getTimestamp() {
+                return timestamp;
+            }
+
+            public int getSequence() {
+                return sequence;
+            }
+
+            public int getSampleCount() {
+                return count;
+            }
+
+            // ----------------------------------------------------------------------------------------------------------------
+            // Copy the samples of the current record to dst, returns the number of samples copied
+            public int readSamples(float[] dst, int offset) {
+                final int n = Math.min(count, dst.length - offset);
+                int index = recordStart + RECORD_HEADER_SIZE;
+                for (int i = offset; i < offset + n; i++, index += 4) {
+                    dst[i] = region.getFloat(index);
+                }
+                return n;
+            }
+
+            // ----------------------------------------------------------------------------------------------------------------
+            // The samples of the current record as little-endian float bytes, straight from the mapped file without a copy
+            // The same buffer is returned every time, it only stays valid until the next call to next()
+            public ByteBuffer getSampleBytes() {
+                final int start = recordStart + RECORD_HEADER_SIZE;
+                sampleBytes.limit(start + count * 4).position(start);
+                return sampleBytes;
+            }
+        }
+    }
+}
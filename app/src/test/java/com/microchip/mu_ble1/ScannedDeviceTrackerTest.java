@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ScannedDeviceTracker keeps one entry per address, sorted by smoothed RSSI, strongest first.
+ */
+public class ScannedDeviceTrackerTest {
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Check the list is sorted strongest first and every device in it is the one found by its address
+    private static void assertSorted(ScannedDeviceTracker tracker) {
+        final HashSet<String> addresses = new HashSet<>();
+        for (int i = 0; i < tracker.size(); i++) {
+            final ScannedDeviceTracker.Device device = tracker.get(i);
+            assertTrue("Listed twice: " + device.getAddress(), addresses.add(device.getAddress()));
+            assertSame(device, tracker.get(device.getAddress()));
+            if (i > 0) {
+                assertTrue("Out of order at " + i, tracker.get(i - 1).getAverageRssi() >= device.getAverageRssi());
+            }
+        }
+    }
+
+    @Test
+    public void repeatedAdvertisementsAreListedOnce() {
+        final ScannedDeviceTracker tracker = new ScannedDeviceTracker();
+        assertTrue(tracker.update("00:00:00:00:00:01", "Sensor", -60, 1));
+        assertFalse(tracker.update("00:00:00:00:00:01", "Sensor", -60, 2));                        //Nothing displayed has changed
+        assertFalse(tracker.update("00:00:00:00:00:01", null, -60, 3));                            //No name in this advertisement, the known one is kept
+        assertEquals(1, tracker.size());
+        final ScannedDeviceTracker.Device device = tracker.get("00:00:00:00:00:01");
+        assertEquals("Sensor", device.getName());
+        assertEquals(3, device.getAdvertisements());
+        assertEquals(3, device.getLastSeen());
+    }
+
+    @Test
+    public void nameFromLaterScanResponseIsRecorded() {
+        final ScannedDeviceTracker tracker = new ScannedDeviceTracker();
+        tracker.update("00:00:00:00:00:01", null, -60, 1);
+        assertTrue(tracker.update("00:00:00:00:00:01", "Sensor", -60, 2));
+        assertEquals("Sensor", tracker.get(0).getName());
+    }
+
+    @Test
+    public void devicesAreSortedStrongestFirstAndEqualOnesInOrderFound() {
+        final ScannedDeviceTracker tracker = new ScannedDeviceTracker();
+        tracker.update("A", "a", -70, 1);
+        tracker.update("B", "b", -50, 2);
+        tracker.update("C", "c", -70, 3);
+        tracker.update("D", "d", -90, 4);
+        assertEquals("B", tracker.get(0).getAddress());
+        assertEquals("A", tracker.get(1).getAddress());                                            //Same RSSI as C but found first
+        assertEquals("C", tracker.get(2).getAddress());
+        assertEquals("D", tracker.get(3).getAddress());
+    }
+
+    @Test
+    public void deviceMovesWhenItsSmoothedRssiChanges() {
+        final ScannedDeviceTracker tracker = new ScannedDeviceTracker();
+        tracker.update("A", "a", -50, 1);
+        tracker.update("B", "b", -80, 2);
+        for (int i = 0; i < 20; i++) {                                                              //B gets stronger, A weaker, the averages cross
+            tracker.update("A", "a", -90, 3 + i);
+            tracker.update("B", "b", -40, 3 + i);
+        }
+        assertEquals("B", tracker.get(0).getAddress());
+        assertEquals("A", tracker.get(1).getAddress());
+        assertEquals(-40, tracker.get("B").getRssi());
+        assertSorted(tracker);
+    }
+
+    @Test
+    public void smoothedRssiMovesPartWayTowardsTheNewest() {
+        final ScannedDeviceTracker tracker = new ScannedDeviceTracker();
+        tracker.update("A", "a", -80, 1);
+        tracker.update("A", "a", -40, 2);
+        assertEquals(-40, tracker.get("A").getRssi());
+        assertEquals(-70, tracker.get("A").getAverageRssi());                                       //A quarter of the way
+    }
+
+    @Test
+    public void lastSeenIgnoresOlderBatchedResults() {
+        final ScannedDeviceTracker tracker = new ScannedDeviceTracker();
+        tracker.update("A", "a", -60, 100);
+        tracker.update("A", "a", -60, 50);
+        assertEquals(100, tracker.get("A").getLastSeen());
+    }
+
+    @Test
+    public void removeOlderThanRemovesFromListAndMap() {
+        final ScannedDeviceTracker tracker = new ScannedDeviceTracker();
+        tracker.update("A", "a", -60, 10);
+        tracker.update("B", "b", -50, 20);
+        tracker.update("C", "c", -40, 30);
+        assertEquals(2, tracker.removeOlderThan(25));
+        assertEquals(1, tracker.size());
+        assertEquals("C", tracker.get(0).getAddress());
+        assertNull(tracker.get("A"));
+        assertNull(tracker.get("B"));
+        assertTrue(tracker.update("A", "a", -60, 40));                                             //Found again as a new device
+        assertEquals(2, tracker.size());
+        tracker.clear();
+        assertEquals(0, tracker.size());
+        assertNull(tracker.get("C"));
+    }
+
+    @Test
+    public void randomAdvertisementsKeepListSortedWithoutDuplicates() {
+        final ScannedDeviceTracker tracker = new ScannedDeviceTracker();
+        final Random random = new Random(14);
+        for (int i = 0; i < 20000; i++) {
+            final String address = "D" + random.nextInt(50);
+            tracker.update(address, random.nextInt(4) == 0 ? null : address, -100 + random.nextInt(70), i);
+            if (i % 1000 == 999) {
+                tracker.removeOlderThan(i - 200);
+            }
+            if (i % 97 == 0) {
+                assertSorted(tracker);
+            }
+        }
+        assertSorted(tracker);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * SessionExporter writes the exact CSV and binary output of a session log.
+ */
+public class SessionExporterTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] read(File file) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            final byte[] bytes = new byte[(int) input.length()];
+            input.readFully(bytes);
+            return bytes;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Two frames, whole numbers as decoded, a fraction as filtered, and NaN for an invalid BCD word
+    private File writeLog() throws IOException {
+        final File directory = folder.newFolder("sessions");
+        final SessionLog log = SessionLog.create(directory, "session");
+        log.append(1600000000000L, 7, new float[] {1234, -5, 0}, 0, 3);
+        log.append(1600000000020L, 8, new float[] {99, 2.5f, Float.NaN, 9999}, 1, 3);
+        log.close();
+        return directory;
+    }
+
+    @Test
+    public void csvHasALinePerSample() throws IOException {
+        final File directory = writeLog();
+        final File output = new File(folder.getRoot(), "session" + SessionExporter.Format.CSV.getSuffix());
+        assertEquals(6, SessionExporter.export(directory, "session", SessionExporter.Format.CSV, output));
+        assertEquals("time_ms,sequence,index,value\n"
+                + "1600000000000,7,0,1234\n"
+                + "1600000000000,7,1,-5\n"
+                + "1600000000000,7,2,0\n"
+                + "1600000000020,8,0,2.5\n"
+                + "1600000000020,8,1,NaN\n"
+                + "1600000000020,8,2,9999\n", new String(read(output), Charset.forName("US-ASCII")));
+    }
+
+    @Test
+    public void binaryIsTheSamplesAsLittleEndianFloats() throws IOException {
+        final File directory = writeLog();
+        final File output = new File(folder.getRoot(), "session" + SessionExporter.Format.BINARY.getSuffix());
+        assertEquals(6, SessionExporter.export(directory, "session", SessionExporter.Format.BINARY, output));
+        final ByteBuffer bytes = ByteBuffer.wrap(read(output)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(6 * 4, bytes.remaining());
+        for (float expected : new float[] {1234, -5, 0, 2.5f, Float.NaN, 9999}) {
+            assertEquals(expected, bytes.getFloat(), 0f);
+        }
+    }
+
+    @Test
+    public void largeSessionStreamsThroughTheBuffer() throws IOException {
+        final File directory = folder.newFolder("sessions");
+        final SessionLog log = SessionLog.create(directory, "long");
+        final float[] samples = new float[500];
+        for (int sequence = 0; sequence < 400; sequence++) {                                        //800 KB of samples, several times the buffer
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = sequence * samples.length + i;
+            }
+            log.append(sequence, sequence, samples, 0, samples.length);
+        }
+        log.close();
+        final File output = new File(folder.getRoot(), "long.f32");
+        assertEquals(400 * 500, SessionExporter.export(directory, "long", SessionExporter.Format.BINARY, output));
+        final ByteBuffer bytes = ByteBuffer.wrap(read(output)).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 400 * 500; i++) {
+            assertEquals(i, bytes.getFloat(), 0f);
+        }
+    }
+}
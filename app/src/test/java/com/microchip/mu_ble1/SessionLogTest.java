@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * SessionLog writes, reads back and seeks, and is never cut short while a Reader has it mapped.
+ */
+public class SessionLogTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static float[] frame(int sequence, int count) {
+        final float[] samples = new float[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = sequence * 1000 + i;
+        }
+        return samples;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // A log of records frames, each with a different number of samples, received 10 ms apart from time 1000
+    private static SessionLog write(File directory, String name, int records) throws IOException {
+        final SessionLog log = SessionLog.create(directory, name);
+        for (int sequence = 0; sequence < records; sequence++) {
+            final float[] samples = frame(sequence, 1 + sequence % 50);
+            log.append(1000 + 10 * sequence, sequence, samples, 0, samples.length);
+        }
+        return log;
+    }
+
+    private static void assertRecord(SessionLog.Reader.Cursor cursor, int sequence) {
+        assertEquals(sequence, cursor.getSequence());
+        assertEquals(1000 + 10 * sequence, cursor.getTimestamp());
+        final float[] samples = new float[cursor.getSampleCount()];
+        assertEquals(samples.length, cursor.readSamples(samples, 0));
+        assertArrayEquals(frame(sequence, 1 + sequence % 50), samples, 0f);
+    }
+
+    @Test
+    public void recordsReadBackInOrder() throws IOException {
+        final File directory = folder.getRoot();
+        final SessionLog log = write(directory, "session", 300);
+        assertEquals(300, log.getRecords());
+        log.close();
+        assertEquals(log.getSize(), new File(directory, "session" + SessionLog.DATA_SUFFIX).length());  //Unused end cut off
+        try (SessionLog.Reader reader = SessionLog.Reader.open(directory, "session")) {
+            assertEquals(5, reader.getBlocks());                                                    //One index entry every 64 records
+            final SessionLog.Reader.Cursor cursor = reader.cursor();
+            for (int sequence = 0; sequence < 300; sequence++) {
+                assertTrue(cursor.next());
+                assertRecord(cursor, sequence);
+            }
+            assertFalse(cursor.next());
+        }
+        assertArrayEquals(new String[] {"session"}, SessionLog.list(directory));
+    }
+
+    @Test
+    public void seekFindsTheFirstRecordAtOrAfterATime() throws IOException {
+        final File directory = folder.getRoot();
+        write(directory, "session", 300).close();
+        try (SessionLog.Reader reader = SessionLog.Reader.open(directory, "session")) {
+            for (int sequence : new int[] {0, 1, 63, 64, 65, 150, 299}) {
+                final SessionLog.Reader.Cursor exact = reader.seek(1000 + 10 * sequence);
+                assertTrue(exact.next());
+                assertRecord(exact, sequence);
+                final SessionLog.Reader.Cursor between = reader.seek(1000 + 10 * sequence - 5);
+                assertTrue(between.next());
+                assertRecord(between, sequence);
+            }
+            final SessionLog.Reader.Cursor first = reader.seek(0);
+            assertTrue(first.next());
+            assertRecord(first, 0);
+            assertFalse(reader.seek(1000 + 10 * 300).next());                                       //After the last record
+        }
+    }
+
+    @Test
+    public void recordsTooBigForOneRegionEachGetANewRegion() throws IOException {
+        final File directory = folder.getRoot();
+        final SessionLog log = SessionLog.create(directory, "large");
+        final float[] samples = new float[600 * 1024];                                              //2.4 MB, two of them do not fit in one 4 MB region
+        for (int sequence = 0; sequence < 3; sequence++) {
+            samples[0] = sequence;
+            samples[samples.length - 1] = -sequence;
+            log.append(sequence, sequence, samples, 0, samples.length);
+        }
+        log.close();
+        try (SessionLog.Reader reader = SessionLog.Reader.open(directory, "large")) {
+            final SessionLog.Reader.Cursor cursor = reader.cursor();
+            final float[] read = new float[samples.length];
+            for (int sequence = 0; sequence < 3; sequence++) {
+                assertTrue(cursor.next());
+                assertEquals(samples.length, cursor.readSamples(read, 0));
+                assertEquals(sequence, read[0], 0f);
+                assertEquals(-sequence, read[read.length - 1], 0f);
+            }
+            assertFalse(cursor.next());
+        }
+    }
+
+    @Test
+    public void readerSeesRecordsAppendedWhileItIsOpen() throws IOException {
+        final File directory = folder.getRoot();
+        final SessionLog log = write(directory, "live", 10);
+        try (SessionLog.Reader reader = SessionLog.Reader.open(directory, "live")) {
+            final SessionLog.Reader.Cursor cursor = reader.cursor();
+            for (int sequence = 0; sequence < 10; sequence++) {
+                assertTrue(cursor.next());
+            }
+            assertFalse(cursor.next());                                                             //Zero count after the last record
+            final float[] samples = frame(10, 11);
+            log.append(1100, 10, samples, 0, samples.length);
+            assertTrue(cursor.next());
+            assertRecord(cursor, 10);
+        }
+        log.close();
+    }
+
+    @Test
+    public void closingWhileReadingLeavesTheCutToTheLastReader() throws IOException {
+        final File directory = folder.getRoot();
+        final File data = new File(directory, "session" + SessionLog.DATA_SUFFIX);
+        final SessionLog log = write(directory, "session", 100);
+        final SessionLog.Reader first = SessionLog.Reader.open(directory, "session");
+        final SessionLog.Reader second = SessionLog.Reader.open(directory, "session");
+        final SessionLog.Reader.Cursor cursor = first.cursor();
+        assertTrue(cursor.next());                                                                  //Maps the whole region, well past the last record
+        final long mapped = data.length();
+        log.close();
+        assertEquals(mapped, data.length());                                                        //Not cut while the region is mapped
+        for (int sequence = 1; sequence < 100; sequence++) {
+            assertTrue(cursor.next());
+            assertRecord(cursor, sequence);
+        }
+        assertFalse(cursor.next());
+        try {
+            SessionLog.create(directory, "session");
+            fail("Replaced a log being read");
+        }
+        catch (IOException expected) {
+        }
+        first.close();
+        first.close();                                                                              //Closing twice counts once
+        assertEquals(mapped, data.length());
+        second.close();
+        assertEquals(log.getSize(), data.length());
+        SessionLog.create(directory, "session").close();                                           //Nobody reading it now
+        assertEquals(0, data.length());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding one notification of 100 BCD samples into floats.
+ * hexStringBaseline is the original processIncomingData() approach: the whole notification is converted to a hex
+ * string for every character looked at, and four one character strings are joined and parsed for each sample.
+ * sampleDecoder is SampleDecoder.decodeBcd16Le(), straight from the bytes into the sample array.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DecodeBenchmark {
+
+    private static final int SAMPLES = 100;                                                         //Samples in one notification from the sensor
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final byte[] notification = new byte[SAMPLES * SampleDecoder.BYTES_PER_SAMPLE];
+    private final float[] samples = new float[SAMPLES];
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(1);
+        for (int i = 0; i < SAMPLES; i++) {                                                         //Valid BCD words, 0000 to 9999, low byte first
+            final int value = random.nextInt(10000);
+            final int bcd = (value / 1000) << 12 | (value / 100 % 10) << 8 | (value / 10 % 10) << 4 | value % 10;
+            notification[2 * i] = (byte) bcd;
+            notification[2 * i + 1] = (byte) (bcd >>> 8);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Same conversion as Hex.bytesToStringUppercase() used by the app
+    private static String bytesToStringUppercase(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(bytes[i] >>> 4) & 0x0F];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    @Benchmark
+    public float[] hexStringBaseline() {
+        for (int i = 0; i < SAMPLES; i++) {                                                         //Loop body as it was in processIncomingData()
+            String d1 = String.valueOf(bytesToStringUppercase(notification).charAt(i * 4 + 2));
+            String d2 = String.valueOf(bytesToStringUppercase(notification).charAt(i * 4 + 3));
+            String d3 = String.valueOf(bytesToStringUppercase(notification).charAt(i * 4 + 0));
+            String d4 = String.valueOf(bytesToStringUppercase(notification).charAt(i * 4 + 1));
+            samples[i] = Float.valueOf(d1 + d2 + d3 + d4);
+        }
+        return samples;
+    }
+
+    @Benchmark
+    public float[] sampleDecoder() {
+        SampleDecoder.decodeBcd16Le(notification, 0, samples, 0, SAMPLES);
+        return samples;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filtering one notification of samples in place, each filter on its own and the chain the app uses plus the biquads.
+ * Every call copies the raw samples first, as the pipeline does, so the filters always see realistic input.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FilterChainBenchmark {
+
+    private static final float SAMPLE_RATE = 1000;                                                  //Only sets where the biquad corners fall
+
+    @Param({"100"})
+    public int samples;
+
+    private float[] raw, buffer;
+    private SampleFilter movingAverage, dcBlocker, biquad, chain;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(1);
+        raw = new float[samples];
+        buffer = new float[samples];
+        for (int i = 0; i < samples; i++) {
+            raw[i] = 5000 + 1000 * (float) Math.sin(i * 0.1) + random.nextInt(100);
+        }
+        movingAverage = new MovingAverageFilter(4);
+        dcBlocker = new DcBlockerFilter();
+        biquad = BiquadFilter.lowPass(100, BiquadFilter.BUTTERWORTH_Q, SAMPLE_RATE);
+        chain = new FilterChain(new DcBlockerFilter(), BiquadFilter.notch(50, 10, SAMPLE_RATE),
+                BiquadFilter.lowPass(100, BiquadFilter.BUTTERWORTH_Q, SAMPLE_RATE), new MovingAverageFilter(4));
+    }
+
+    private float[] run(SampleFilter filter) {
+        System.arraycopy(raw, 0, buffer, 0, samples);
+        filter.process(buffer, 0, samples);
+        return buffer;
+    }
+
+    @Benchmark
+    public float[] copyOnly() {
+        System.arraycopy(raw, 0, buffer, 0, samples);
+        return buffer;
+    }
+
+    @Benchmark
+    public float[] movingAverage() {
+        return run(movingAverage);
+    }
+
+    @Benchmark
+    public float[] dcBlocker() {
+        return run(dcBlocker);
+    }
+
+    @Benchmark
+    public float[] biquad() {
+        return run(biquad);
+    }
+
+    @Benchmark
+    public float[] chain() {
+        return run(chain);
+    }
+}
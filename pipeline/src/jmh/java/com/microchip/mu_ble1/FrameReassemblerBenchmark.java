@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding frames in a received stream with FrameReassembler, fed one notification at a time.
+ * The stream holds 64 frames of 200 byte payloads, so the score divided by 64 is the cost of one frame.
+ * notificationSize is the data length of a notification: 20 bytes for the default MTU, 244 for an MTU of 247.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameReassemblerBenchmark {
+
+    private static final int FRAMES = 64;
+    private static final int PAYLOAD = 200;                                                         //One notification of 100 samples
+
+    @Param({"20", "244", "512"})
+    public int notificationSize;
+
+    private byte[] stream;
+    private FrameReassembler reassembler;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        this.blackhole = blackhole;
+        final Random random = new Random(1);
+        final byte[] payload = new byte[PAYLOAD];
+        stream = new byte[FRAMES * (PAYLOAD + FrameReassembler.OVERHEAD)];
+        int length = 0;
+        for (int sequence = 0; sequence < FRAMES; sequence++) {
+            random.nextBytes(payload);
+            length += FrameReassembler.writeFrame(sequence, payload, 0, PAYLOAD, stream, length);
+        }
+        reassembler = new FrameReassembler(1024, new FrameReassembler.FrameListener() {
+            @Override
+            public void onFrame(int sequence, byte[] buffer, int offset, int length) {
+                FrameReassemblerBenchmark.this.blackhole.consume(buffer[offset]);
+            }
+        });
+    }
+
+    @Benchmark
+    public long feed() {
+        reassembler.reset();
+        for (int offset = 0; offset < stream.length; offset += notificationSize) {
+            reassembler.feed(stream, offset, Math.min(notificationSize, stream.length - offset));
+        }
+        return reassembler.getFrames();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting a 4 KB outgoing payload into characteristic writes.
+ * copyOfRangeBaseline allocates a new array for every chunk, as the original writeToTransparentUART() did,
+ * mtuChunker reuses one array for each chunk length.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MtuChunkerBenchmark {
+
+    private static final int PAYLOAD = 4096;
+
+    @Param({"20", "244", "514"})
+    public int chunkSize;
+
+    private final byte[] payload = new byte[PAYLOAD];
+    private final MtuChunker chunker = new MtuChunker(514);
+
+    @Setup
+    public void setup() {
+        Arrays.fill(payload, (byte) 0x55);
+    }
+
+    @Benchmark
+    public void copyOfRangeBaseline(Blackhole blackhole) {
+        for (int offset = 0; offset < PAYLOAD; offset += chunkSize) {
+            blackhole.consume(Arrays.copyOfRange(payload, offset, Math.min(offset + chunkSize, PAYLOAD)));
+        }
+    }
+
+    @Benchmark
+    public void mtuChunker(Blackhole blackhole) {
+        chunker.reset(payload, 0, PAYLOAD);
+        while (chunker.hasNext()) {
+            blackhole.consume(chunker.next(chunkSize));
+        }
+        chunker.release();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning one notification of 100 samples into the string uploaded for it.
+ * hexBaseline is the uppercase hex string of the BCD payload that used to be uploaded, 400 characters.
+ * sampleCodec is SampleCodec.encodeToString() of the decoded samples, a slowly changing signal like the sensor's.
+ * The strings are returned so their lengths can be compared in a profiler, on this data the codec's is about a third.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SampleCodecBenchmark {
+
+    private static final int SAMPLES = 100;                                                         //Samples in one notification from the sensor
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final byte[] notification = new byte[SAMPLES * SampleDecoder.BYTES_PER_SAMPLE];
+    private final float[] samples = new float[SAMPLES];
+    private final SampleCodec codec = new SampleCodec();
+    private String encoded;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(1);
+        for (int i = 0; i < SAMPLES; i++) {                                                         //Slow sine with a little noise, as BCD words low byte first
+            final int value = (int) Math.round(5000 + 40 * Math.sin(2 * Math.PI * i / 300.0)) + random.nextInt(5);
+            final int bcd = (value / 1000) << 12 | (value / 100 % 10) << 8 | (value / 10 % 10) << 4 | value % 10;
+            notification[2 * i] = (byte) bcd;
+            notification[2 * i + 1] = (byte) (bcd >>> 8);
+        }
+        SampleDecoder.decodeBcd16Le(notification, 0, samples, 0, SAMPLES);
+        encoded = codec.encodeToString(samples, 0, SAMPLES);
+    }
+
+    @Benchmark
+    public String hexBaseline() {
+        final char[] chars = new char[notification.length * 2];                                     //Same conversion as Hex.bytesToStringUppercase()
+        for (int i = 0; i < notification.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(notification[i] >>> 4) & 0x0F];
+            chars[2 * i + 1] = HEX_DIGITS[notification[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    @Benchmark
+    public String sampleCodec() {
+        return codec.encodeToString(samples, 0, SAMPLES);
+    }
+
+    @Benchmark
+    public float[] sampleCodecDecode() {
+        return SampleCodec.decodeString(encoded);
+    }
+}
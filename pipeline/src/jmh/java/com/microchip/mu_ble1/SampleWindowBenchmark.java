@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appending one notification of samples to the chart window and decimating the window for a redraw.
+ * columns is the width of the chart in pixels, windowSamples the number of samples the chart shows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SampleWindowBenchmark {
+
+    private static final int SAMPLES = 100;                                                         //Samples in one notification from the sensor
+
+    @Param({"5000", "100000"})
+    public int windowSamples;
+
+    @Param({"1080"})
+    public int columns;
+
+    private SampleWindow window;
+    private final float[] samples = new float[SAMPLES];
+    private float[] x, y;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(1);
+        for (int i = 0; i < SAMPLES; i++) {
+            samples[i] = random.nextInt(10000);
+        }
+        window = new SampleWindow(windowSamples);
+        for (int i = 0; i < windowSamples; i += SAMPLES) {                                          //Start with a full window
+            window.append(samples, 0, SAMPLES);
+        }
+        x = new float[2 * columns];
+        y = new float[2 * columns];
+    }
+
+    @Benchmark
+    public void append() {
+        window.append(samples, 0, SAMPLES);
+    }
+
+    @Benchmark
+    public int decimateMinMax() {
+        return window.decimateMinMax(columns, x, y);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end over a SimulatedUartPeripheral: requests written through the transport, frames sent back as
+ * notifications, reassembled and decoded, all on a plain JVM.
+ * acquisitionCycle is one request and its FRAMES_PER_REQUEST frames, the round trip the app makes for every cycle.
+ * requestBurst writes REQUEST_BURST requests at once, more than the peripheral's receive buffer holds, so the writer
+ * has to wait for onWritable() before the rest are accepted, and then waits for every frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SimulatedLinkBenchmark {
+
+    private static final int REQUEST_BURST = 1536;                                                  //More than the receive buffer of the peripheral holds
+    private static final long TIMEOUT = 30000;                                                      //Milliseconds to wait for frames before failing the run
+
+    @Param({"23", "247"})
+    public int mtu;
+
+    @Param({"1000"})
+    public long connectionInterval;                                                                 //Microseconds between connection events
+
+    @Param({"8"})
+    public int notificationsPerEvent;
+
+    private SimulatedUartPeripheral peripheral;
+    private FrameReassembler reassembler;
+    private final float[] samples = new float[SimulatedUartPeripheral.FRAME_SAMPLES];
+    private final byte[] request = {SimulatedUartPeripheral.REQUEST_COMMAND};
+    private final byte[] burst = new byte[REQUEST_BURST];
+    private final Object lock = new Object();                                                       //Guards ready, frames and writable, the peripheral thread notifies on it
+    private boolean ready;                                                                          //Connected and the MTU exchanged
+    private long frames;                                                                            //Frames received since the start
+    private boolean writable;                                                                       //onWritable() called since the last blocked write
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        Arrays.fill(burst, SimulatedUartPeripheral.REQUEST_COMMAND);
+        reassembler = new FrameReassembler(1024, new FrameReassembler.FrameListener() {
+            @Override
+            public void onFrame(int sequence, byte[] buffer, int offset, int length) {
+                SampleDecoder.decodeBcd16Le(buffer, offset, samples, 0, length / SampleDecoder.BYTES_PER_SAMPLE);
+                synchronized (lock) {
+                    frames++;
+                    lock.notifyAll();
+                }
+            }
+        });
+        peripheral = new SimulatedUartPeripheral();
+        peripheral.setMtu(mtu);
+        peripheral.setConnectionInterval(connectionInterval, connectionInterval / 4);
+        peripheral.setNotificationsPerEvent(notificationsPerEvent);
+        peripheral.connect(new UartTransport.Listener() {
+            @Override
+            public void onConnected(UartTransport transport) {}
+
+            @Override
+            public void onDisconnected(UartTransport transport) {}
+
+            @Override
+            public void onPayloadSizeChanged(UartTransport transport, int payloadSize) {
+                synchronized (lock) {                                                               //Connected with the final MTU, the benchmark can start
+                    ready = true;
+                    lock.notifyAll();
+                }
+            }
+
+            @Override
+            public void onNotification(UartTransport transport, byte[] value, int length) {
+                reassembler.feed(value, 0, length);
+            }
+
+            @Override
+            public void onWritable(UartTransport transport) {
+                synchronized (lock) {
+                    writable = true;
+                    lock.notifyAll();
+                }
+            }
+        });
+        synchronized (lock) {
+            while (!ready) {
+                lock.wait(TIMEOUT);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        peripheral.shutdown();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Wait until the total number of frames received reaches target
+    private void awaitFrames(long target) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        synchronized (lock) {
+            while (frames < target) {
+                final long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new IllegalStateException("Received " + frames + " of " + target + " frames");
+                }
+                lock.wait(wait);
+            }
+        }
+    }
+
+    @Benchmark
+    public long acquisitionCycle() throws InterruptedException {
+        final long target;
+        synchronized (lock) {
+            target = frames + SimulatedUartPeripheral.FRAMES_PER_REQUEST;
+        }
+        peripheral.write(request, 0, request.length);
+        awaitFrames(target);
+        return target;
+    }
+
+    @Benchmark
+    public long requestBurst() throws InterruptedException {
+        final long target;
+        synchronized (lock) {
+            target = frames + (long) REQUEST_BURST * SimulatedUartPeripheral.FRAMES_PER_REQUEST;
+            writable = false;
+        }
+        int written = 0;
+        while (written < REQUEST_BURST) {
+            written += peripheral.write(burst, written, REQUEST_BURST - written);
+            synchronized (lock) {
+                while (written < REQUEST_BURST && !writable) {                                      //Backed up, wait for the peripheral to read
+                    lock.wait(TIMEOUT);
+                }
+                writable = false;
+            }
+        }
+        awaitFrames(target);
+        return target;
+    }
+}
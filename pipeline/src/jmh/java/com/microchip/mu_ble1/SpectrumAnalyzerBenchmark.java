@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adding one notification of samples to the SpectrumAnalyzer with a hop of one notification, so every call computes
+ * one spectrum, against a naive DFT of the same window to show what the FFT saves.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SpectrumAnalyzerBenchmark {
+
+    private static final int SAMPLES = 100;                                                         //Samples in one notification from the sensor
+
+    @Param({"256", "1024"})
+    public int size;
+
+    private SpectrumAnalyzer analyzer;
+    private final float[] samples = new float[SAMPLES];
+    private float[] window, magnitudes;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(1);
+        for (int i = 0; i < SAMPLES; i++) {
+            samples[i] = 5000 + 1000 * (float) Math.sin(i * 0.3) + random.nextInt(100);
+        }
+        analyzer = new SpectrumAnalyzer(size, SAMPLES);
+        for (int i = 0; i < size; i += SAMPLES) {                                                   //Start with a full window
+            analyzer.append(samples, 0, SAMPLES);
+        }
+        window = new float[size];
+        for (int i = 0; i < size; i++) {
+            window[i] = samples[i % SAMPLES];
+        }
+        magnitudes = new float[size / 2 + 1];
+    }
+
+    @Benchmark
+    public float[] spectrumAnalyzer() {
+        analyzer.append(samples, 0, SAMPLES);
+        return analyzer.getMagnitudes();
+    }
+
+    @Benchmark
+    public float[] naiveDftBaseline() {
+        for (int k = 0; k <= size / 2; k++) {
+            double re = 0, im = 0;
+            for (int i = 0; i < size; i++) {
+                final double angle = 2 * Math.PI * k * i / size;
+                re += window[i] * Math.cos(angle);
+                im -= window[i] * Math.sin(angle);
+            }
+            magnitudes[k] = (float) Math.hypot(re, im);
+        }
+        return magnitudes;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+/**
+ * Second order IIR filter (biquad), with the low pass, high pass and notch designs of R. Bristow-Johnson's
+ * Audio EQ Cookbook. Runs in transposed direct form II, which needs two state values and is well behaved with
+ * floating point. Coefficients and state are double so a low cutoff at a high sample rate stays stable.
+ * Cascade two filters for a steeper slope. Samples that are not finite are skipped.
+ */
+public final class BiquadFilter implements SampleFilter {
+
+    public static final double BUTTERWORTH_Q = 0.7071067811865476;                                  //1 / sqrt(2), flattest pass band
+
+    private final double b0, b1, b2, a1, a2;                                                        //Coefficients normalised so a0 is 1
+    private double z1, z2;                                                                          //State
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Filter with the given coefficients, divided by a0
+    public BiquadFilter(double b0, double b1, double b2, double a0, double a1, double a2) {
+        this.b0 = b0 / a0;
+        this.b1 = b1 / a0;
+        this.b2 = b2 / a0;
+        this.a1 = a1 / a0;
+        this.a2 = a2 / a0;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Passes frequencies below cutoff Hz
+    public static BiquadFilter lowPass(double cutoff, double q, double sampleRate) {
+        final double w0 = omega(cutoff, sampleRate), cos = Math.cos(w0), alpha = Math.sin(w0) / (2 * q);
+        return new BiquadFilter((1 - cos) / 2, 1 - cos, (1 - cos) / 2, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Passes frequencies above cutoff Hz
+    public static BiquadFilter highPass(double cutoff, double q, double sampleRate) {
+        final double w0 = omega(cutoff, sampleRate), cos = Math.cos(w0), alpha = Math.sin(w0) / (2 * q);
+        return new BiquadFilter((1 + cos) / 2, -(1 + cos), (1 + cos) / 2, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Removes a narrow band around frequency Hz, such as mains hum, higher q gives a narrower notch
+    public static BiquadFilter notch(double frequency, double q, double sampleRate) {
+        final double w0 = omega(frequency, sampleRate), cos = Math.cos(w0), alpha = Math.sin(w0) / (2 * q);
+        return new BiquadFilter(1, -2 * cos, 1, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    private static double omega(double frequency, double sampleRate) {
+        if (frequency <= 0 || frequency >= sampleRate / 2) {
+            throw new IllegalArgumentException("Frequency must be between 0 and half the sample rate: " + frequency);
+        }
+        return 2 * Math.PI * frequency / sampleRate;
+    }
+
+    @Override
+    public void process(float[] samples, int offset, int length) {
+        double z1 = this.z1, z2 = this.z2;                                                          //Locals so the loop does not write the fields every sample
+        for (int i = offset; i < offset + length; i++) {
+            final float x = samples[i];
+            if (!(Math.abs(x) <= Float.MAX_VALUE)) {                                                //NaN or infinite, would stay in the state for good
+                continue;
+            }
+            final double y = b0 * x + z1;
+            z1 = b1 * x - a1 * y + z2;
+            z2 = b2 * x - a2 * y;
+            samples[i] = (float) y;
+        }
+        this.z1 = z1;
+        this.z2 = z2;
+    }
+
+    @Override
+    public void reset() {
+        z1 = 0;
+        z2 = 0;
+    }
+}
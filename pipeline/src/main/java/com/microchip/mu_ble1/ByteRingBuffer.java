@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed capacity byte ring buffer for exactly one producer thread and one consumer thread.
+ * No locks are taken. The producer publishes its write index and the consumer publishes its read index,
+ * each index only ever moves forward and is written by one thread only. The producer empties the buffer with discard(),
+ * which the consumer picks up on its next read, and the consumer with clear().
+ *
+ * When the buffer is full the bytes that do not fit are dropped and counted, so the producer never blocks.
+ */
+public final class ByteRingBuffer {
+
+    private final byte[] buffer;                                                                    //Storage, length is a power of two
+    private final int mask;                                                                         //capacity - 1, to wrap an index into the buffer
+    private final AtomicLong writeIndex = new AtomicLong();                                         //Total bytes ever written, only changed by the producer
+    private final AtomicLong readIndex = new AtomicLong();                                          //Total bytes ever read, only changed by the consumer
+    private final AtomicLong discardIndex = new AtomicLong();                                       //Bytes before this are skipped by the consumer, only changed by the producer
+    private final AtomicLong overflowBytes = new AtomicLong();                                      //Bytes dropped because the buffer was full
+    private final AtomicLong overflowCount = new AtomicLong();                                      //Number of writes that dropped bytes
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor, capacity must be a power of two
+    public ByteRingBuffer(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        buffer = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Producer only - copy bytes into the buffer and return how many fit, the rest are dropped and counted as overflow
+    public int write(byte[] src, int offset, int length) {
+        final long write = writeIndex.get();
+        final int free = buffer.length - (int) (write - readIndex.get());                           //Consumer can only free more space while we are copying, never less
+        final int count = Math.min(length, free);
+        if (count < length) {                                                                       //Fell behind the producer, record what was lost
+            overflowBytes.addAndGet(length - count);
+            overflowCount.incrementAndGet();
+        }
+        final int start = (int) write & mask;
+        final int firstPart = Math.min(count, buffer.length - start);                               //Bytes before the end of the array
+        System.arraycopy(src, offset, buffer, start, firstPart);
+        System.arraycopy(src, offset + firstPart, buffer, 0, count - firstPart);                    //Remaining bytes wrap around to the start
+        writeIndex.lazySet(write + count);                                                          //Publish the bytes to the consumer
+        return count;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Consumer only - move up to length bytes into the caller's array and return how many were read
+    public int read(byte[] dst, int offset, int length) {
+        final long read = Math.max(readIndex.get(), discardIndex.get());                            //Skip what the producer discarded
+        final int count = Math.min(length, (int) (writeIndex.get() - read));
+        final int start = (int) read & mask;
+        final int firstPart = Math.min(count, buffer.length - start);
+        System.arraycopy(buffer, start, dst, offset, firstPart);
+        System.arraycopy(buffer, 0, dst, offset + firstPart, count - firstPart);
+        readIndex.lazySet(read + count);                                                            //Release the space to the producer
+        return count;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Consumer only - discard everything currently in the buffer
+    public void clear() {
+        readIndex.lazySet(writeIndex.get());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Producer only - discard everything written so far, the consumer skips it on its next read
+    // A read already running may still return some of it, the space is only free again once the consumer has read
+    public void discard() {
+        discardIndex.set(writeIndex.get());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Number of bytes waiting to be read, may be stale by the time it is used if the producer is still writing
+    public int available() {
+        final long read = Math.max(readIndex.get(), discardIndex.get());                            //Before the write index so the result is never negative
+        return (int) (writeIndex.get() - read);
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    public long getOverflowBytes() {
+        return overflowBytes.get();
+    }
+
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+/**
+ * Removes the DC offset and slow baseline drift with a one pole high pass filter:
+ *   y[n] = x[n] - x[n-1] + r * y[n-1]
+ * The closer r is to 1 the lower the cutoff, which is about (1 - r) * sampleRate / (2 * pi) Hz.
+ * Cheaper than a biquad high pass and has no overshoot, so it suits a signal that is only drifting.
+ * Samples that are not finite are skipped.
+ */
+public final class DcBlockerFilter implements SampleFilter {
+
+    public static final float DEFAULT_POLE = 0.995f;
+
+    private final float pole;                                                                       //r, between 0 and 1
+    private float lastInput, lastOutput;
+    private boolean primed;                                                                         //First sample seen, before that there is no x[n-1]
+
+    public DcBlockerFilter() {
+        this(DEFAULT_POLE);
+    }
+
+    public DcBlockerFilter(float pole) {
+        if (pole <= 0 || pole >= 1) {
+            throw new IllegalArgumentException("Pole must be between 0 and 1: " + pole);
+        }
+        this.pole = pole;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Filter whose cutoff is about cutoff Hz
+    public static DcBlockerFilter forCutoff(float cutoff, float sampleRate) {
+        return new DcBlockerFilter((float) Math.max(0.5, Math.min(0.99999, 1 - 2 * Math.PI * cutoff / sampleRate)));
+    }
+
+    @Override
+    public void process(float[] samples, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            final float x = samples[i];
+            if (!(Math.abs(x) <= Float.MAX_VALUE)) {                                                //NaN or infinite, would stay in x[n-1] and y[n-1] for good
+                continue;
+            }
+            if (!primed) {                                                                          //Start from the first good sample so the output does not begin with a step
+                lastInput = x;
+                primed = true;
+            }
+            lastOutput = x - lastInput + pole * lastOutput;
+            lastInput = x;
+            samples[i] = lastOutput;
+        }
+    }
+
+    @Override
+    public void reset() {
+        lastInput = 0;
+        lastOutput = 0;
+        primed = false;
+    }
+}
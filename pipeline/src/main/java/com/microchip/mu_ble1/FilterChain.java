@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Filters applied one after another, itself a SampleFilter so chains can be nested.
+ * The filters are fixed when the chain is made, build a new chain to change them.
+ */
+public final class FilterChain implements SampleFilter {
+
+    private final SampleFilter[] filters;
+
+    public FilterChain(SampleFilter... filters) {
+        this.filters = filters.clone();
+    }
+
+    @Override
+    public void process(float[] samples, int offset, int length) {
+        for (SampleFilter filter : filters) {
+            filter.process(samples, offset, length);
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (SampleFilter filter : filters) {
+            filter.reset();
+        }
+    }
+
+    public List<SampleFilter> getFilters() {
+        final ArrayList<SampleFilter> list = new ArrayList<>(filters.length);
+        Collections.addAll(list, filters);
+        return Collections.unmodifiableList(list);
+    }
+}
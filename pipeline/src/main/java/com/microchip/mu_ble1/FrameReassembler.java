@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+/**
+ * Reassembles frames from the Transparent UART byte stream regardless of how the bytes were split into notifications.
+ *
+ * Frame layout, all multi-byte fields little-endian:
+ *   sync     2 bytes  0xA5 0x5A
+ *   length   2 bytes  number of payload bytes
+ *   sequence 2 bytes  incremented by one for every frame, wraps at 65535
+ *   payload  length bytes
+ *   crc      2 bytes  CRC-16/CCITT-FALSE of the length, sequence and payload fields
+ *
+ * A corrupt frame (bad length or CRC) is skipped by searching for the next sync word one byte past the bad one.
+ * Missing sequence numbers are counted so lost frames can be reported. Not thread safe, feed from one thread only.
+ */
+public final class FrameReassembler {
+
+    public static final int SYNC_0 = 0xA5;                                                          //First byte of the sync word
+    public static final int SYNC_1 = 0x5A;                                                          //Second byte of the sync word
+    public static final int HEADER_SIZE = 6;                                                        //Sync, length and sequence
+    public static final int CRC_SIZE = 2;
+    public static final int OVERHEAD = HEADER_SIZE + CRC_SIZE;                                      //Bytes added to every payload
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Listener for complete frames, the payload is only valid until the method returns
+    public interface FrameListener {
+        void onFrame(int sequence, byte[] buffer, int offset, int length);
+    }
+
+    private final FrameListener listener;
+    private final int maxPayload;                                                                   //Longer lengths are treated as corruption
+    private final byte[] buffer;                                                                    //Bytes received that are not yet part of a delivered frame
+    private int count;                                                                              //Number of bytes in the buffer
+    private int lastSequence = -1;                                                                  //Sequence number of the last good frame, -1 before the first
+
+    private long frames;                                                                            //Good frames delivered
+    private long crcErrors;                                                                         //Frames with a bad CRC
+    private long lengthErrors;                                                                      //Headers with an impossible length
+    private long discardedBytes;                                                                    //Bytes skipped while searching for a sync word
+    private long sequenceGaps;                                                                      //Times a frame arrived with a sequence number that was not the next one
+    private long lostFrames;                                                                        //Frames missing according to the sequence numbers
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor, maxPayload is the largest payload length that the sender will ever use
+    public FrameReassembler(int maxPayload, FrameListener listener) {
+        this.maxPayload = maxPayload;
+        this.listener = listener;
+        buffer = new byte[OVERHEAD + maxPayload];                                                   //Room for one whole frame, anything before it has already been delivered or discarded
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Add received bytes, every complete frame found is passed to the listener before this returns
+    public void feed(byte[] src, int offset, int length) {
+        while (length > 0) {
+            final int n = Math.min(length, buffer.length - count);
+            System.arraycopy(src, offset, buffer, count, n);
+            count += n;
+            offset += n;
+            length -= n;
+            parse();                                                                                //Always leaves space, at worst by discarding a byte that cannot start a frame
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Forget any partial frame and the last sequence number, for example after reconnecting
+    public void reset() {
+        count = 0;
+        lastSequence = -1;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Find and deliver all complete frames in the buffer, then move any partial frame to the start of the buffer
+    private void parse() {
+        int position = 0;
+        while (true) {
+            final int sync = findSync(position);
+            discardedBytes += sync - position;
+            position = sync;
+            if (count - position < HEADER_SIZE) {                                                   //Need more bytes for the header
+                break;
+            }
+            final int length = readUint16(position + 2);
+            if (length > maxPayload) {                                                              //Sync word was part of the data or the header is corrupt
+                lengthErrors++;
+                discardedBytes++;
+                position++;
+                continue;
+            }
+            final int frameSize = OVERHEAD + length;
+            if (count - position < frameSize) {                                                     //Need more bytes for the payload and CRC
+                break;
+            }
+            final int crc = crc16(buffer, position + 2, HEADER_SIZE - 2 + length);
+            if (crc != readUint16(position + HEADER_SIZE + length)) {                               //Corrupt frame, look for another sync word inside it
+                crcErrors++;
+                discardedBytes++;
+                position++;
+                continue;
+            }
+            final int sequence = readUint16(position + 4);
+            checkSequence(sequence);
+            frames++;
+            listener.onFrame(sequence, buffer, position + HEADER_SIZE, length);
+            position += frameSize;
+        }
+        count -= position;
+        System.arraycopy(buffer, position, buffer, 0, count);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Return the index of the next possible sync word from start, or where a sync word could begin with more bytes
+    private int findSync(int start) {
+        for (int i = start; i < count - 1; i++) {
+            if ((buffer[i] & 0xFF) == SYNC_0 && (buffer[i + 1] & 0xFF) == SYNC_1) {
+                return i;
+            }
+        }
+        if (count > start && (buffer[count - 1] & 0xFF) == SYNC_0) {                                //Last byte may be the first half of a sync word
+            return count - 1;
+        }
+        return Math.max(start, count);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Count frames missing between the last good frame and this one
+    private void checkSequence(int sequence) {
+        if (lastSequence >= 0) {
+            final int gap = (sequence - lastSequence - 1) & 0xFFFF;
+            if (gap != 0) {
+                sequenceGaps++;
+                if (gap < 0x8000) {                                                                 //A big jump is a repeated or reordered frame, not 32768 lost ones
+                    lostFrames += gap;
+                }
+            }
+        }
+        lastSequence = sequence;
+    }
+
+    private int readUint16(int index) {
+        return (buffer[index] & 0xFF) | ((buffer[index + 1] & 0xFF) << 8);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // CRC-16/CCITT-FALSE, polynomial 0x1021, initial value 0xFFFF, no reflection
+    public static int crc16(byte[] data, int offset, int length) {
+        int crc = 0xFFFF;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (data[i] & 0xFF) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+        }
+        return crc & 0xFFFF;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Build a frame around a payload, returns the number of bytes written to dst (payload length + OVERHEAD)
+    public static int writeFrame(int sequence, byte[] payload, int offset, int length, byte[] dst, int dstOffset) {
+        dst[dstOffset] = (byte) SYNC_0;
+        dst[dstOffset + 1] = (byte) SYNC_1;
+        dst[dstOffset + 2] = (byte) length;
+        dst[dstOffset + 3] = (byte) (length >>> 8);
+        dst[dstOffset + 4] = (byte) sequence;
+        dst[dstOffset + 5] = (byte) (sequence >>> 8);
+        System.arraycopy(payload, offset, dst, dstOffset + HEADER_SIZE, length);
+        final int crc = crc16(dst, dstOffset + 2, HEADER_SIZE - 2 + length);
+        dst[dstOffset + HEADER_SIZE + length] = (byte) crc;
+        dst[dstOffset + HEADER_SIZE + length + 1] = (byte) (crc >>> 8);
+        return OVERHEAD + length;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getCrcErrors() {
+        return crcErrors;
+    }
+
+    public long getLengthErrors() {
+        return lengthErrors;
+    }
+
+    public long getDiscardedBytes() {
+        return discardedBytes;
+    }
+
+    public long getSequenceGaps() {
+        return sequenceGaps;
+    }
+
+    public long getLostFrames() {
+        return lostFrames;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+/**
+ * Moving average of the last length samples, a simple low pass filter that removes noise. It smooths edges too: a
+ * step in the input becomes a ramp length samples long in the output.
+ * Keeps the last samples in a ring and a running sum, so each sample costs one add and one subtract whatever the
+ * length. Until length samples have been seen the average is over the samples seen so far. Samples that are not
+ * finite are left out of the average.
+ */
+public final class MovingAverageFilter implements SampleFilter {
+
+    private final float[] history;                                                                  //Last samples, oldest at position
+    private int position;                                                                           //Index in history of the oldest sample, where the next one goes
+    private int count;                                                                              //Samples in history, up to history.length
+    private double sum;                                                                             //Sum of the samples in history, double so rounding does not build up
+    private double scale;                                                                           //1 / count, a multiply per sample is much cheaper than a divide
+
+    public MovingAverageFilter(int length) {
+        if (length < 1) {
+            throw new IllegalArgumentException("Length must be at least 1: " + length);
+        }
+        history = new float[length];
+    }
+
+    @Override
+    public void process(float[] samples, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            final float x = samples[i];
+            if (!(Math.abs(x) <= Float.MAX_VALUE)) {                                                //NaN or infinite, would stay in the sum for good
+                continue;
+            }
+            if (count == history.length) {
+                sum -= history[position];
+            }
+            else {
+                count++;
+                scale = 1.0 / count;
+            }
+            history[position] = x;
+            sum += x;
+            position = position + 1 == history.length ? 0 : position + 1;
+            samples[i] = (float) (sum * scale);
+        }
+    }
+
+    @Override
+    public void reset() {
+        position = 0;
+        count = 0;
+        sum = 0;
+        scale = 0;
+    }
+
+    public int getLength() {
+        return history.length;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+/**
+ * Splits an outgoing payload into chunks that fit in one characteristic write.
+ * The payload is read in place through an offset and length, so splitting costs a single pass over the data.
+ * A characteristic value must be an array of exactly the chunk length, so one array is kept for each chunk length
+ * and reused for every chunk of that length. After the first payload no further arrays are allocated.
+ *
+ * A chunk array is only valid until the next chunk of the same length is requested. BluetoothGatt copies the
+ * characteristic value when the write is requested, so a chunk can be reused as soon as writeCharacteristic() returns.
+ * Not thread safe, use from one thread only.
+ */
+public final class MtuChunker {
+
+    private final byte[][] chunkBuffers;                                                            //Reused chunk arrays indexed by their length
+    private byte[] source;                                                                          //Payload being split, not copied
+    private int position;                                                                           //Index in the payload of the next chunk
+    private int end;                                                                                //Index in the payload after the last byte
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor, maxChunkSize is the largest chunk size that will ever be requested
+    public MtuChunker(int maxChunkSize) {
+        chunkBuffers = new byte[maxChunkSize + 1][];
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start splitting a new payload, the caller must not change those bytes until all chunks have been taken
+    public void reset(byte[] payload, int offset, int length) {
+        source = payload;
+        position = offset;
+        end = offset + length;
+    }
+
+    public boolean hasNext() {
+        return position < end;
+    }
+
+    public int remaining() {
+        return end - position;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Copy the next chunk of at most chunkSize bytes into its reused array and return the array
+    public byte[] next(int chunkSize) {
+        final int length = Math.min(Math.min(chunkSize, chunkBuffers.length - 1), end - position);  //Never bigger than the largest chunk size allowed for
+        byte[] chunk = chunkBuffers[length];
+        if (chunk == null) {                                                                        //First chunk of this length, allocate it once
+            chunk = new byte[length];
+            chunkBuffers[length] = chunk;
+        }
+        System.arraycopy(source, position, chunk, 0, length);
+        position += length;
+        return chunk;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Forget the payload so it is not kept in memory after it has been sent
+    public void release() {
+        source = null;
+        position = end = 0;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+/**
+ * Compact encoding of a frame of samples for upload, much smaller than the hex string of the frame payload for sensor
+ * data that changes slowly from one sample to the next.
+ *
+ * Each sample is rounded to an int and stored as the difference from the one before it, zig-zag mapped so small
+ * negative differences are small numbers too, in a variable length of 1 to 5 bytes, 7 bits per byte with the top bit
+ * set on every byte but the last:
+ *   format  1 byte   FORMAT, also tells an encoded frame from an old hex string
+ *   count   varint   number of samples
+ *   first   varint   zig-zag first sample
+ *   deltas  varint   zig-zag difference from the previous sample, count - 1 of them
+ * Decoded samples are whole numbers, so whole numbered samples, which every decoded BCD sample is, round-trip exactly.
+ * Any number of samples can be encoded. The differences wrap around like int arithmetic, so any int comes back
+ * unchanged but for Integer.MIN_VALUE, and larger values are clamped to the int range.
+ *
+ * Integer.MIN_VALUE is reserved as NOT_A_SAMPLE. A sample that is not finite, such as the NaN SampleDecoder gives for
+ * an invalid BCD word, is written as NOT_A_SAMPLE and decodes as NaN, so a bad word costs one longer varint instead of
+ * the frame, and the difference after it is from the last finite sample. A finite sample that would round to
+ * Integer.MIN_VALUE is written as Integer.MIN_VALUE + 1. Encodings made before this had NaN written as 0.
+ *
+ * For the database the bytes are written as standard Base64 with padding, 4 characters for every 3 bytes. The Base64
+ * is done here because java.util.Base64 needs Android API 26 and this also keeps the pipeline module free of Android.
+ * An encoded string always starts with 'R', a character a hex string never contains.
+ *
+ * The static methods are thread safe. An instance reuses its buffers for encodeToString(), so use it from one thread.
+ */
+public final class SampleCodec {
+
+    public static final byte FORMAT = 0x44;                                                         //Format of the encoding, Base64 turns it into a leading 'R'
+    public static final int MAX_VARINT_SIZE = 5;                                                    //Bytes in the longest varint, for a 32-bit value
+    public static final int NOT_A_SAMPLE = Integer.MIN_VALUE;                                       //Value written for a sample that is not finite
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int[] BASE64_VALUES = new int[128];                                        //Value of each Base64 character, -1 for characters that are not Base64
+
+    static {
+        java.util.Arrays.fill(BASE64_VALUES, -1);
+        for (int i = 0; i < BASE64.length; i++) {
+            BASE64_VALUES[BASE64[i]] = i;
+        }
+    }
+
+    private byte[] bytes = new byte[0];                                                             //Reused by encodeToString()
+    private char[] chars = new char[0];
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Largest number of bytes that count samples can be encoded in
+    public static int maxEncodedSize(int count) {
+        return 1 + (count + 1) * MAX_VARINT_SIZE;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Encode count samples starting at offset into dst at dstOffset, which must have room for maxEncodedSize(count)
+    // Returns the number of bytes written
+    public static int encode(float[] samples, int offset, int count, byte[] dst, int dstOffset) {
+        int position = dstOffset;
+        dst[position++] = FORMAT;
+        position = writeVarint(count, dst, position);
+        int previous = 0;
+        for (int i = offset; i < offset + count; i++) {
+            final float sample = samples[i];
+            final int value = !(Math.abs(sample) <= Float.MAX_VALUE) ? NOT_A_SAMPLE                 //NaN or infinite
+                    : Math.max(Math.round(sample), NOT_A_SAMPLE + 1);                               //Round clamps to the int range, keep clear of the reserved value
+            final int delta = value - previous;                                                     //May overflow, the decoder wraps around the same way
+            position = writeVarint((delta << 1) ^ (delta >> 31), dst, position);                    //Zig-zag: 0, -1, 1, -2, 2 ... become 0, 1, 2, 3, 4 ...
+            if (value != NOT_A_SAMPLE) {
+                previous = value;
+            }
+        }
+        return position - dstOffset;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Number of samples in encoded data, without decoding them
+    // Throws IllegalArgumentException if the count cannot be right for length bytes, before anything is allocated for it
+    public static int decodedCount(byte[] src, int offset, int length) {
+        if (length < 1 || src[offset] != FORMAT) {
+            throw new IllegalArgumentException("Not encoded samples");
+        }
+        final int count = (int) readVarint(src, offset + 1, offset + length);
+        if (count < 0 || count > length - 1 - varintSize(count)) {                                  //Every sample takes at least one byte
+            throw new IllegalArgumentException("Count of " + (count & 0xFFFFFFFFL) + " samples in " + length + " bytes");
+        }
+        return count;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Decode the samples in length bytes of src starting at offset into dst at dstOffset, which must have room for them
+    // NOT_A_SAMPLE decodes as NaN
+    // Returns the number of samples, throws IllegalArgumentException if the data is not a complete encoding
+    public static int decode(byte[] src, int offset, int length, float[] dst, int dstOffset) {
+        final int end = offset + length;
+        final int count = decodedCount(src, offset, length);
+        if (count > dst.length - dstOffset) {
+            throw new IllegalArgumentException("No room for " + count + " samples");
+        }
+        int position = offset + 1 + varintSize(count);
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            final long read = readVarint(src, position, end);
+            final int zigzag = (int) read;
+            position = (int) (read >>> 32);
+            final int value = previous + ((zigzag >>> 1) ^ -(zigzag & 1));
+            if (value == NOT_A_SAMPLE) {
+                dst[dstOffset + i] = Float.NaN;
+            }
+            else {
+                dst[dstOffset + i] = value;
+                previous = value;
+            }
+        }
+        if (position != end) {
+            throw new IllegalArgumentException((end - position) + " bytes after the samples");
+        }
+        return count;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Samples encoded and written as Base64, using this instance's buffers, for the database
+    public String encodeToString(float[] samples, int offset, int count) {
+        final int size = maxEncodedSize(count);
+        if (bytes.length < size) {
+            bytes = new byte[size];
+            chars = new char[(size + 2) / 3 * 4];
+        }
+        final int length = encode(samples, offset, count, bytes, 0);
+        return new String(chars, 0, toBase64(bytes, 0, length, chars));
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Samples in a string made by encodeToString(), throws IllegalArgumentException if it is not one
+    public static float[] decodeString(String value) {
+        final byte[] data = fromBase64(value);
+        final float[] samples = new float[decodedCount(data, 0, data.length)];
+        decode(data, 0, data.length, samples, 0);
+        return samples;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // A string that decodeString() can decode, as opposed to an old hex string of the frame payload
+    public static boolean isEncodedString(String value) {
+        return value.length() >= 4 && value.charAt(0) == BASE64[(FORMAT & 0xFF) >>> 2];
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write length bytes of src as Base64 with padding into dst, returns the number of characters
+    public static int toBase64(byte[] src, int offset, int length, char[] dst) {
+        int position = 0;
+        final int end = offset + length;
+        int i = offset;
+        for (; i + 2 < end; i += 3) {
+            final int bits = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF);
+            dst[position++] = BASE64[bits >>> 18];
+            dst[position++] = BASE64[(bits >>> 12) & 0x3F];
+            dst[position++] = BASE64[(bits >>> 6) & 0x3F];
+            dst[position++] = BASE64[bits & 0x3F];
+        }
+        if (i < end) {                                                                              //One or two bytes left over
+            final int bits = (src[i] & 0xFF) << 16 | (i + 1 < end ? (src[i + 1] & 0xFF) << 8 : 0);
+            dst[position++] = BASE64[bits >>> 18];
+            dst[position++] = BASE64[(bits >>> 12) & 0x3F];
+            dst[position++] = i + 1 < end ? BASE64[(bits >>> 6) & 0x3F] : '=';
+            dst[position++] = '=';
+        }
+        return position;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Bytes of a Base64 string with padding, throws IllegalArgumentException if it is not Base64
+    public static byte[] fromBase64(String value) {
+        final int length = value.length();
+        if (length % 4 != 0) {
+            throw new IllegalArgumentException("Base64 length not a multiple of 4: " + length);
+        }
+        final int padding = length == 0 ? 0 : value.charAt(length - 1) != '=' ? 0 : value.charAt(length - 2) != '=' ? 1 : 2;
+        final byte[] bytes = new byte[length / 4 * 3 - padding];
+        int position = 0;
+        for (int i = 0; i < length; i += 4) {
+            int bits = 0;
+            for (int j = 0; j < 4; j++) {
+                final char c = value.charAt(i + j);
+                final int digit = c == '=' && i + j >= length - padding ? 0 : c < 128 ? BASE64_VALUES[c] : -1;
+                if (digit < 0) {
+                    throw new IllegalArgumentException("Not a Base64 character: " + c);
+                }
+                bits = bits << 6 | digit;
+            }
+            bytes[position++] = (byte) (bits >>> 16);
+            if (position < bytes.length) {
+                bytes[position++] = (byte) (bits >>> 8);
+            }
+            if (position < bytes.length) {
+                bytes[position++] = (byte) bits;
+            }
+        }
+        return bytes;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write value as an unsigned varint at position, returns the position after it
+    private static int writeVarint(int value, byte[] dst, int position) {
+        while ((value & ~0x7F) != 0) {
+            dst[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[position++] = (byte) value;
+        return position;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Read an unsigned varint at position, returns the value in the low 32 bits and the position after it in the high 32
+    private static long readVarint(byte[] src, int position, int end) {
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT_SIZE; shift += 7) {
+            if (position >= end) {
+                throw new IllegalArgumentException("Encoded samples cut short");
+            }
+            final int b = src[position++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {                                                                           //Top bit clear, last byte of the varint
+                return (long) position << 32 | (value & 0xFFFFFFFFL);
+            }
+        }
+        throw new IllegalArgumentException("Varint longer than " + MAX_VARINT_SIZE + " bytes");
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
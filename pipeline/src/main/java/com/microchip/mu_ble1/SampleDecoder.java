@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes 16-bit little-endian samples received over the Transparent UART straight from the raw bytes
+ * into caller supplied primitive arrays. Nothing is allocated per sample or per call.
+ *
+ * Each sample is two bytes, low byte first. The sensor firmware sends each sample as four packed BCD digits,
+ * so for every valid BCD word decodeBcd16Le() gives the same value that the hex string parsing in BleMainActivity
+ * used to produce (swap the two bytes, print as hex, parse the four hex digits with Float.valueOf()).
+ *
+ * Words with a nibble above 9 are not BCD and always decode as Float.NaN. The old parsing threw for most of them but
+ * Float.valueOf() accepted 4200, reading the hex letters D, F and E as Java number syntax rather than as digits:
+ *   ddd[DF]     2000 words  suffix, "000D" was 0, the last digit silently lost
+ *   ddEd, dEdd  2000 words  exponent, "1E05" was 100000 and 555 of them, such as "9E99", were Infinity
+ *   dEd[DF]      200 words  exponent and suffix, "1E5D" was 100000
+ * None of these can come from the sensor, so they are treated as corrupt like every other word that is not BCD.
+ */
+public final class SampleDecoder {
+
+    public static final int BYTES_PER_SAMPLE = 2;                                                   //Each sample is a 16-bit word sent low byte first
+
+    private SampleDecoder() {}                                                                      //Only static methods, never instantiated
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Decode signed 16-bit little-endian samples from a byte array into a short array
+    // Returns the number of samples decoded, limited by the bytes available and the space in the destination
+    public static int decodeInt16Le(byte[] src, int srcOffset, short[] dst, int dstOffset, int count) {
+        count = clampCount(src.length - srcOffset, dst.length - dstOffset, count);                  //Never read or write past the end of either array
+        for (int i = 0; i < count; i++) {
+            final int index = srcOffset + i * BYTES_PER_SAMPLE;
+            dst[dstOffset + i] = (short) ((src[index] & 0xFF) | (src[index + 1] << 8));             //Low byte first, high byte carries the sign
+        }
+        return count;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Decode signed 16-bit little-endian samples from a byte array into a float array
+    public static int decodeInt16Le(byte[] src, int srcOffset, float[] dst, int dstOffset, int count) {
+        count = clampCount(src.length - srcOffset, dst.length - dstOffset, count);
+        for (int i = 0; i < count; i++) {
+            final int index = srcOffset + i * BYTES_PER_SAMPLE;
+            dst[dstOffset + i] = (short) ((src[index] & 0xFF) | (src[index + 1] << 8));
+        }
+        return count;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Decode signed 16-bit little-endian samples from a ByteBuffer into a short array
+    // Reads from the current position, independent of the buffer's byte order, and advances the position past the samples read
+    public static int decodeInt16Le(ByteBuffer src, short[] dst, int dstOffset, int count) {
+        count = clampCount(src.remaining(), dst.length - dstOffset, count);
+        int index = src.position();
+        for (int i = 0; i < count; i++, index += BYTES_PER_SAMPLE) {
+            dst[dstOffset + i] = (short) ((src.get(index) & 0xFF) | (src.get(index + 1) << 8));     //Absolute gets so the byte order setting of the buffer does not matter
+        }
+        src.position(index);
+        return count;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Decode little-endian packed BCD samples (four decimal digits per 16-bit word) from a byte array into a float array
+    // Words containing a nibble above 9 are not valid BCD and are decoded as Float.NaN
+    public static int decodeBcd16Le(byte[] src, int srcOffset, float[] dst, int dstOffset, int count) {
+        count = clampCount(src.length - srcOffset, dst.length - dstOffset, count);
+        for (int i = 0; i < count; i++) {
+            final int index = srcOffset + i * BYTES_PER_SAMPLE;
+            dst[dstOffset + i] = bcd16ToFloat((src[index] & 0xFF) | ((src[index + 1] & 0xFF) << 8));
+        }
+        return count;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Decode little-endian packed BCD samples from a ByteBuffer into a float array, advancing the position
+    public static int decodeBcd16Le(ByteBuffer src, float[] dst, int dstOffset, int count) {
+        count = clampCount(src.remaining(), dst.length - dstOffset, count);
+        int index = src.position();
+        for (int i = 0; i < count; i++, index += BYTES_PER_SAMPLE) {
+            dst[dstOffset + i] = bcd16ToFloat((src.get(index) & 0xFF) | ((src.get(index + 1) & 0xFF) << 8));
+        }
+        src.position(index);
+        return count;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Convert one 16-bit packed BCD word (most significant digit in the top nibble) to its decimal value
+    public static float bcd16ToFloat(int word) {
+        final int d3 = (word >>> 12) & 0x0F;
+        final int d2 = (word >>> 8) & 0x0F;
+        final int d1 = (word >>> 4) & 0x0F;
+        final int d0 = word & 0x0F;
+        if (d3 > 9 || d2 > 9 || d1 > 9 || d0 > 9) {                                                 //Not a decimal digit, the old hex string parsing threw NumberFormatException here
+            return Float.NaN;
+        }
+        return d3 * 1000 + d2 * 100 + d1 * 10 + d0;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Limit the requested sample count to what fits in both the source bytes and the destination array
+    private static int clampCount(int srcBytes, int dstSpace, int count) {
+        return Math.max(0, Math.min(count, Math.min(srcBytes / BYTES_PER_SAMPLE, dstSpace)));
+    }
+}
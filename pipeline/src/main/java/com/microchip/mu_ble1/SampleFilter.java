@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+/**
+ * Streaming filter that works on blocks of samples in place and keeps its own state between blocks, so a signal split
+ * into blocks of any size is filtered exactly as if it were one long block. Nothing is allocated per block or sample.
+ * A filter keeps the state of one signal and is used from one thread at a time.
+ *
+ * A sample that is not finite, such as the NaN SampleDecoder gives for an invalid BCD word, is left as it is and never
+ * taken into the state, so the filter carries on from the next good sample as if the bad one had not been there and
+ * filters in a chain all skip the same sample. One bad sample must not turn every later output into NaN.
+ */
+public interface SampleFilter {
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Filter length samples starting at offset, replacing them with the output, samples that are not finite are left alone
+    void process(float[] samples, int offset, int length);
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Forget the past samples, for example when a new connection starts a new signal
+    void reset();
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Publish and subscribe stream of decoded sample blocks, one block per received frame.
+ * Every subscriber has its own bounded queue and its own thread, so each consumer runs at its own pace: a slow upload
+ * never holds up the chart. Blocks are immutable and shared by all subscribers, nothing is copied per subscriber.
+ * What happens when a subscriber falls behind and its queue is full is chosen per subscriber:
+ *
+ *   DROP_OLDEST  the oldest waiting block is dropped to make room, the subscriber always gets the most recent data
+ *   BLOCK        publish() waits for room, nothing is ever lost but a stuck subscriber stalls the publisher
+ *   SAMPLE       the newest waiting block is replaced, the subscriber skips ahead to the latest data
+ *
+ * A block can carry two channels of the same samples, RAW as decoded and FILTERED through the pipeline's filter chain,
+ * and each consumer reads the channel it was configured for.
+ *
+ * Blocks can come from a BlockPool so that a steady stream allocates nothing. A pooled block counts the subscribers
+ * still holding it and goes back to its pool when the last one has finished with it, whether delivered, dropped or
+ * cancelled. Subscribers must not keep a pooled block or its arrays after onBlock() returns, and only the first
+ * getLength() samples of each array are valid.
+ *
+ * publish() is called from one thread. Subscribers are called on their own thread, one block at a time, and should
+ * catch their own exceptions. An exception that escapes is counted and the next block is delivered as usual.
+ */
+public final class SampleStream {
+
+    public enum OverflowPolicy {DROP_OLDEST, BLOCK, SAMPLE}
+
+    public enum Channel {RAW, FILTERED}
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Consumer of the stream, called on the subscription's own thread
+    public interface Subscriber {
+        void onBlock(Block block);                                                                  //Next block, in the order published apart from those dropped
+        void onComplete();                                                                          //Stream closed or subscription cancelled, nothing more follows
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The decoded samples of one frame, never changed after it is published
+    public static final class Block {
+        private int sequence;                                                                       //Frame sequence number
+        private long receivedTime;                                                                  //System.nanoTime() the frame arrived
+        private final float[] samples;                                                              //Samples as decoded
+        private final float[] filtered;                                                             //Same samples after the filter chain, null if there is none
+        private int length;                                                                         //Number of samples in each array
+        private boolean hasFiltered;                                                                //The filtered array holds this frame
+        private final byte[] payload;                                                               //Frame payload as received, null if not kept
+        private final boolean endOfSession;                                                         //Marks the end of a connection, has no samples
+        private final BlockPool pool;                                                               //Pool the block goes back to, null if not pooled
+        private final AtomicInteger references = new AtomicInteger();                               //Publisher and subscribers still holding a pooled block
+
+        public Block(int sequence, long receivedTime, float[] samples, byte[] payload) {
+            this(sequence, receivedTime, samples, null, payload, false, null);
+        }
+
+        public Block(int sequence, long receivedTime, float[] samples, float[] filtered, byte[] payload) {
+            this(sequence, receivedTime, samples, filtered, payload, false, null);
+        }
+
+        private Block(int sequence, long receivedTime, float[] samples, float[] filtered, byte[] payload, boolean endOfSession, BlockPool pool) {
+            this.sequence = sequence;
+            this.receivedTime = receivedTime;
+            this.samples = samples;
+            this.filtered = filtered;
+            length = samples.length;
+            hasFiltered = filtered != null;
+            this.payload = payload;
+            this.endOfSession = endOfSession;
+            this.pool = pool;
+        }
+
+        // Block that marks the end of a connection, subscribers that keep per session state finish it when they see one
+        public static Block endOfSession() {
+            return new Block(-1, System.nanoTime(), new float[0], null, null, true, null);
+        }
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // Describe a block taken from a BlockPool, once the samples have been written to getRawBuffer() and, if
+        // filtered, to getFilteredBuffer(), returns the block ready to publish
+        public Block set(int sequence, long receivedTime, int length, boolean filtered) {
+            this.sequence = sequence;
+            this.receivedTime = receivedTime;
+            this.length = length;
+            hasFiltered = filtered;
+            return this;
+        }
+
+        // Array to decode the samples of a pooled block into, before publishing
+        public float[] getRawBuffer() {
+            return samples;
+        }
+
+        // Array to write the filtered samples of a pooled block into, before publishing
+        public float[] getFilteredBuffer() {
+            return filtered;
+        }
+
+        public int getSequence() {
+            return sequence;
+        }
+
+        public long getReceivedTime() {
+            return receivedTime;
+        }
+
+        // The samples, do not change them as every subscriber sees the same array
+        // Only the first getLength() are valid, a pooled array can be longer
+        public float[] getSamples() {
+            return samples;
+        }
+
+        // The samples of one channel, the raw samples if the block has no filtered channel
+        public float[] getSamples(Channel channel) {
+            return channel == Channel.FILTERED && hasFiltered ? filtered : samples;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public boolean hasFiltered() {
+            return hasFiltered;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public boolean isEndOfSession() {
+            return endOfSession;
+        }
+
+        private void retain() {
+            if (pool != null) {
+                references.incrementAndGet();
+            }
+        }
+
+        // Done with the block, a pooled block goes back to its pool when nobody holds it any more
+        private void release() {
+            if (pool != null && references.decrementAndGet() == 0) {
+                pool.recycle(this);
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Blocks with arrays for up to maxSamples samples, reused once every subscriber has finished with them
+    // New blocks are made while none are free, and at most capacity free blocks are kept
+    public static final class BlockPool {
+        private final int maxSamples;
+        private final boolean filtered;                                                             //Blocks have an array for the filtered channel
+        private final ArrayBlockingQueue<Block> free;
+        private final AtomicInteger allocated = new AtomicInteger();                                //Blocks ever made
+
+        public BlockPool(int capacity, int maxSamples, boolean filtered) {
+            this.maxSamples = maxSamples;
+            this.filtered = filtered;
+            free = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        }
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // A block nobody is using, to fill and publish from the publishing thread
+        public Block obtain() {
+            Block block = free.poll();
+            if (block == null) {
+                block = new Block(-1, 0, new float[maxSamples], filtered ? new float[maxSamples] : null, null, false, this);
+                allocated.incrementAndGet();
+            }
+            block.references.set(1);                                                                //Held by the publisher until publish() returns
+            return block;
+        }
+
+        private void recycle(Block block) {
+            free.offer(block);                                                                      //Dropped for the garbage collector if the pool is full
+        }
+
+        public int getAllocated() {
+            return allocated.get();
+        }
+
+        public int getFree() {
+            return free.size();
+        }
+    }
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Add a subscriber with a queue of capacity blocks, it gets the blocks published from now on on a new thread
+    public Subscription subscribe(String name, int capacity, OverflowPolicy policy, Subscriber subscriber) {
+        final Subscription subscription = new Subscription(name, Math.max(1, capacity), policy, subscriber);
+        if (closed) {
+            subscription.cancel();
+        }
+        else {
+            subscriptions.add(subscription);
+        }
+        subscription.thread.start();
+        return subscription;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Offer a block to every subscriber, only waits if a BLOCK subscriber's queue is full
+    // A pooled block belongs to the stream from here on, the publisher must not use it again
+    public void publish(Block block) {
+        if (!closed) {
+            for (Subscription subscription : subscriptions) {
+                block.retain();
+                if (!subscription.offer(block)) {
+                    block.release();
+                }
+            }
+        }
+        block.release();                                                                            //Publisher is done with it
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // No more blocks, each subscriber finishes the blocks already queued and then gets onComplete()
+    public void close() {
+        closed = true;
+        for (Subscription subscription : subscriptions) {
+            subscription.finish();
+        }
+        subscriptions.clear();
+    }
+
+    /******************************************************************************************************************
+     * One subscriber with its queue and thread
+     */
+
+    public final class Subscription {
+        private final String name;
+        private final int capacity;
+        private final OverflowPolicy policy;
+        private final Subscriber subscriber;
+        private final Thread thread;
+        private final ReentrantLock lock = new ReentrantLock();                                     //Guards the queue and the finished flags
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        private final ArrayDeque<Block> queue;
+        private boolean finishing;                                                                  //Deliver what is queued, then complete
+        private boolean cancelled;                                                                  //Complete without delivering anything more
+
+        private volatile long delivered;                                                            //Blocks passed to the subscriber
+        private volatile long dropped;                                                              //Blocks dropped or replaced because the queue was full
+        private volatile long blockedNanos;                                                         //Time publish() spent waiting for this subscriber
+        private volatile int highWater;                                                             //Most blocks ever waiting
+        private volatile long failures;                                                             //Exceptions thrown by the subscriber
+
+        private Subscription(String name, int capacity, OverflowPolicy policy, Subscriber subscriber) {
+            this.name = name;
+            this.capacity = capacity;
+            this.policy = policy;
+            this.subscriber = subscriber;
+            queue = new ArrayDeque<>(capacity);
+            thread = new Thread(deliver, SampleStream.class.getSimpleName() + "-" + name);
+            thread.setDaemon(true);
+        }
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // Put a block in the queue, applying the overflow policy if it is full, returns false if it was not queued
+        private boolean offer(Block block) {
+            lock.lock();
+            try {
+                if (finishing || cancelled) {
+                    return false;
+                }
+                if (queue.size() >= capacity) {
+                    switch (policy) {
+                        case DROP_OLDEST:
+                            queue.poll().release();
+                            dropped++;
+                            break;
+                        case SAMPLE:
+                            queue.pollLast().release();
+                            dropped++;
+                            break;
+                        case BLOCK: {
+                            final long start = System.nanoTime();
+                            while (queue.size() >= capacity && !cancelled && !finishing) {
+                                notFull.awaitUninterruptibly();
+                            }
+                            blockedNanos += System.nanoTime() - start;
+                            if (cancelled || finishing) {
+                                return false;
+                            }
+                        }
+                    }
+                }
+                queue.add(block);
+                if (queue.size() > highWater) {
+                    highWater = queue.size();
+                }
+                notEmpty.signal();
+                return true;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // Stop delivering and complete as soon as the block being delivered, if any, is done
+        public void cancel() {
+            subscriptions.remove(this);
+            lock.lock();
+            try {
+                cancelled = true;
+                Block block;
+                while ((block = queue.poll()) != null) {
+                    block.release();
+                }
+                notEmpty.signal();
+                notFull.signalAll();                                                                //Publisher must not wait for a subscriber that has gone
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        private void finish() {
+            lock.lock();
+            try {
+                finishing = true;
+                notEmpty.signal();
+                notFull.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        // ----------------------------------------------------------------------------------------------------------------
+        // Runnable for the subscription thread, hands the queued blocks to the subscriber one at a time
+        private final Runnable deliver = new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    final Block block;
+                    lock.lock();
+                    try {
+                        while (queue.isEmpty() && !finishing && !cancelled) {
+                            notEmpty.awaitUninterruptibly();
+                        }
+                        if (cancelled || queue.isEmpty()) {                                         //Cancelled, or finishing with nothing left
+                            break;
+                        }
+                        block = queue.poll();
+                        notFull.signal();
+                    }
+                    finally {
+                        lock.unlock();
+                    }
+                    try {
+                        subscriber.onBlock(block);
+                    }
+                    catch (RuntimeException e) {                                                    //A failing subscriber must not stop its own thread
+                        failures++;
+                    }
+                    block.release();
+                    delivered++;
+                }
+                subscriber.onComplete();
+            }
+        };
+
+        public String getName() {
+            return name;
+        }
+
+        public OverflowPolicy getPolicy() {
+            return policy;
+        }
+
+        public long getDelivered() {
+            return delivered;
+        }
+
+        public long getDropped() {
+            return dropped;
+        }
+
+        public long getBlockedNanos() {
+            return blockedNanos;
+        }
+
+        public int getQueued() {
+            lock.lock();
+            try {
+                return queue.size();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        public int getHighWater() {
+            return highWater;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+/**
+ * Fixed size window of the most recent samples for the real-time graph, kept in a circular float array.
+ * Memory use does not grow with acquisition time. Each sample keeps its absolute index so the x axis keeps counting
+ * after old samples have been overwritten.
+ *
+ * decimateMinMax() reduces the window to the minimum and maximum of each pixel column, so the graph only draws about
+ * two points per pixel however large the window is, while still showing every peak. NaN samples, from invalid BCD
+ * words, are kept in the window but never drawn. Not thread safe.
+ */
+public final class SampleWindow {
+
+    private final float[] samples;                                                                  //Circular storage
+    private long total;                                                                             //Number of samples ever appended, also the absolute index of the next sample
+
+    public SampleWindow(int capacity) {
+        samples = new float[capacity];
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Add samples, overwriting the oldest once the window is full
+    public void append(float[] src, int offset, int length) {
+        if (length > samples.length) {                                                              //Only the newest samples can fit
+            offset += length - samples.length;
+            total += length - samples.length;
+            length = samples.length;
+        }
+        final int start = (int) (total % samples.length);
+        final int firstPart = Math.min(length, samples.length - start);
+        System.arraycopy(src, offset, samples, start, firstPart);
+        System.arraycopy(src, offset + firstPart, samples, 0, length - firstPart);
+        total += length;
+    }
+
+    public void clear() {
+        total = 0;
+    }
+
+    // Number of samples in the window
+    public int size() {
+        return (int) Math.min(total, samples.length);
+    }
+
+    public int capacity() {
+        return samples.length;
+    }
+
+    // Absolute index of the oldest sample in the window
+    public long firstIndex() {
+        return total - size();
+    }
+
+    public long totalSamples() {
+        return total;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Reduce the window to at most 2 * columns points, the minimum and maximum of each column in the order they occurred
+    // Writes absolute sample indexes to outX and values to outY, both must hold 2 * columns points, and returns the number of points
+    // When the window has no more than 2 * columns samples they are all returned unchanged
+    // NaN samples are left out, a column with nothing else has no points
+    public int decimateMinMax(int columns, float[] outX, float[] outY) {
+        final int size = size();
+        final long first = firstIndex();
+        int points = 0;
+        if (size <= 2 * columns) {                                                                  //Few enough to draw every sample
+            for (int i = 0; i < size; i++) {
+                final float value = get(first + i);
+                if (!Float.isNaN(value)) {
+                    outX[points] = first + i;
+                    outY[points++] = value;
+                }
+            }
+            return points;
+        }
+        for (int column = 0; column < columns; column++) {
+            final long from = first + (long) column * size / columns;                               //Spread the remainder evenly over the columns
+            final long to = first + (long) (column + 1) * size / columns;
+            long minIndex = -1, maxIndex = -1;
+            float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+            for (long i = from; i < to; i++) {
+                final float value = get(i);                                                         //Every comparison with NaN is false, so NaN is skipped
+                if (value < min) {
+                    min = value;
+                    minIndex = i;
+                }
+                if (value > max) {
+                    max = value;
+                    maxIndex = i;
+                }
+            }
+            if (minIndex < 0) {                                                                     //Nothing but NaN
+                continue;
+            }
+            if (minIndex == maxIndex) {                                                             //Flat column, one point is enough
+                outX[points] = minIndex;
+                outY[points++] = min;
+            }
+            else if (minIndex < maxIndex) {                                                         //Keep the order of occurrence so the line shape is right
+                outX[points] = minIndex;
+                outY[points++] = min;
+                outX[points] = maxIndex;
+                outY[points++] = max;
+            }
+            else {
+                outX[points] = maxIndex;
+                outY[points++] = max;
+                outX[points] = minIndex;
+                outY[points++] = min;
+            }
+        }
+        return points;
+    }
+
+    private float get(long index) {
+        return samples[(int) (index % samples.length)];
+    }
+}
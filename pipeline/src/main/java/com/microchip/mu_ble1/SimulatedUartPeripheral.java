@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Software stand-in for the sensor behind the 6E400001 Transparent UART service, for load testing without hardware.
+ * Behaves like the real sensor: each REQUEST_COMMAND byte written to it is answered with FRAMES_PER_REQUEST frames of
+ * FRAME_SAMPLES BCD samples, framed as FrameReassembler expects. In streaming mode it sends frames continuously
+ * without being asked.
+ *
+ * Everything runs on one scheduler thread. Each connection interval, give or take the jitter, the peripheral reads
+ * up to one payload of the bytes written to it and sends up to the configured number of notifications of frame data,
+ * as a real link sends several packets per connection event. A notification can be lost, or held back and sent after
+ * the next one, with the configured probabilities. Bytes written
+ * wait in a receive buffer of RECEIVE_BUFFER_SIZE bytes, write() accepts only what fits, so a host that writes faster
+ * than the peripheral reads sees the same backpressure as on a slow link.
+ *
+ * Configure with the setters before connect(). The same seed gives the same sequence of jitter, losses and reorders.
+ */
+public class SimulatedUartPeripheral implements UartTransport {
+
+    public static final String DEFAULT_ADDRESS =          "00:00:5E:00:53:00";                      //Documentation range address, never a real device
+    public static final byte REQUEST_COMMAND =            'g';                                      //Command that asks for one acquisition cycle
+    public static final int FRAMES_PER_REQUEST =          3;                                        //Frames in one acquisition cycle
+    public static final int FRAME_SAMPLES =               100;                                      //Samples in each frame
+    public static final int DEFAULT_MTU =                 23;                                       //MTU before the exchange, as on a new Bluetooth LE connection
+    public static final int ATT_HEADER_SIZE =             3;                                        //Opcode and handle in each notification or write
+    public static final int MAX_ATTRIBUTE_SIZE =          512;                                      //Longest value ATT allows, whatever the MTU
+    public static final int RECEIVE_BUFFER_SIZE =         1024;                                     //Bytes written that can wait to be read by the peripheral
+    private static final int TRANSMIT_BUFFER_SIZE =       16384;                                    //Frame bytes waiting to be sent as notifications
+    private static final long CONNECT_DELAY =             20;                                       //Milliseconds from connect() to onConnected()
+
+    private final String address;
+    private final ScheduledExecutorService executor;                                                //The one thread that the peripheral runs on
+    private final ByteRingBuffer receiveBuffer = new ByteRingBuffer(RECEIVE_BUFFER_SIZE);           //Written by write() on the host thread, read on the peripheral thread
+    private final ByteRingBuffer transmitBuffer = new ByteRingBuffer(TRANSMIT_BUFFER_SIZE);         //Only used on the peripheral thread
+    private final byte[] command = new byte[RECEIVE_BUFFER_SIZE];                                   //Bytes read from the receive buffer in one interval
+    private final byte[] framePayload = new byte[FRAME_SAMPLES * SampleDecoder.BYTES_PER_SAMPLE];
+    private final byte[] frame = new byte[FRAME_SAMPLES * SampleDecoder.BYTES_PER_SAMPLE + FrameReassembler.OVERHEAD];
+    private byte[] notification;                                                                    //Notification being sent
+    private byte[] heldNotification;                                                                //Notification held back to be sent after the next one
+    private int heldLength;                                                                         //Length of the held notification, 0 when none is held
+
+    private volatile int mtu = 247;                                                                 //MTU granted by the exchange after connecting
+    private volatile long connectionInterval = 7500;                                                //Microseconds between connection events
+    private volatile int notificationsPerEvent = 4;                                                 //Most notifications sent in one connection event
+    private volatile long jitter = 0;                                                               //Largest random change to each interval in microseconds, either way
+    private volatile double lossProbability = 0;                                                    //Chance that a notification is never delivered
+    private volatile double reorderProbability = 0;                                                 //Chance that a notification is delivered after the one following it
+    private volatile boolean streaming;                                                             //Send frames continuously instead of on request
+    private volatile long seed = 1;
+
+    private Listener listener;
+    private Random random;
+    private ScheduledFuture<?> future;                                                              //Connection delay or next connection event
+    private volatile boolean connected;
+    private volatile int payloadSize = DEFAULT_MTU - ATT_HEADER_SIZE;
+    private volatile boolean writeBlocked;                                                          //write() accepted fewer bytes than asked, onWritable() is owed
+    private int pendingFrames;                                                                      //Frames requested and not yet put in the transmit buffer
+    private int sequence;                                                                           //Sequence number of the next frame
+    private long sampleIndex;                                                                       //Index of the next sample, for the waveform
+
+    private volatile long notifications;                                                            //Notifications delivered
+    private volatile long bytesSent;                                                                //Bytes delivered in notifications
+    private volatile long lostNotifications;                                                        //Notifications dropped by the simulated loss
+    private volatile long reorderedNotifications;                                                   //Notifications delivered after the one following them
+    private volatile long framesSent;                                                               //Frames put in the transmit buffer
+    private volatile long requests;                                                                 //REQUEST_COMMAND bytes read
+    private volatile long bytesWritten;                                                             //Bytes accepted by write()
+    private volatile long writesBlocked;                                                            //Calls to write() that could not accept every byte
+
+    public SimulatedUartPeripheral() {
+        this(DEFAULT_ADDRESS);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Constructor, starts the peripheral thread
+    public SimulatedUartPeripheral(String address) {
+        this.address = address;
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, SimulatedUartPeripheral.class.getSimpleName());
+                thread.setDaemon(true);                                                             //Never keeps a test JVM alive
+                return thread;
+            }
+        });
+    }
+
+    /******************************************************************************************************************
+     * Configuration, takes effect at the next connect()
+     */
+
+    // MTU granted after connecting, between 23 and 517
+    public void setMtu(int mtu) {
+        this.mtu = Math.max(DEFAULT_MTU, Math.min(517, mtu));
+    }
+
+    // Microseconds between connection events, and the largest random change to each interval either way
+    public void setConnectionInterval(long interval, long jitter) {
+        this.connectionInterval = Math.max(1, interval);
+        this.jitter = Math.max(0, Math.min(jitter, interval));
+    }
+
+    // Most notifications sent in one connection event, the throughput is this many payloads per interval
+    public void setNotificationsPerEvent(int notificationsPerEvent) {
+        this.notificationsPerEvent = Math.max(1, notificationsPerEvent);
+    }
+
+    // Chance from 0 to 1 of each notification being lost, and of it being delivered after the next one
+    public void setLinkErrors(double lossProbability, double reorderProbability) {
+        this.lossProbability = lossProbability;
+        this.reorderProbability = reorderProbability;
+    }
+
+    // Send frames continuously instead of FRAMES_PER_REQUEST frames for each REQUEST_COMMAND
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /******************************************************************************************************************
+     * UartTransport
+     */
+
+    @Override
+    public String getAddress() {
+        return address;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Connect after CONNECT_DELAY, then exchange the MTU and start the connection events
+    @Override
+    public void connect(final Listener listener) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                cancel();
+                SimulatedUartPeripheral.this.listener = listener;
+                random = new Random(seed);
+                future = executor.schedule(connectionMade, CONNECT_DELAY, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    @Override
+    public void disconnect() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean wasConnecting = future != null || connected;
+                cancel();
+                if (wasConnecting && listener != null) {
+                    listener.onDisconnected(SimulatedUartPeripheral.this);
+                }
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Disconnect and end the peripheral thread for good
+    public void shutdown() {
+        disconnect();
+        executor.shutdown();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Put bytes in the receive buffer, only as many as fit, from one host thread at a time
+    @Override
+    public int write(byte[] src, int offset, int length) {
+        if (!connected) {
+            return 0;
+        }
+        final int count = Math.min(length, receiveBuffer.capacity() - receiveBuffer.available()); //Space can only grow while we write, so this always fits
+        receiveBuffer.write(src, offset, count);
+        bytesWritten += count;
+        if (count < length) {
+            writesBlocked++;
+            writeBlocked = true;
+        }
+        return count;
+    }
+
+    /******************************************************************************************************************
+     * Peripheral thread
+     */
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stop the intervals and forget everything in flight
+    private void cancel() {
+        if (future != null) {
+            future.cancel(false);
+            future = null;
+        }
+        connected = false;
+        receiveBuffer.clear();
+        transmitBuffer.clear();
+        heldLength = 0;
+        pendingFrames = 0;
+        writeBlocked = false;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Runnable for the end of the connection delay, reports the connection and the MTU exchange
+    private final Runnable connectionMade = new Runnable() {
+        @Override
+        public void run() {
+            SimulatedUartPeripheral.this.connected = true;
+            payloadSize = DEFAULT_MTU - ATT_HEADER_SIZE;
+            listener.onConnected(SimulatedUartPeripheral.this);
+            payloadSize = Math.min(mtu - ATT_HEADER_SIZE, MAX_ATTRIBUTE_SIZE);
+            notification = new byte[payloadSize];
+            heldNotification = new byte[payloadSize];
+            listener.onPayloadSizeChanged(SimulatedUartPeripheral.this, payloadSize);
+            future = executor.schedule(interval, nextInterval(), TimeUnit.MICROSECONDS);
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Runnable for each connection event: read the commands written, queue frames and send the notifications
+    private final Runnable interval = new Runnable() {
+        @Override
+        public void run() {
+            if (!connected) {
+                return;
+            }
+            readCommands();
+            for (int i = 0; i < notificationsPerEvent && connected; i++) {
+                queueFrames();
+                sendNotification();
+            }
+            if (connected) {                                                                        //Listener may have disconnected
+                future = executor.schedule(interval, nextInterval(), TimeUnit.MICROSECONDS);
+            }
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Send up to one payload from the transmit buffer, unless the simulated link loses it or holds it back
+    private void sendNotification() {
+        final int length = transmitBuffer.read(notification, 0, payloadSize);
+        if (length > 0) {
+            if (random.nextDouble() < lossProbability) {
+                lostNotifications++;
+            }
+            else if (heldLength == 0 && random.nextDouble() < reorderProbability) {               //Hold this one back until the next one has been sent
+                System.arraycopy(notification, 0, heldNotification, 0, length);
+                heldLength = length;
+            }
+            else {
+                deliver(notification, length);
+                if (heldLength > 0) {                                                               //Now send the one that was held back
+                    reorderedNotifications++;
+                    deliver(heldNotification, heldLength);
+                    heldLength = 0;
+                }
+            }
+        }
+        else if (heldLength > 0) {                                                                  //Nothing follows it so send it anyway
+            deliver(heldNotification, heldLength);
+            heldLength = 0;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Read up to one payload of written bytes, as the real device does per connection event, and act on the commands
+    private void readCommands() {
+        final int length = receiveBuffer.read(command, 0, payloadSize);
+        for (int i = 0; i < length; i++) {
+            if (command[i] == REQUEST_COMMAND) {
+                requests++;
+                pendingFrames += FRAMES_PER_REQUEST;
+            }
+        }
+        if (writeBlocked && length > 0) {
+            writeBlocked = false;
+            listener.onWritable(this);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Move requested frames, or endless frames when streaming, into the transmit buffer while there is room
+    private void queueFrames() {
+        while ((streaming || pendingFrames > 0) && transmitBuffer.capacity() - transmitBuffer.available() >= frame.length) {
+            for (int i = 0; i < FRAME_SAMPLES; i++) {
+                final int value = waveform(sampleIndex++);
+                final int bcd = (value / 1000) << 12 | (value / 100 % 10) << 8 | (value / 10 % 10) << 4 | value % 10;
+                framePayload[2 * i] = (byte) bcd;                                                   //Low byte first, as SampleDecoder.decodeBcd16Le() reads it
+                framePayload[2 * i + 1] = (byte) (bcd >>> 8);
+            }
+            final int length = FrameReassembler.writeFrame(sequence, framePayload, 0, framePayload.length, frame, 0);
+            transmitBuffer.write(frame, 0, length);
+            sequence = (sequence + 1) & 0xFFFF;
+            framesSent++;
+            if (!streaming) {
+                pendingFrames--;
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Sample values from 0 to 9999, a slow sine wave so a chart of the data is easy to check by eye
+    private static int waveform(long index) {
+        return (int) (5000 + 4000 * Math.sin(index * 2 * Math.PI / 500));
+    }
+
+    private void deliver(byte[] value, int length) {
+        notifications++;
+        bytesSent += length;
+        listener.onNotification(this, value, length);
+    }
+
+    // Microseconds to the next connection event, the interval plus or minus a random part of the jitter
+    private long nextInterval() {
+        final long jitter = this.jitter;
+        return jitter > 0 ? connectionInterval + (long) ((random.nextDouble() * 2 - 1) * jitter) : connectionInterval;
+    }
+
+    public long getNotifications() {
+        return notifications;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getLostNotifications() {
+        return lostNotifications;
+    }
+
+    public long getReorderedNotifications() {
+        return reorderedNotifications;
+    }
+
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getWritesBlocked() {
+        return writesBlocked;
+    }
+}
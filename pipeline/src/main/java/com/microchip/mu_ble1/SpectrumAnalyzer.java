@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+/**
+ * Sliding window spectrum of a stream of samples. Keeps the last size samples and every hop new samples takes the
+ * mean out of the window, applies a Hann window and runs a real input FFT, giving the amplitude of size / 2 + 1
+ * frequency bins from DC to half the sample rate. Bin k is at k * sampleRate / size Hz.
+ *
+ * The real FFT packs the even samples into the real parts and the odd samples into the imaginary parts of a size / 2
+ * point complex FFT and then separates the two halves, which takes about half the work of a complex FFT of all the
+ * samples. The window, the twiddle factors and the bit reversal order are worked out once in the constructor and every
+ * buffer is reused, so nothing is allocated after construction. Not thread safe, use from one thread.
+ *
+ * Samples that are not finite, such as the NaN SampleDecoder gives for an invalid BCD word, are skipped like the filters
+ * skip them, as one would turn every bin into NaN until it had left the window.
+ */
+public final class SpectrumAnalyzer {
+
+    private final int size;                                                                         //Samples in the window, a power of two
+    private final int half;                                                                         //size / 2, points in the complex FFT
+    private final int hop;                                                                          //New samples between spectra
+    private final float[] window;                                                                   //Hann window
+    private final float[] cos, sin;                                                                 //cos and sin of 2 * pi * k / size for k below size / 2
+    private final int[] bitReverse;                                                                 //Order the complex FFT input is loaded in
+    private final float windowGain;                                                                 //Sum of the window, scales the bins to the amplitude of a sine
+    private final float[] history;                                                                  //Last size samples, oldest at position once full
+    private final float[] re, im;                                                                   //Complex FFT buffers
+    private final float[] magnitudes;                                                               //Amplitude of each bin from the last spectrum
+    private int position;                                                                           //Where the next sample goes in history
+    private int filled;                                                                             //Samples in history, up to size
+    private int sinceSpectrum;                                                                      //Samples added since the last spectrum
+    private long spectra;                                                                           //Spectra computed
+
+    public SpectrumAnalyzer(int size, int hop) {
+        if (size < 4 || (size & (size - 1)) != 0) {
+            throw new IllegalArgumentException("Size must be a power of two of at least 4: " + size);
+        }
+        if (hop < 1) {
+            throw new IllegalArgumentException("Hop must be at least 1: " + hop);
+        }
+        this.size = size;
+        this.hop = hop;
+        half = size / 2;
+        window = new float[size];
+        float gain = 0;
+        for (int i = 0; i < size; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / size));                     //Periodic Hann, the window repeats exactly every size samples
+            gain += window[i];
+        }
+        windowGain = gain;
+        cos = new float[half];
+        sin = new float[half];
+        for (int k = 0; k < half; k++) {
+            cos[k] = (float) Math.cos(2 * Math.PI * k / size);
+            sin[k] = (float) Math.sin(2 * Math.PI * k / size);
+        }
+        bitReverse = new int[half];
+        final int bits = Integer.numberOfTrailingZeros(half);
+        for (int i = 0; i < half; i++) {
+            bitReverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+        history = new float[size];
+        re = new float[half];
+        im = new float[half];
+        magnitudes = new float[half + 1];
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Add length samples starting at offset, computing a spectrum every hop samples once the window is full
+    // Samples that are not finite are left out and do not count towards the hop
+    // Returns the number of spectra computed, getMagnitudes() holds the last one
+    public int append(float[] samples, int offset, int length) {
+        int computed = 0;
+        for (int i = offset; i < offset + length; i++) {
+            final float sample = samples[i];
+            if (!(Math.abs(sample) <= Float.MAX_VALUE)) {                                           //NaN or infinite
+                continue;
+            }
+            history[position] = sample;
+            position = (position + 1) & (size - 1);
+            if (filled < size) {
+                filled++;
+            }
+            if (++sinceSpectrum >= hop && filled == size) {
+                compute();
+                sinceSpectrum = 0;
+                computed++;
+            }
+        }
+        return computed;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Forget the samples so far, the next spectrum comes once the window has filled again
+    public void reset() {
+        position = 0;
+        filled = 0;
+        sinceSpectrum = 0;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Spectrum of the window, the oldest sample is at position in history
+    private void compute() {
+        float sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += history[i];
+        }
+        final float mean = sum / size;                                                              //Take out the offset or bin 0 and its neighbours hide everything else
+
+        for (int i = 0; i < half; i++) {                                                            //Even samples to the real parts, odd to the imaginary, in bit reversed order
+            final int j = bitReverse[i];
+            final int even = (position + 2 * i) & (size - 1);
+            re[j] = (history[even] - mean) * window[2 * i];
+            im[j] = (history[(even + 1) & (size - 1)] - mean) * window[2 * i + 1];
+        }
+
+        for (int length = 2; length <= half; length <<= 1) {                                        //Radix 2 butterflies, in place
+            final int step = size / length;                                                         //Twiddle for the half size FFT is every second entry of the table
+            final int span = length >> 1;
+            for (int start = 0; start < half; start += length) {
+                for (int k = 0; k < span; k++) {
+                    final float wr = cos[k * step], wi = -sin[k * step];
+                    final int a = start + k, b = a + span;
+                    final float tr = re[b] * wr - im[b] * wi;
+                    final float ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+
+        final float scale = 2 / windowGain;                                                         //Amplitude of a sine, half of it is in each of the mirrored bins
+        magnitudes[0] = Math.abs(re[0] + im[0]) / windowGain;
+        magnitudes[half] = Math.abs(re[0] - im[0]) / windowGain;
+        for (int k = 1; k < half; k++) {                                                            //Separate the spectra of the even and odd samples and combine them
+            final int m = half - k;
+            final float evenRe = 0.5f * (re[k] + re[m]), evenIm = 0.5f * (im[k] - im[m]);
+            final float oddRe = 0.5f * (im[k] + im[m]), oddIm = -0.5f * (re[k] - re[m]);
+            final float wr = cos[k], wi = -sin[k];
+            final float xr = evenRe + wr * oddRe - wi * oddIm;
+            final float xi = evenIm + wr * oddIm + wi * oddRe;
+            magnitudes[k] = scale * (float) Math.sqrt(xr * xr + xi * xi);
+        }
+        spectra++;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Amplitude of each bin of the last spectrum, overwritten by the next one, copy it to keep it
+    public float[] getMagnitudes() {
+        return magnitudes;
+    }
+
+    public int getBins() {
+        return half + 1;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getHop() {
+        return hop;
+    }
+
+    public long getSpectra() {
+        return spectra;
+    }
+}
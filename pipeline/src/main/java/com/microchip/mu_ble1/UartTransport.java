@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+/**
+ * A Transparent UART link to one device: bytes written are sent to the device and bytes the device sends arrive as
+ * notifications. BleService runs each connection over one of these, either a Bluetooth LE connection or a
+ * SimulatedUartPeripheral, so the data path can be exercised without hardware.
+ *
+ * Listener methods are called on the transport's own thread, one at a time, never on the thread that called connect().
+ */
+public interface UartTransport {
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Events from the link, all called on the transport's thread
+    interface Listener {
+        void onConnected(UartTransport transport);                                                  //Link is up and notifications are enabled
+        void onDisconnected(UartTransport transport);                                               //Link is down, after connect() failed or disconnect() was called
+        void onPayloadSizeChanged(UartTransport transport, int payloadSize);                        //Data bytes per notification or write changed, after an MTU exchange
+        void onNotification(UartTransport transport, byte[] value, int length);                     //Bytes from the device, the array may be reused once the method returns
+        void onWritable(UartTransport transport);                                                   //A write() that accepted fewer bytes than asked can now accept more
+    }
+
+    String getAddress();
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start connecting, the result is reported to the listener
+    void connect(Listener listener);
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Disconnect, or stop connecting, onDisconnected() follows
+    void disconnect();
+
+    boolean isConnected();
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Number of data bytes that fit in one notification or one write
+    int getPayloadSize();
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Send bytes to the device and return how many were accepted, fewer than length when the link is backed up
+    // onWritable() is called once more can be accepted. The bytes are copied before this returns.
+    int write(byte[] src, int offset, int length);
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * ByteRingBuffer passes bytes in order between two threads, and drops and counts what does not fit.
+ */
+public class ByteRingBufferTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBeAPowerOfTwo() {
+        new ByteRingBuffer(100);
+    }
+
+    @Test
+    public void bytesComeOutInOrderAcrossTheWrap() {
+        final ByteRingBuffer ring = new ByteRingBuffer(16);
+        final byte[] in = new byte[11], out = new byte[16];
+        int next = 0, expected = 0;
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < in.length; i++) {
+                in[i] = (byte) next++;
+            }
+            assertEquals(11, ring.write(in, 0, 11));
+            assertEquals(11, ring.available());
+            assertEquals(11, ring.read(out, 2, 14));
+            for (int i = 0; i < 11; i++) {
+                assertEquals((byte) expected++, out[2 + i]);
+            }
+        }
+        assertEquals(0, ring.getOverflowBytes());
+    }
+
+    @Test
+    public void bytesThatDoNotFitAreDroppedAndCounted() {
+        final ByteRingBuffer ring = new ByteRingBuffer(8);
+        assertEquals(5, ring.write(new byte[5], 0, 5));
+        assertEquals(3, ring.write(new byte[6], 0, 6));
+        assertEquals(3, ring.getOverflowBytes());
+        assertEquals(1, ring.getOverflowCount());
+        assertEquals(0, ring.write(new byte[1], 0, 1));
+        assertEquals(4, ring.getOverflowBytes());
+        ring.clear();
+        assertEquals(0, ring.available());
+        assertEquals(8, ring.write(new byte[8], 0, 8));
+    }
+
+    @Test
+    public void producerDiscardIsSkippedOnTheNextRead() {
+        final ByteRingBuffer ring = new ByteRingBuffer(16);
+        ring.write(new byte[] {1, 2, 3, 4, 5}, 0, 5);
+        final byte[] out = new byte[16];
+        assertEquals(2, ring.read(out, 0, 2));
+        ring.discard();                                                                             //New connection, the rest belongs to the old one
+        assertEquals(0, ring.available());
+        ring.write(new byte[] {6, 7}, 0, 2);
+        assertEquals(2, ring.available());
+        assertEquals(2, ring.read(out, 0, out.length));
+        assertEquals(6, out[0]);
+        assertEquals(7, out[1]);
+        assertEquals(16, ring.write(new byte[16], 0, 16));                                          //Discarded space is free again once read past
+    }
+
+    @Test(timeout = 30000)
+    public void producerAndConsumerThreadsSeeEveryByteOnce() throws Exception {
+        final ByteRingBuffer ring = new ByteRingBuffer(64);
+        final int total = 100000;
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] chunk = new byte[23];
+                int next = 0;
+                while (next < total) {
+                    final int length = Math.min(chunk.length, total - next);
+                    for (int i = 0; i < length; i++) {
+                        chunk[i] = (byte) (next + i);
+                    }
+                    int written = 0;
+                    while (written < length) {                                                      //Waits for space so nothing is dropped
+                        final int available = 64 - ring.available();
+                        if (available > 0) {
+                            written += ring.write(chunk, written, Math.min(available, length - written));
+                        }
+                        else {
+                            Thread.yield();                                                         //Let the consumer run, on one CPU spinning only burns the time slice
+                        }
+                    }
+                    next += length;
+                }
+            }
+        });
+        producer.start();
+        final byte[] out = new byte[37];
+        int expected = 0;
+        while (expected < total) {
+            final int n = ring.read(out, 0, out.length);
+            if (n == 0) {
+                Thread.yield();
+            }
+            for (int i = 0; i < n; i++) {
+                assertEquals((byte) expected++, out[i]);
+            }
+        }
+        producer.join();
+        assertEquals(0, ring.getOverflowBytes());
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FilterChain and the filters the pipeline uses: block size independence, what each filter does to a signal, and
+ * recovery from the NaN samples that SampleDecoder gives for invalid BCD words.
+ */
+public class FilterChainTest {
+
+    private static final float SAMPLE_RATE = 1000;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The chain the app puts in front of the graph, and one with every kind of filter
+    private static SampleFilter appChain() {
+        return new FilterChain(new DcBlockerFilter(), new MovingAverageFilter(4));
+    }
+
+    private static SampleFilter fullChain() {
+        return new FilterChain(new DcBlockerFilter(), BiquadFilter.notch(50, 5, SAMPLE_RATE),
+                BiquadFilter.lowPass(100, BiquadFilter.BUTTERWORTH_Q, SAMPLE_RATE), new MovingAverageFilter(5));
+    }
+
+    private static float[] signal(int length, long seed) {
+        final Random random = new Random(seed);
+        final float[] samples = new float[length];
+        for (int i = 0; i < length; i++) {
+            samples[i] = (float) (2000 + 500 * Math.sin(2 * Math.PI * 7 * i / SAMPLE_RATE) + 50 * random.nextGaussian());
+        }
+        return samples;
+    }
+
+    private static float[] filtered(SampleFilter filter, float[] samples) {
+        final float[] out = samples.clone();
+        filter.process(out, 0, out.length);
+        return out;
+    }
+
+    // Amplitude of a sinusoid after the filter has settled, from the RMS as a few samples per period can miss the peak
+    private static double amplitude(SampleFilter filter, double frequency) {
+        final float[] samples = new float[4000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (float) Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE);
+        }
+        filter.process(samples, 0, samples.length);
+        double sum = 0;
+        for (int i = samples.length / 2; i < samples.length; i++) {
+            sum += samples[i] * samples[i];
+        }
+        return Math.sqrt(2 * sum / (samples.length / 2));
+    }
+
+    @Test
+    public void chainIsEachFilterInTurn() {
+        final float[] samples = signal(1000, 1);
+        final float[] expected = samples.clone();
+        new DcBlockerFilter().process(expected, 0, expected.length);
+        new MovingAverageFilter(4).process(expected, 0, expected.length);
+        assertArrayEquals(expected, filtered(appChain(), samples), 0f);
+    }
+
+    @Test
+    public void blockSizeDoesNotChangeTheOutput() {
+        final float[] samples = signal(3000, 2);
+        final float[] whole = filtered(fullChain(), samples);
+        for (int block : new int[] {1, 7, 100, 256}) {
+            final SampleFilter filter = fullChain();
+            final float[] pieces = samples.clone();
+            for (int offset = 0; offset < pieces.length; offset += block) {
+                filter.process(pieces, offset, Math.min(block, pieces.length - offset));
+            }
+            assertArrayEquals("Block size " + block, whole, pieces, 1e-3f);
+        }
+    }
+
+    @Test
+    public void resetStartsAgainAsNew() {
+        final SampleFilter filter = fullChain();
+        final float[] samples = signal(500, 3);
+        final float[] first = filtered(filter, samples);
+        filter.process(signal(500, 4), 0, 500);
+        filter.reset();
+        assertArrayEquals(first, filtered(filter, samples), 0f);
+    }
+
+    @Test
+    public void filtersDoWhatTheyAreFor() {
+        final float[] offset = new float[5000];
+        Arrays.fill(offset, 3000);
+        final float[] blocked = filtered(new DcBlockerFilter(), offset);
+        assertEquals(0, blocked[0], 0f);                                                            //Starts from the first sample, no step
+        assertEquals(0, blocked[offset.length - 1], 1e-3f);
+        assertEquals(2.5f, filtered(new MovingAverageFilter(4), new float[] {1, 2, 3, 4, 5})[3], 0f);
+        assertEquals(1, amplitude(BiquadFilter.lowPass(100, BiquadFilter.BUTTERWORTH_Q, SAMPLE_RATE), 5), 0.01);
+        assertTrue(amplitude(BiquadFilter.lowPass(100, BiquadFilter.BUTTERWORTH_Q, SAMPLE_RATE), 400) < 0.05);
+        assertTrue(amplitude(BiquadFilter.notch(50, 5, SAMPLE_RATE), 50) < 0.01);
+        assertEquals(1, amplitude(BiquadFilter.notch(50, 5, SAMPLE_RATE), 200), 0.02);
+    }
+
+    @Test
+    public void nanSamplesDoNotPoisonTheChain() {
+        final float[] samples = signal(2000, 5);
+        final float[] bad = samples.clone();
+        for (int i = 100; i < 2000; i += 97) {                                                      //Invalid BCD words here and there
+            bad[i] = Float.NaN;
+        }
+        bad[500] = Float.POSITIVE_INFINITY;
+        for (SampleFilter filter : new SampleFilter[] {appChain(), fullChain()}) {
+            filter.reset();
+            final float[] out = filtered(filter, bad);
+            for (int i = 0; i < out.length; i++) {
+                if (Math.abs(bad[i]) <= Float.MAX_VALUE) {
+                    assertTrue("Output " + i + " is " + out[i], Math.abs(out[i]) <= Float.MAX_VALUE);
+                }
+                else {
+                    assertEquals("Output " + i, bad[i], out[i], 0f);                                   //Left as it was
+                }
+            }
+        }
+    }
+
+    @Test
+    public void badSampleIsSkippedByEveryFilterInTheChain() {
+        final SampleFilter[] filters = {new DcBlockerFilter(), new MovingAverageFilter(4),
+                BiquadFilter.lowPass(100, BiquadFilter.BUTTERWORTH_Q, SAMPLE_RATE), appChain(), fullChain()};
+        final SampleFilter[] references = {new DcBlockerFilter(), new MovingAverageFilter(4),
+                BiquadFilter.lowPass(100, BiquadFilter.BUTTERWORTH_Q, SAMPLE_RATE), appChain(), fullChain()};
+        final float[] good = signal(600, 6);
+        final float[] withNaN = new float[good.length + 1];                                         //Same signal with a NaN inserted
+        System.arraycopy(good, 0, withNaN, 0, 300);
+        withNaN[300] = Float.NaN;
+        System.arraycopy(good, 300, withNaN, 301, 300);
+        for (int f = 0; f < filters.length; f++) {
+            final float[] expected = filtered(references[f], good);
+            final float[] out = filtered(filters[f], withNaN);
+            assertTrue(Float.isNaN(out[300]));
+            for (int i = 0; i < good.length; i++) {                                                 //Everything else as if the NaN was never there
+                assertEquals("Filter " + f + " sample " + i, expected[i], out[i < 300 ? i : i + 1], 0f);
+            }
+        }
+    }
+
+    @Test
+    public void leadingNanStaysNanUntilTheFirstGoodSample() {
+        for (SampleFilter filter : new SampleFilter[] {new DcBlockerFilter(), new MovingAverageFilter(4),
+                BiquadFilter.lowPass(100, BiquadFilter.BUTTERWORTH_Q, SAMPLE_RATE)}) {
+            final float[] samples = {Float.NaN, Float.NaN, 1000, 1000};
+            filter.process(samples, 0, samples.length);
+            assertTrue(Float.isNaN(samples[0]) && Float.isNaN(samples[1]));
+            assertTrue(Math.abs(samples[2]) <= Float.MAX_VALUE && Math.abs(samples[3]) <= Float.MAX_VALUE);
+        }
+        final float[] samples = {Float.NaN, 1000, 1000};
+        new DcBlockerFilter().process(samples, 0, samples.length);
+        assertEquals(0, samples[1], 0f);                                                            //Primed on the first good sample, not on the NaN
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * FrameReassembler finds every good frame however the stream is split, and skips and counts the bad ones.
+ */
+public class FrameReassemblerTest {
+
+    private static final int MAX_PAYLOAD = 200;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Keeps a copy of every frame delivered
+    private static final class Collector implements FrameReassembler.FrameListener {
+        final ArrayList<Integer> sequences = new ArrayList<>();
+        final ArrayList<byte[]> payloads = new ArrayList<>();
+
+        @Override
+        public void onFrame(int sequence, byte[] buffer, int offset, int length) {
+            sequences.add(sequence);
+            payloads.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+    }
+
+    private static byte[] frame(int sequence, byte[] payload) {
+        final byte[] frame = new byte[payload.length + FrameReassembler.OVERHEAD];
+        FrameReassembler.writeFrame(sequence, payload, 0, payload.length, frame, 0);
+        return frame;
+    }
+
+    private static byte[] payload(Random random) {
+        final byte[] payload = new byte[random.nextInt(MAX_PAYLOAD + 1)];
+        random.nextBytes(payload);
+        return payload;
+    }
+
+    @Test
+    public void crcMatchesTheCcittFalseCheckValue() {
+        assertEquals(0x29B1, FrameReassembler.crc16("123456789".getBytes(), 0, 9));
+    }
+
+    @Test
+    public void framesSplitAtEveryPossiblePointAreDelivered() {
+        final Random random = new Random(18);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final ArrayList<byte[]> sent = new ArrayList<>();
+        for (int sequence = 0; sequence < 300; sequence++) {
+            final byte[] payload = payload(random);
+            sent.add(payload);
+            final byte[] frame = frame(sequence, payload);
+            stream.write(frame, 0, frame.length);
+        }
+        final byte[] bytes = stream.toByteArray();
+        for (int chunk = 1; chunk <= 64; chunk++) {                                                 //Every notification size from one byte up
+            final Collector collector = new Collector();
+            final FrameReassembler reassembler = new FrameReassembler(MAX_PAYLOAD, collector);
+            for (int offset = 0; offset < bytes.length; offset += chunk) {
+                reassembler.feed(bytes, offset, Math.min(chunk, bytes.length - offset));
+            }
+            assertEquals(sent.size(), collector.payloads.size());
+            for (int i = 0; i < sent.size(); i++) {
+                assertEquals(i, (int) collector.sequences.get(i));
+                assertArrayEquals(sent.get(i), collector.payloads.get(i));
+            }
+            assertEquals(0, reassembler.getCrcErrors());
+            assertEquals(0, reassembler.getDiscardedBytes());
+            assertEquals(0, reassembler.getLostFrames());
+        }
+    }
+
+    @Test
+    public void corruptFrameIsSkippedAndTheNextOneFound() {
+        final byte[] first = frame(1, new byte[] {1, 2, 3, 4});
+        final byte[] bad = frame(2, new byte[] {5, 6, 7, 8});
+        final byte[] third = frame(3, new byte[] {9, 10});
+        bad[FrameReassembler.HEADER_SIZE + 1] ^= 0x40;                                             //Flip a payload bit
+        final Collector collector = new Collector();
+        final FrameReassembler reassembler = new FrameReassembler(MAX_PAYLOAD, collector);
+        reassembler.feed(first, 0, first.length);
+        reassembler.feed(bad, 0, bad.length);
+        reassembler.feed(third, 0, third.length);
+        assertEquals(Arrays.asList(1, 3), collector.sequences);
+        assertEquals(1, reassembler.getCrcErrors());
+        assertEquals(1, reassembler.getLostFrames());                                               //Sequence 2 never arrived intact
+        assertEquals(1, reassembler.getSequenceGaps());
+        assertEquals(bad.length, reassembler.getDiscardedBytes());
+    }
+
+    @Test
+    public void garbageAndImpossibleLengthsAreDiscarded() {
+        final byte[] garbage = {0x00, (byte) 0xA5, 0x11, (byte) 0xA5, 0x5A, (byte) 0xFF, (byte) 0xFF, 0x00, 0x00};
+        final byte[] good = frame(7, new byte[] {42});
+        final Collector collector = new Collector();
+        final FrameReassembler reassembler = new FrameReassembler(MAX_PAYLOAD, collector);
+        reassembler.feed(garbage, 0, garbage.length);
+        reassembler.feed(good, 0, good.length);
+        assertEquals(Arrays.asList(7), collector.sequences);
+        assertEquals(1, reassembler.getLengthErrors());                                             //0xFFFF is longer than any payload
+        assertEquals(garbage.length, reassembler.getDiscardedBytes());
+    }
+
+    @Test
+    public void lostFramesAreCountedAcrossTheSequenceWrap() {
+        final Collector collector = new Collector();
+        final FrameReassembler reassembler = new FrameReassembler(MAX_PAYLOAD, collector);
+        for (int sequence : new int[] {65533, 65534, 1, 2}) {                                       //65535 and 0 are missing
+            final byte[] frame = frame(sequence, new byte[] {(byte) sequence});
+            reassembler.feed(frame, 0, frame.length);
+        }
+        assertEquals(4, reassembler.getFrames());
+        assertEquals(2, reassembler.getLostFrames());
+        assertEquals(1, reassembler.getSequenceGaps());
+    }
+
+    @Test
+    public void repeatedFrameIsAGapButNotLostFrames() {
+        final Collector collector = new Collector();
+        final FrameReassembler reassembler = new FrameReassembler(MAX_PAYLOAD, collector);
+        for (int sequence : new int[] {10, 11, 11, 12}) {
+            final byte[] frame = frame(sequence, new byte[0]);
+            reassembler.feed(frame, 0, frame.length);
+        }
+        assertEquals(4, collector.sequences.size());
+        assertEquals(0, reassembler.getLostFrames());
+    }
+
+    @Test
+    public void resetDropsThePartialFrameAndTheSequence() {
+        final byte[] frame = frame(5, new byte[] {1, 2, 3});
+        final Collector collector = new Collector();
+        final FrameReassembler reassembler = new FrameReassembler(MAX_PAYLOAD, collector);
+        reassembler.feed(frame, 0, frame.length);
+        reassembler.feed(frame, 0, 4);                                                              //Half a frame, then the connection drops
+        reassembler.reset();
+        final byte[] next = frame(100, new byte[] {4});
+        reassembler.feed(next, 0, next.length);
+        assertEquals(Arrays.asList(5, 100), collector.sequences);
+        assertEquals(0, reassembler.getLostFrames());                                               //A new connection starts a new sequence
+    }
+}
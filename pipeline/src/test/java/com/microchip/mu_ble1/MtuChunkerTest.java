@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MtuChunker splits a payload into chunks that join back into it, reusing one array per chunk length.
+ */
+public class MtuChunkerTest {
+
+    private static byte[] payload(int length) {
+        final byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (i * 31 + 7);
+        }
+        return payload;
+    }
+
+    @Test
+    public void chunksJoinBackIntoThePayload() {
+        final MtuChunker chunker = new MtuChunker(512);
+        final byte[] payload = payload(1500);
+        for (int chunkSize : new int[] {1, 20, 182, 244, 512}) {
+            chunker.reset(payload, 100, 1300);
+            final ByteArrayOutputStream joined = new ByteArrayOutputStream();
+            int chunks = 0;
+            while (chunker.hasNext()) {
+                final byte[] chunk = chunker.next(chunkSize);
+                assertEquals(Math.min(chunkSize, 1300 - joined.size()), chunk.length);
+                joined.write(chunk, 0, chunk.length);
+                chunks++;
+            }
+            assertEquals((1300 + chunkSize - 1) / chunkSize, chunks);
+            assertEquals(0, chunker.remaining());
+            final byte[] expected = new byte[1300];
+            System.arraycopy(payload, 100, expected, 0, 1300);
+            assertArrayEquals(expected, joined.toByteArray());
+        }
+    }
+
+    @Test
+    public void chunkIsNeverBiggerThanTheLargestSizeAllowedFor() {
+        final MtuChunker chunker = new MtuChunker(20);
+        chunker.reset(payload(50), 0, 50);
+        assertEquals(20, chunker.next(512).length);
+        assertEquals(30, chunker.remaining());
+    }
+
+    @Test
+    public void arraysAreReusedForEachChunkLength() {
+        final MtuChunker chunker = new MtuChunker(64);
+        chunker.reset(payload(130), 0, 130);
+        final byte[] first = chunker.next(64);
+        final byte[] second = chunker.next(64);
+        final byte[] last = chunker.next(64);
+        assertSame(first, second);
+        assertEquals(2, last.length);
+        chunker.reset(payload(66), 0, 66);
+        assertSame(first, chunker.next(64));
+        assertSame(last, chunker.next(64));
+    }
+
+    @Test
+    public void emptyPayloadHasNoChunks() {
+        final MtuChunker chunker = new MtuChunker(64);
+        chunker.reset(new byte[10], 5, 0);
+        assertFalse(chunker.hasNext());
+        chunker.reset(new byte[10], 0, 10);
+        assertTrue(chunker.hasNext());
+        chunker.release();
+        assertFalse(chunker.hasNext());
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * SampleCodec round-trips, its reserved value for samples that are not finite, and rejection of corrupt data.
+ */
+public class SampleCodecTest {
+
+    private static float[] roundTrip(float[] samples) {
+        final String encoded = new SampleCodec().encodeToString(samples, 0, samples.length);
+        assertTrue(SampleCodec.isEncodedString(encoded) || samples.length == 0);
+        return SampleCodec.decodeString(encoded);
+    }
+
+    private static void assertRejected(byte[] data) {
+        try {
+            SampleCodec.decode(data, 0, data.length, new float[16], 0);
+            fail("Decoded " + data.length + " bytes");
+        }
+        catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void wholeSamplesRoundTripExactly() {
+        final Random random = new Random(3);
+        final float[] samples = new float[1000];
+        float value = 5000;
+        for (int i = 0; i < samples.length; i++) {                                                  //Slow drift like the sensor, decoded BCD is always whole
+            value += random.nextInt(21) - 10;
+            samples[i] = value;
+        }
+        assertArrayEquals(samples, roundTrip(samples), 0f);
+        final float[] extremes = {0, -1, 1, 9999, -9999, 1 << 24, -(1 << 24), 0};                   //Largest whole numbers a float holds exactly
+        assertArrayEquals(extremes, roundTrip(extremes), 0f);
+        assertEquals(0, roundTrip(new float[0]).length);
+    }
+
+    @Test
+    public void encodingIsSmallForSlowlyChangingSamples() {
+        final float[] samples = new float[100];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = 2000 + (i % 7) - 3;
+        }
+        final byte[] bytes = new byte[SampleCodec.maxEncodedSize(samples.length)];
+        final int length = SampleCodec.encode(samples, 0, samples.length, bytes, 0);
+        assertEquals(1 + 1 + 2 + 99, length);                                                       //Format, count, first sample, one byte per difference
+        assertEquals(samples.length, SampleCodec.decodedCount(bytes, 0, length));
+    }
+
+    @Test
+    public void samplesThatAreNotFiniteComeBackAsNaN() {
+        final float[] samples = {100, Float.NaN, 102, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, 101, Float.NaN};
+        final float[] decoded = roundTrip(samples);
+        assertEquals(samples.length, decoded.length);
+        for (int i = 0; i < samples.length; i++) {
+            if (Math.abs(samples[i]) <= Float.MAX_VALUE) {
+                assertEquals("Sample " + i, samples[i], decoded[i], 0f);
+            }
+            else {
+                assertTrue("Sample " + i, Float.isNaN(decoded[i]));
+            }
+        }
+        final float[] lowest = {-3e9f, 5};                                                          //Rounds to Integer.MIN_VALUE, kept clear of the reserved value
+        final float[] clamped = roundTrip(lowest);
+        assertEquals(Integer.MIN_VALUE + 1, clamped[0], 0f);
+        assertEquals(5, clamped[1], 0f);
+    }
+
+    @Test
+    public void nanCostsOneVarintAndTheNextDifferenceStaysSmall() {
+        final byte[] bytes = new byte[SampleCodec.maxEncodedSize(3)];
+        final int length = SampleCodec.encode(new float[] {100, Float.NaN, 101}, 0, 3, bytes, 0);
+        assertEquals(1 + 1 + 2 + SampleCodec.MAX_VARINT_SIZE + 1, length);                          //101 is 1 after 100, not after the NaN
+    }
+
+    @Test
+    public void corruptDataIsRejectedBeforeAllocating() {
+        assertRejected(new byte[0]);
+        assertRejected(new byte[] {0x12, 0x00});                                                    //Not the format
+        assertRejected(new byte[] {SampleCodec.FORMAT, 0x03, 0x02, 0x02});                          //Cut short
+        assertRejected(new byte[] {SampleCodec.FORMAT, 0x01, 0x02, 0x02});                          //Bytes left over
+        final byte[] huge = {SampleCodec.FORMAT, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 0x00};
+        try {
+            SampleCodec.decodedCount(huge, 0, huge.length);                                         //2^31 - 1 samples in 7 bytes
+            fail("Count accepted");
+        }
+        catch (IllegalArgumentException expected) {
+        }
+        final byte[] negative = {SampleCodec.FORMAT, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F, 0x00};
+        try {
+            SampleCodec.decodeString(new String(toBase64(negative)));                               //Would be a negative array size
+            fail("Count accepted");
+        }
+        catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void base64MatchesTheStandardAlphabetWithPadding() {
+        final byte[] bytes = "Many hands make light work.".getBytes();
+        for (int length = 0; length <= bytes.length; length++) {
+            final char[] chars = new char[(length + 2) / 3 * 4];
+            final String encoded = new String(chars, 0, SampleCodec.toBase64(bytes, 0, length, chars));
+            final byte[] decoded = SampleCodec.fromBase64(encoded);
+            assertEquals(length, decoded.length);
+            for (int i = 0; i < length; i++) {
+                assertEquals(bytes[i], decoded[i]);
+            }
+        }
+        final char[] chars = new char[36];
+        assertEquals("TWFueSBoYW5kcyBtYWtlIGxpZ2h0IHdvcmsu", new String(chars, 0, SampleCodec.toBase64(bytes, 0, bytes.length, chars)));
+    }
+
+    private static char[] toBase64(byte[] bytes) {
+        final char[] chars = new char[(bytes.length + 2) / 3 * 4];
+        SampleCodec.toBase64(bytes, 0, bytes.length, chars);
+        return chars;
+    }
+}
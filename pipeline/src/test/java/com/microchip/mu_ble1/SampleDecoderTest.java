@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SampleDecoder against the hex string parsing it replaced, for every possible 16-bit word.
+ */
+public class SampleDecoderTest {
+
+    private static final Pattern BCD = Pattern.compile("[0-9]{4}");
+    private static final Pattern JAVA_NUMBER_SYNTAX = Pattern.compile("[0-9]+(E[0-9]+)?[DF]?");     //What Float.valueOf() accepts of the characters 0-9 and A-F
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The original processIncomingData() path for one word: swap the bytes, print as uppercase hex, parse as a float
+    // Returns null where it threw NumberFormatException
+    private static Float oldParse(byte low, byte high) {
+        final String hex = String.format(Locale.US, "%02X%02X", high & 0xFF, low & 0xFF);
+        try {
+            return Float.valueOf(hex);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String hex(int word) {
+        return String.format(Locale.US, "%04X", word);
+    }
+
+    @Test
+    public void everyBcdWordMatchesTheOldParsing() {
+        final byte[] bytes = new byte[2];
+        final float[] sample = new float[1];
+        int checked = 0;
+        for (int word = 0; word <= 0xFFFF; word++) {
+            if (!BCD.matcher(hex(word)).matches()) {
+                continue;
+            }
+            bytes[0] = (byte) word;                                                                 //Low byte first, as sent
+            bytes[1] = (byte) (word >>> 8);
+            assertEquals(1, SampleDecoder.decodeBcd16Le(bytes, 0, sample, 0, 1));
+            assertEquals(hex(word), oldParse(bytes[0], bytes[1]), sample[0], 0f);
+            checked++;
+        }
+        assertEquals(10000, checked);
+    }
+
+    @Test
+    public void everyNonBcdWordIsNaN() {
+        final byte[] bytes = new byte[2];
+        final float[] sample = new float[1];
+        int acceptedByOldParsing = 0, infinite = 0;
+        for (int word = 0; word <= 0xFFFF; word++) {
+            if (BCD.matcher(hex(word)).matches()) {
+                continue;
+            }
+            bytes[0] = (byte) word;
+            bytes[1] = (byte) (word >>> 8);
+            SampleDecoder.decodeBcd16Le(bytes, 0, sample, 0, 1);
+            assertTrue(hex(word), Float.isNaN(sample[0]));
+            final Float old = oldParse(bytes[0], bytes[1]);
+            if (old != null) {                                                                      //The documented differences, Java number syntax in the hex letters
+                assertTrue(hex(word), JAVA_NUMBER_SYNTAX.matcher(hex(word)).matches());
+                acceptedByOldParsing++;
+                if (old.isInfinite()) {
+                    infinite++;
+                }
+            }
+        }
+        assertEquals(4200, acceptedByOldParsing);
+        assertEquals(555, infinite);
+    }
+
+    @Test
+    public void notificationMatchesTheOldParsing() {
+        final byte[] notification = new byte[200];                                                  //One notification of 100 samples, 0000 to 9999 in steps of 101
+        for (int i = 0; i < 100; i++) {
+            final int value = i * 101;
+            final int bcd = (value / 1000) << 12 | (value / 100 % 10) << 8 | (value / 10 % 10) << 4 | value % 10;
+            notification[2 * i] = (byte) bcd;
+            notification[2 * i + 1] = (byte) (bcd >>> 8);
+        }
+        final float[] fromArray = new float[100], fromBuffer = new float[100];
+        assertEquals(100, SampleDecoder.decodeBcd16Le(notification, 0, fromArray, 0, 100));
+        final ByteBuffer buffer = ByteBuffer.wrap(notification);
+        assertEquals(100, SampleDecoder.decodeBcd16Le(buffer, fromBuffer, 0, 100));
+        assertEquals(200, buffer.position());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(oldParse(notification[2 * i], notification[2 * i + 1]), fromArray[i], 0f);
+            assertEquals(i * 101, fromBuffer[i], 0f);
+        }
+    }
+
+    @Test
+    public void countIsLimitedToSourceAndDestination() {
+        final float[] dst = new float[3];
+        assertEquals(2, SampleDecoder.decodeBcd16Le(new byte[5], 0, dst, 0, 10));                   //Two whole words in five bytes
+        assertEquals(1, SampleDecoder.decodeBcd16Le(new byte[10], 0, dst, 2, 10));                  //One place left in the destination
+        assertEquals(0, SampleDecoder.decodeBcd16Le(new byte[10], 0, dst, 0, -1));
+    }
+
+    @Test
+    public void int16IsSignedLittleEndian() {
+        final byte[] bytes = {0x34, 0x12, (byte) 0xFF, (byte) 0xFF, 0x00, (byte) 0x80};
+        final short[] shorts = new short[3];
+        final float[] floats = new float[3];
+        SampleDecoder.decodeInt16Le(bytes, 0, shorts, 0, 3);
+        SampleDecoder.decodeInt16Le(bytes, 0, floats, 0, 3);
+        assertEquals(0x1234, shorts[0]);
+        assertEquals(-1, shorts[1]);
+        assertEquals(Short.MIN_VALUE, shorts[2]);
+        assertEquals(-32768f, floats[2], 0f);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pooled SampleStream blocks go back to their pool once every subscriber is done with them, whatever happened to them.
+ */
+public class SampleStreamTest {
+
+    private static final long TIMEOUT = 10;                                                         //Seconds to wait for anything before failing
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Subscriber that can be held up until released, and checks each block's samples against its sequence number
+    private static final class Consumer implements SampleStream.Subscriber {
+        final CountDownLatch release;
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final CountDownLatch complete = new CountDownLatch(1);
+        volatile int mismatches;                                                                    //Blocks changed while this subscriber held them
+
+        Consumer(boolean stall) {
+            release = new CountDownLatch(stall ? 1 : 0);
+        }
+
+        @Override
+        public void onBlock(SampleStream.Block block) {
+            stalled.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            final float[] samples = block.getSamples();
+            for (int i = 0; i < block.getLength(); i++) {
+                if (samples[i] != block.getSequence()) {
+                    mismatches++;
+                }
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            complete.countDown();
+        }
+    }
+
+    private static SampleStream.Block fill(SampleStream.BlockPool pool, int sequence) {
+        final SampleStream.Block block = pool.obtain();
+        final float[] samples = block.getRawBuffer();
+        for (int i = 0; i < 10; i++) {
+            samples[i] = sequence;
+        }
+        return block.set(sequence, 0, 10, false);
+    }
+
+    @Test
+    public void blockPublishedWithoutSubscribersIsReusedAtOnce() {
+        final SampleStream stream = new SampleStream();
+        final SampleStream.BlockPool pool = new SampleStream.BlockPool(4, 10, false);
+        final SampleStream.Block block = fill(pool, 1);
+        stream.publish(block);
+        assertSame(block, pool.obtain());
+        assertEquals(1, pool.getAllocated());
+    }
+
+    @Test
+    public void blocksReturnOnceEverySubscriberIsDone() throws Exception {
+        final SampleStream stream = new SampleStream();
+        final SampleStream.BlockPool pool = new SampleStream.BlockPool(64, 10, true);
+        final Consumer fast = new Consumer(false), slow = new Consumer(true);
+        stream.subscribe("fast", 16, SampleStream.OverflowPolicy.BLOCK, fast);
+        final SampleStream.Subscription slowSubscription = stream.subscribe("slow", 4, SampleStream.OverflowPolicy.DROP_OLDEST, slow);
+        stream.publish(fill(pool, 0));
+        assertTrue(slow.stalled.await(TIMEOUT, TimeUnit.SECONDS));
+        for (int sequence = 1; sequence < 1000; sequence++) {                                      //The slow one drops most of them
+            stream.publish(fill(pool, sequence));
+        }
+        slow.release.countDown();
+        stream.close();
+        assertTrue(fast.complete.await(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(slow.complete.await(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(slowSubscription.getDropped() > 900);
+        assertEquals("A block was reused while still held", 0, fast.mismatches + slow.mismatches);
+        assertEquals(pool.getAllocated(), pool.getFree());                                          //Every block came back
+        assertTrue("Pool did not reuse blocks", pool.getAllocated() < 30);
+    }
+
+    @Test
+    public void cancelledSubscriptionReturnsItsQueuedBlocks() throws Exception {
+        final SampleStream stream = new SampleStream();
+        final SampleStream.BlockPool pool = new SampleStream.BlockPool(64, 10, false);
+        final Consumer stalled = new Consumer(true);
+        final SampleStream.Subscription subscription = stream.subscribe("stalled", 8, SampleStream.OverflowPolicy.SAMPLE, stalled);
+        stream.publish(fill(pool, 0));
+        assertTrue(stalled.stalled.await(TIMEOUT, TimeUnit.SECONDS));
+        for (int sequence = 1; sequence <= 20; sequence++) {
+            stream.publish(fill(pool, sequence));
+        }
+        assertEquals(8, subscription.getQueued());
+        subscription.cancel();
+        stalled.release.countDown();
+        assertTrue(stalled.complete.await(TIMEOUT, TimeUnit.SECONDS));
+        stream.publish(fill(pool, 21));                                                             //No subscribers left
+        assertEquals(pool.getAllocated(), pool.getFree());
+    }
+
+    @Test
+    public void blocksOutsideAPoolAreLeftAlone() throws Exception {
+        final SampleStream stream = new SampleStream();
+        final Consumer consumer = new Consumer(false);
+        stream.subscribe("consumer", 4, SampleStream.OverflowPolicy.BLOCK, consumer);
+        final float[] samples = {7, 7, 7};
+        final SampleStream.Block block = new SampleStream.Block(7, 0, samples, null);
+        stream.publish(block);
+        stream.close();
+        assertTrue(consumer.complete.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(0, consumer.mismatches);
+        assertEquals(3, block.getLength());
+        assertSame(samples, block.getSamples(SampleStream.Channel.FILTERED));                       //No filtered channel, the raw samples
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SampleWindow keeps the newest samples with their absolute indexes and decimates them without losing peaks.
+ */
+public class SampleWindowTest {
+
+    private static float[] ramp(int from, int length) {
+        final float[] samples = new float[length];
+        for (int i = 0; i < length; i++) {
+            samples[i] = from + i;
+        }
+        return samples;
+    }
+
+    @Test
+    public void keepsTheNewestSamplesWithTheirIndexes() {
+        final SampleWindow window = new SampleWindow(100);
+        for (int i = 0; i < 25; i++) {                                                              //Wraps the circular array several times
+            window.append(ramp(i * 13, 13), 0, 13);
+        }
+        assertEquals(325, window.totalSamples());
+        assertEquals(100, window.size());
+        assertEquals(225, window.firstIndex());
+        final float[] x = new float[200], y = new float[200];
+        assertEquals(100, window.decimateMinMax(100, x, y));                                        //Small enough to return every sample
+        for (int i = 0; i < 100; i++) {
+            assertEquals(225 + i, x[i], 0f);
+            assertEquals(225 + i, y[i], 0f);                                                        //Each value is its own index
+        }
+    }
+
+    @Test
+    public void appendLongerThanTheWindowKeepsTheEnd() {
+        final SampleWindow window = new SampleWindow(10);
+        window.append(ramp(0, 35), 5, 30);                                                          //Samples 5 to 34
+        assertEquals(30, window.totalSamples());
+        assertEquals(20, window.firstIndex());
+        final float[] x = new float[20], y = new float[20];
+        assertEquals(10, window.decimateMinMax(10, x, y));
+        assertEquals(25, y[0], 0f);
+        assertEquals(34, y[9], 0f);
+    }
+
+    @Test
+    public void decimationKeepsEveryPeakInOrder() {
+        final SampleWindow window = new SampleWindow(1000);
+        final float[] samples = new float[1000];
+        samples[123] = 50;                                                                          //One spike up and one down, inside one column
+        samples[130] = -40;
+        samples[777] = 99;
+        window.append(samples, 0, samples.length);
+        final float[] x = new float[20], y = new float[20];
+        final int points = window.decimateMinMax(10, x, y);
+        assertTrue(points <= 20);
+        boolean up = false, down = false, other = false;
+        for (int i = 0; i < points; i++) {
+            if (i > 0) {
+                assertTrue("Points out of order", x[i] > x[i - 1]);
+            }
+            up |= x[i] == 123 && y[i] == 50;
+            down |= x[i] == 130 && y[i] == -40;
+            other |= x[i] == 777 && y[i] == 99;
+        }
+        assertTrue(up && down && other);
+    }
+
+    @Test
+    public void flatColumnsGiveOnePointEach() {
+        final SampleWindow window = new SampleWindow(1000);
+        window.append(new float[1000], 0, 1000);
+        final float[] x = new float[200], y = new float[200];
+        assertEquals(100, window.decimateMinMax(100, x, y));
+    }
+
+    @Test
+    public void nanSamplesAreNeverDrawn() {
+        final SampleWindow window = new SampleWindow(1000);
+        final float[] samples = ramp(0, 1000);
+        for (int i = 0; i < 20; i++) {                                                              //First two columns are nothing but NaN
+            samples[i] = Float.NaN;
+        }
+        samples[500] = Float.NaN;
+        window.append(samples, 0, 1000);
+        final float[] x = new float[200], y = new float[200];
+        final int points = window.decimateMinMax(100, x, y);
+        assertEquals(196, points);
+        for (int i = 0; i < points; i++) {
+            assertEquals(x[i], y[i], 0f);
+        }
+        final SampleWindow small = new SampleWindow(10);
+        small.append(new float[] {1, Float.NaN, 3}, 0, 3);
+        assertEquals(2, small.decimateMinMax(4, x, y));
+        assertEquals(2, x[1], 0f);
+        assertEquals(3, y[1], 0f);
+    }
+
+    @Test
+    public void clearEmptiesTheWindow() {
+        final SampleWindow window = new SampleWindow(10);
+        window.append(ramp(0, 5), 0, 5);
+        window.clear();
+        assertEquals(0, window.size());
+        assertEquals(0, window.decimateMinMax(4, new float[8], new float[8]));
+    }
+}
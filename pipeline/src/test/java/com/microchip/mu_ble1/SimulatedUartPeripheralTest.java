@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The receive path end to end without hardware: SimulatedUartPeripheral notifications through the FrameReassembler
+ * and SampleDecoder onto a SampleStream, with consumers that keep up and consumers that stall.
+ */
+public class SimulatedUartPeripheralTest {
+
+    private static final long TIMEOUT = 10;                                                         //Seconds to wait for anything before failing
+    private static final int REQUESTS = 100;
+
+    private final SimulatedUartPeripheral peripheral = new SimulatedUartPeripheral();
+    private final Host host = new Host();
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Host side of the link, does what the pipeline thread does on the transport's thread
+    private static final class Host implements UartTransport.Listener {
+        final SampleStream stream = new SampleStream();
+        final CountDownLatch ready = new CountDownLatch(1);                                         //MTU exchanged, requests can be written
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        final CountDownLatch writable = new CountDownLatch(1);
+        volatile int published;                                                                     //Blocks published, only changed on the transport thread
+        final FrameReassembler reassembler = new FrameReassembler(SimulatedUartPeripheral.FRAME_SAMPLES * SampleDecoder.BYTES_PER_SAMPLE,
+                new FrameReassembler.FrameListener() {
+            private final float[] samples = new float[SimulatedUartPeripheral.FRAME_SAMPLES];
+
+            @Override
+            public void onFrame(int sequence, byte[] buffer, int offset, int length) {
+                final int count = SampleDecoder.decodeBcd16Le(buffer, offset, samples, 0, length / SampleDecoder.BYTES_PER_SAMPLE);
+                stream.publish(new SampleStream.Block(sequence, System.nanoTime(), Arrays.copyOf(samples, count), null));
+                published++;
+            }
+        });
+
+        @Override
+        public void onConnected(UartTransport transport) {}
+
+        @Override
+        public void onDisconnected(UartTransport transport) {
+            disconnected.countDown();
+        }
+
+        @Override
+        public void onPayloadSizeChanged(UartTransport transport, int payloadSize) {
+            ready.countDown();
+        }
+
+        @Override
+        public void onNotification(UartTransport transport, byte[] value, int length) {
+            reassembler.feed(value, 0, length);
+        }
+
+        @Override
+        public void onWritable(UartTransport transport) {
+            writable.countDown();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Subscriber that records the sequence numbers and values it is given, and can be held up until released
+    private static final class Consumer implements SampleStream.Subscriber {
+        final ArrayList<Integer> sequences = new ArrayList<>();                                     //Only read after complete
+        final ArrayList<float[]> samples = new ArrayList<>();
+        final CountDownLatch complete = new CountDownLatch(1);
+        final CountDownLatch release;                                                               //Consumer waits for this before taking its first block
+        final CountDownLatch stalled = new CountDownLatch(1);                                       //Consumer is waiting for the release
+
+        Consumer(boolean stall) {
+            release = new CountDownLatch(stall ? 1 : 0);
+        }
+
+        @Override
+        public void onBlock(SampleStream.Block block) {
+            stalled.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            sequences.add(block.getSequence());
+            samples.add(block.getSamples());
+        }
+
+        @Override
+        public void onComplete() {
+            complete.countDown();
+        }
+    }
+
+    @After
+    public void shutdown() {
+        peripheral.shutdown();
+    }
+
+    private void connect(boolean streaming) throws InterruptedException {
+        peripheral.setConnectionInterval(1000, 0);
+        peripheral.setStreaming(streaming);
+        peripheral.connect(host);
+        assertTrue("Not connected", host.ready.await(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    // Wait until the host has published at least this many blocks
+    private void awaitPublished(int blocks) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+        while (host.published < blocks) {
+            assertTrue("Only " + host.published + " of " + blocks + " frames arrived", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    // Disconnect, so nothing more is published, then close the stream and wait for the consumers to finish
+    private void finish(Consumer... consumers) throws InterruptedException {
+        peripheral.disconnect();
+        assertTrue("Not disconnected", host.disconnected.await(TIMEOUT, TimeUnit.SECONDS));
+        host.stream.close();
+        for (Consumer consumer : consumers) {
+            assertTrue("Consumer did not complete", consumer.complete.await(TIMEOUT, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void everyRequestedFrameArrivesAtNominalLoad() throws Exception {
+        final Consumer recorder = new Consumer(false), chart = new Consumer(false);
+        final SampleStream.Subscription recorderSubscription = host.stream.subscribe("recorder", 256, SampleStream.OverflowPolicy.BLOCK, recorder);
+        final SampleStream.Subscription chartSubscription = host.stream.subscribe("chart", 64, SampleStream.OverflowPolicy.DROP_OLDEST, chart);
+        connect(false);
+        final byte[] requests = new byte[REQUESTS];
+        Arrays.fill(requests, SimulatedUartPeripheral.REQUEST_COMMAND);
+        assertEquals(REQUESTS, peripheral.write(requests, 0, requests.length));
+        final int frames = REQUESTS * SimulatedUartPeripheral.FRAMES_PER_REQUEST;
+        awaitPublished(frames);
+        finish(recorder, chart);
+
+        assertEquals(REQUESTS, peripheral.getRequests());
+        assertEquals(frames, peripheral.getFramesSent());
+        assertEquals(frames, host.reassembler.getFrames());
+        assertEquals(0, host.reassembler.getLostFrames());
+        assertEquals(0, host.reassembler.getCrcErrors());
+        assertEquals(0, host.reassembler.getDiscardedBytes());
+        for (SampleStream.Subscription subscription : new SampleStream.Subscription[] {recorderSubscription, chartSubscription}) {
+            assertEquals(subscription.getName(), frames, subscription.getDelivered());
+            assertEquals(subscription.getName(), 0, subscription.getDropped());
+        }
+        long index = 0;
+        for (int i = 0; i < frames; i++) {
+            assertEquals(i, (int) recorder.sequences.get(i));
+            assertEquals(i, (int) chart.sequences.get(i));
+            final float[] samples = recorder.samples.get(i);
+            assertEquals(SimulatedUartPeripheral.FRAME_SAMPLES, samples.length);
+            for (float sample : samples) {                                                          //Same waveform the peripheral generates
+                assertEquals((int) (5000 + 4000 * Math.sin(index++ * 2 * Math.PI / 500)), sample, 0f);
+            }
+        }
+    }
+
+    @Test
+    public void stalledDropOldestConsumerDropsAndCountsWithoutHoldingUpOthers() throws Exception {
+        final Consumer stalled = new Consumer(true), recorder = new Consumer(false);
+        final SampleStream.Subscription stalledSubscription = host.stream.subscribe("chart", 8, SampleStream.OverflowPolicy.DROP_OLDEST, stalled);
+        final SampleStream.Subscription recorderSubscription = host.stream.subscribe("recorder", 256, SampleStream.OverflowPolicy.BLOCK, recorder);
+        connect(true);
+        assertTrue(stalled.stalled.await(TIMEOUT, TimeUnit.SECONDS));
+        awaitPublished(200);                                                                        //Keeps streaming while the chart is stuck
+        assertEquals(8, stalledSubscription.getQueued());
+        stalled.release.countDown();
+        finish(stalled, recorder);
+
+        final int published = host.published;
+        assertEquals(published, recorderSubscription.getDelivered());
+        assertEquals(0, recorderSubscription.getDropped());
+        assertEquals(0, host.reassembler.getLostFrames());
+        assertTrue(stalledSubscription.getDropped() >= 200 - 8 - 1);                                //All but the one being delivered and the queue
+        assertEquals(published, stalledSubscription.getDelivered() + stalledSubscription.getDropped());
+        assertEquals(8, stalledSubscription.getHighWater());
+        for (int i = 1; i < stalled.sequences.size(); i++) {
+            assertTrue("Out of order", stalled.sequences.get(i) > stalled.sequences.get(i - 1));
+        }
+        for (int i = 0; i < published; i++) {
+            assertEquals(i, (int) recorder.sequences.get(i));
+        }
+    }
+
+    @Test
+    public void stalledBlockingConsumerHoldsBackTheLinkAndLosesNothing() throws Exception {
+        final Consumer stalled = new Consumer(true);
+        final SampleStream.Subscription subscription = host.stream.subscribe("recorder", 4, SampleStream.OverflowPolicy.BLOCK, stalled);
+        connect(true);
+        assertTrue(stalled.stalled.await(TIMEOUT, TimeUnit.SECONDS));
+        awaitPublished(5);                                                                          //One being delivered and a full queue
+        Thread.sleep(50);                                                                           //Let the transport thread reach the full queue
+        final long notifications = peripheral.getNotifications();
+        Thread.sleep(200);
+        assertEquals("Link kept sending while the consumer was stuck", notifications, peripheral.getNotifications());
+        assertEquals(4, subscription.getQueued());
+        stalled.release.countDown();
+        awaitPublished(host.published + 20);                                                        //Streaming again
+        finish(stalled);
+
+        final int published = host.published;
+        assertEquals(published, subscription.getDelivered());
+        assertEquals(0, subscription.getDropped());
+        assertTrue(subscription.getBlockedNanos() >= TimeUnit.MILLISECONDS.toNanos(200));
+        assertEquals(0, host.reassembler.getLostFrames());
+        for (int i = 0; i < published; i++) {
+            assertEquals(i, (int) stalled.sequences.get(i));
+        }
+    }
+
+    @Test
+    public void writesBeyondTheReceiveBufferAreRefusedUntilWritable() throws Exception {
+        connect(false);
+        final byte[] filler = new byte[3 * SimulatedUartPeripheral.RECEIVE_BUFFER_SIZE];           //Not commands, so no frames are sent
+        int written = peripheral.write(filler, 0, filler.length);
+        assertEquals(SimulatedUartPeripheral.RECEIVE_BUFFER_SIZE, written);
+        assertEquals(1, peripheral.getWritesBlocked());
+        assertTrue("onWritable never came", host.writable.await(TIMEOUT, TimeUnit.SECONDS));
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+        while (written < filler.length) {                                                           //Only ever writes what fits, as BleService does
+            written += peripheral.write(filler, written, filler.length - written);
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals(filler.length, peripheral.getBytesWritten());
+        assertEquals(0, peripheral.getRequests());
+        assertEquals(0, host.published);
+    }
+}
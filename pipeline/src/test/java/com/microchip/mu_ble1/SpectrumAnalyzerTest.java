@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016-2020 Microchip Technology Inc. and its subsidiaries.  You may use this software and any
+ * derivatives exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mu_ble1;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SpectrumAnalyzer against sinusoids of known frequency and amplitude and against a plain DFT of the same window.
+ */
+public class SpectrumAnalyzerTest {
+
+    private static float[] sine(int length, double cyclesPerSample, double amplitude, double offset) {
+        final float[] samples = new float[length];
+        for (int i = 0; i < length; i++) {
+            samples[i] = (float) (offset + amplitude * Math.sin(2 * Math.PI * cyclesPerSample * i + 0.3));
+        }
+        return samples;
+    }
+
+    // Amplitudes the analyzer should give for a window of samples, oldest first, the slow way in double
+    private static double[] dft(float[] samples, int from, int size) {
+        double mean = 0;
+        for (int i = 0; i < size; i++) {
+            mean += samples[from + i];
+        }
+        mean /= size;
+        double gain = 0;
+        final double[] windowed = new double[size];
+        for (int i = 0; i < size; i++) {
+            final double w = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / size);
+            windowed[i] = (samples[from + i] - mean) * w;
+            gain += w;
+        }
+        final double[] amplitudes = new double[size / 2 + 1];
+        for (int k = 0; k <= size / 2; k++) {
+            double re = 0, im = 0;
+            for (int i = 0; i < size; i++) {
+                re += windowed[i] * Math.cos(2 * Math.PI * k * i / size);
+                im -= windowed[i] * Math.sin(2 * Math.PI * k * i / size);
+            }
+            amplitudes[k] = (k == 0 || k == size / 2 ? 1 : 2) * Math.sqrt(re * re + im * im) / gain;
+        }
+        return amplitudes;
+    }
+
+    @Test
+    public void sineOnABinGivesItsAmplitude() {
+        final SpectrumAnalyzer analyzer = new SpectrumAnalyzer(256, 256);
+        assertEquals(1, analyzer.append(sine(256, 20.0 / 256, 3, 1000), 0, 256));
+        final float[] magnitudes = analyzer.getMagnitudes();
+        assertEquals(3, magnitudes[20], 0.01);
+        assertEquals(1.5, magnitudes[19], 0.01);                                                    //Hann spreads half of it to each neighbour
+        assertEquals(1.5, magnitudes[21], 0.01);
+        for (int k = 0; k < analyzer.getBins(); k++) {
+            if (k < 19 || k > 21) {
+                assertTrue("Bin " + k + " is " + magnitudes[k], magnitudes[k] < 0.01);              //Offset taken out, no leakage
+            }
+        }
+    }
+
+    @Test
+    public void matchesAPlainDftOfTheSlidingWindow() {
+        final int size = 128, hop = 48;
+        final Random random = new Random(7);
+        final float[] samples = sine(1000, 0.137, 40, 2000);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] += (float) (25 * Math.sin(2 * Math.PI * 0.5 * i) + 10 * random.nextGaussian());  //Nyquist and noise too
+        }
+        final SpectrumAnalyzer analyzer = new SpectrumAnalyzer(size, hop);
+        int end = 0;
+        for (int block : new int[] {200, 1, 37, 300, 64}) {                                          //Window wraps the history several times
+            analyzer.append(samples, end, block);
+            end += block;
+            final int last = size + ((end - size) / hop) * hop;                                     //End of the window of the last spectrum
+            final double[] expected = dft(samples, last - size, size);
+            final float[] magnitudes = analyzer.getMagnitudes();
+            for (int k = 0; k < expected.length; k++) {
+                assertEquals("After " + end + " bin " + k, expected[k], magnitudes[k], 0.01);
+            }
+        }
+    }
+
+    @Test
+    public void spectrumEveryHopOnceTheWindowIsFull() {
+        final SpectrumAnalyzer analyzer = new SpectrumAnalyzer(64, 16);
+        final float[] samples = sine(200, 0.1, 1, 0);
+        assertEquals(0, analyzer.append(samples, 0, 63));
+        assertEquals(1, analyzer.append(samples, 63, 1));
+        assertEquals(0, analyzer.append(samples, 64, 15));
+        assertEquals(2, analyzer.append(samples, 79, 32));
+        assertEquals(3, analyzer.getSpectra());
+        analyzer.reset();
+        assertEquals(0, analyzer.append(samples, 0, 63));                                           //Fills again from nothing
+        assertEquals(1, analyzer.append(samples, 63, 1));
+        assertEquals(33, analyzer.getBins());
+    }
+
+    @Test
+    public void samplesThatAreNotFiniteAreSkipped() {
+        final float[] good = sine(600, 0.1, 5, 2000);
+        final float[] bad = new float[good.length + 3];                                             //Same signal with invalid BCD words in it
+        System.arraycopy(good, 0, bad, 0, 100);
+        bad[100] = Float.NaN;
+        System.arraycopy(good, 100, bad, 101, 300);
+        bad[401] = Float.POSITIVE_INFINITY;
+        bad[402] = Float.NaN;
+        System.arraycopy(good, 400, bad, 403, 200);
+        final SpectrumAnalyzer expected = new SpectrumAnalyzer(128, 32);
+        final SpectrumAnalyzer analyzer = new SpectrumAnalyzer(128, 32);
+        assertEquals(expected.append(good, 0, good.length), analyzer.append(bad, 0, bad.length));
+        for (int k = 0; k < analyzer.getBins(); k++) {
+            assertEquals("Bin " + k, expected.getMagnitudes()[k], analyzer.getMagnitudes()[k], 0f);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsASizeThatIsNotAPowerOfTwo() {
+        new SpectrumAnalyzer(100, 1);
+    }
+}